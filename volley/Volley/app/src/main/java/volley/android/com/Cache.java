@@ -3,6 +3,7 @@ package volley.android.com;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import volley.android.com.toolbox.Header;
 
@@ -21,6 +22,12 @@ public interface Cache {
          */
         public byte[] data;
 
+        /**
+         * 落地到文件的正文,只在写入缓存时使用.不为null时data为null,
+         * 只有实现了{@link SpooledBodySupport}的缓存会收到这样的缓存项,见{@link Request#shouldSpoolResponse()}
+         */
+        public ResponseBody body;
+
         /**
          * HTTP头部的etag
          * 这是HTTP请求协议定义的缓存协议：
@@ -63,6 +70,34 @@ public interface Cache {
          */
         public List<Header> allResponseHeaders;
 
+        /**
+         * 从网络获取该缓存项花费的时间(毫秒),缓存的淘汰策略用它估计重新获取的代价,未知时为0
+         */
+        public long networkTimeMs;
+
+        /**
+         * 缓存项的标签,来自{@link Request#addCacheTag(String)},支持的缓存实现可以按标签批量失效或删除缓存项.
+         * 这个集合一旦赋值不应该被修改
+         */
+        public Set<String> tags = Collections.emptySet();
+
+        /**
+         * 按需读取正文,只在没有读正文的缓存项上使用,见{@link #loadData()}.不会写入缓存
+         */
+        public BodyLoader bodyLoader;
+
+        /**
+         * 返回正文.{@link #data}为null时通过{@link #bodyLoader}读取一次并保存在data中
+         * @return 正文,没有正文也不能读取时返回null
+         */
+        public byte[] loadData() {
+            if (data == null && bodyLoader != null) {
+                data = bodyLoader.load();
+                bodyLoader = null;
+            }
+            return data;
+        }
+
         /**
          * 返回缓存是否过期
          * @return
@@ -81,6 +116,41 @@ public interface Cache {
 
     }
 
+    /**
+     * 延迟读取缓存项的正文.{@link CacheDispatcher}把过期缓存项的元数据交给网络请求去发条件请求,
+     * 只有服务端返回304时才需要正文,这时才通过它读取
+     */
+    interface BodyLoader {
+
+        /**
+         * 读取正文
+         * @return 正文,缓存项已经不存在或者已经被替换时返回null
+         */
+        byte[] load();
+    }
+
+    /**
+     * 实现了这个接口的缓存在{@link #put(String, Entry)}时能够直接接收{@link Entry#body}中落地到文件的正文,
+     * 通常是把文件移进自己的目录,不再把正文读进内存.没有实现的缓存收到的总是{@link Entry#data}.
+     * 包装别的缓存的实现在被包装的缓存也支持时转交给它,否则替它把正文读回内存
+     */
+    interface SpooledBodySupport {
+    }
+
+    /**
+     * 实现了这个接口的缓存能够得知不经过它的命中,例如{@link CacheDispatcher}直接从{@link ParsedResponseCache}
+     * 返回解析好的结果时,不会再调用{@link #get(String)}.缓存据此维护新近度和访问频率,热点缓存项不会因为
+     * 总在内存中命中而被当成冷数据淘汰
+     */
+    interface AccessRecorder {
+
+        /**
+         * 记录一次命中,不读取缓存项.缓存项不存在时什么都不做
+         * @param key 缓存项的键
+         */
+        void recordAccess(String key);
+    }
+
     /**
      * 从本地缓存中获取缓存项
      * @param key 缓存项的键
@@ -88,6 +158,15 @@ public interface Cache {
      */
     Entry get(String key);
 
+    /**
+     * 只获取缓存项的元数据(ttl/softTtl/etag/lastModified/响应头部),不读取正文.
+     * 返回的{@link Entry#data}为null,确认缓存可用之后再调用{@link #get(String)}读取正文,
+     * 这样过期的缓存项就不需要为正文付出磁盘读取的开销
+     * @param key 缓存项的键
+     * @return 缓存项的元数据,不存在时返回null
+     */
+    Entry getMetadata(String key);
+
     /**
      * 添加或替换缓存项(落地)
      * @param key 缓存项的键
@@ -95,6 +174,14 @@ public interface Cache {
      */
     void put(String key, Entry entry);
 
+    /**
+     * 只更新缓存项的元数据(etag/serverDate/lastModified/ttl/softTtl),正文保持不变.
+     * 用于服务端返回304(未修改)的情况,不需要为了刷新过期时间把整个正文重写一遍
+     * @param key 缓存项的键
+     * @param entry 包含新元数据的缓存项,{@link Entry#data}不会被写入;若缓存项已经不存在且data不为null,则按{@link #put}处理
+     */
+    void updateMetadata(String key, Entry entry);
+
     /**
      * 刷新缓存项
      */
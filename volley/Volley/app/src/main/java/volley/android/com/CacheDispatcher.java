@@ -47,6 +47,16 @@ public class CacheDispatcher extends Thread {
      */
     private final WaitingRequestManager mWaitingRequestManager;
 
+    /**
+     * 是否在后台线程初始化缓存,不阻塞请求的处理
+     */
+    private final boolean mAsyncInitialization;
+
+    /**
+     * 解析过的响应结果的内存缓存,可以为null
+     */
+    private final ParsedResponseCache mParsedResponseCache;
+
     /**
      * 创建一个缓存请求处理线程
      * @param cacheQueue 用于等待从缓存获取请求结果的队列
@@ -57,10 +67,43 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, false);
+    }
+
+    /**
+     * 创建一个缓存请求处理线程
+     * @param cacheQueue 用于等待从缓存获取请求结果的队列
+     * @param networkQueue 用于请求网络获取访问接口的队列
+     * @param cache 用户获取缓存数据的缓存接口
+     * @param delivery 用于派发请求结果的接口
+     * @param asyncInitialization 为true时在后台线程执行{@link Cache#initialize()},当前线程立即开始处理请求.
+     *                            这要求cache在初始化期间可以被并发访问,例如{@link volley.android.com.toolbox.DiskBasedCache}
+     */
+    public CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, boolean asyncInitialization) {
+        this(cacheQueue, networkQueue, cache, delivery, asyncInitialization, null);
+    }
+
+    /**
+     * 创建一个缓存请求处理线程
+     * @param cacheQueue 用于等待从缓存获取请求结果的队列
+     * @param networkQueue 用于请求网络获取访问接口的队列
+     * @param cache 用户获取缓存数据的缓存接口
+     * @param delivery 用于派发请求结果的接口
+     * @param asyncInitialization 为true时在后台线程执行{@link Cache#initialize()}
+     * @param parsedResponseCache 解析过的响应结果的内存缓存,为null时每次命中都读正文并重新解析
+     */
+    public CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, boolean asyncInitialization,
+            ParsedResponseCache parsedResponseCache) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mAsyncInitialization = asyncInitialization;
+        mParsedResponseCache = parsedResponseCache;
         mWaitingRequestManager = new WaitingRequestManager(this);
     }
 
@@ -207,7 +250,17 @@ public class CacheDispatcher extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         //初始化缓存
-        mCache.initialize();
+        if (mAsyncInitialization) {
+            new Thread("Volley-CacheInitializer") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    mCache.initialize();
+                }
+            }.start();
+        } else {
+            mCache.initialize();
+        }
 
 
         while (true){
@@ -231,8 +284,9 @@ public class CacheDispatcher extends Thread {
             return;
         }
 
-        Cache.Entry entry = mCache.get(request.getCacheKey());
-        if (entry == null){
+        //先只看元数据,过期的缓存项不需要读取正文
+        Cache.Entry metadata = mCache.getMetadata(request.getCacheKey());
+        if (metadata == null){
             //缓存未命中
             request.addMarker("cache-miss");
             if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)){
@@ -242,8 +296,38 @@ public class CacheDispatcher extends Thread {
         }
 
         //缓存过期
-        if (entry.isExpired()){
+        if (metadata.isExpired()){
             request.addMarker("cache-hit-expired");
+            //只把元数据交给网络请求去发条件请求,服务端返回304时才读正文,大多数过期缓存项的正文不需要读
+            if (metadata.data == null) {
+                metadata.bodyLoader = new CachedBodyLoader(mCache, request.getCacheKey(), metadata);
+            }
+            request.setCacheEntry(metadata);
+            if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)){
+                mNetworkQueue.put(request);
+            }
+            return;
+        }
+
+        //缓存新鲜且不需要刷新时,先看内存里有没有解析好的结果
+        if (mParsedResponseCache != null && !metadata.refreshNeeded()) {
+            Response<?> parsed = mParsedResponseCache.get(request, metadata);
+            if (parsed != null) {
+                request.addMarker("cache-hit-memory");
+                //没有读磁盘缓存,这次命中要告诉它,否则它看不到最热的缓存项被访问
+                if (mCache instanceof Cache.AccessRecorder) {
+                    ((Cache.AccessRecorder) mCache).recordAccess(request.getCacheKey());
+                }
+                mDelivery.postResponse(request, parsed);
+                return;
+            }
+        }
+
+        //缓存可用,这时才读取正文
+        Cache.Entry entry = mCache.get(request.getCacheKey());
+        if (entry == null || entry.isExpired()){
+            //读元数据和读正文之间缓存项被删除或者替换了
+            request.addMarker("cache-miss");
             if (!mWaitingRequestManager.maybeAddToWaitingRequests(request)){
                 mNetworkQueue.put(request);
             }
@@ -256,6 +340,9 @@ public class CacheDispatcher extends Thread {
         //解析缓存数据
         Response<?> response = request.parseNetworkResponse(new NetworkResponse(entry.data, entry.responseHeaders));
         request.addMarker("cache-hit-parsed");
+        if (mParsedResponseCache != null) {
+            mParsedResponseCache.put(request, response, entry);
+        }
 
         //缓存不需要刷新
         if (!entry.refreshNeeded()){
@@ -286,4 +373,32 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /**
+     * 从缓存读取过期缓存项的正文.条件请求发出之后缓存项可能被删除或者替换,
+     * 304确认的是发请求时的版本,版本对不上时不返回正文
+     */
+    private static class CachedBodyLoader implements Cache.BodyLoader {
+        private final Cache mCache;
+        private final String mKey;
+        private final String mEtag;
+        private final long mLastModified;
+
+        CachedBodyLoader(Cache cache, String key, Cache.Entry metadata) {
+            mCache = cache;
+            mKey = key;
+            mEtag = metadata.etag;
+            mLastModified = metadata.lastModified;
+        }
+
+        @Override
+        public byte[] load() {
+            Cache.Entry entry = mCache.get(mKey);
+            if (entry == null || entry.lastModified != mLastModified
+                    || (mEtag == null ? entry.etag != null : !mEtag.equals(entry.etag))) {
+                return null;
+            }
+            return entry.data;
+        }
+    }
 }
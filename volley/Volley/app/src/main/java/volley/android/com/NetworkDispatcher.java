@@ -89,6 +89,7 @@ public class NetworkDispatcher extends Thread {
     private void processRequest() throws InterruptedException{
         Request<?> request = mQueue.take();
         long startTimeMs = SystemClock.elapsedRealtime();
+        NetworkResponse networkResponse = null;
 
         try {
             request.addMarker("network-queue-take");
@@ -103,7 +104,7 @@ public class NetworkDispatcher extends Thread {
             addTrafficStatsTag(request);
 
             //发起网络请求
-            NetworkResponse networkResponse = mNetwork.performRequest(request);
+            networkResponse = mNetwork.performRequest(request);
             request.addMarker("network-http-complete");
 
             //如果服务端返回304(not modified) 且 之前这个请求已经派发过一次结果了,我们不需要再派发结果
@@ -113,15 +114,32 @@ public class NetworkDispatcher extends Thread {
                 return;
             }
 
-            //解析返回结果
-            Response<?> response = request.parseNetworkResponse(networkResponse);
+            //解析返回结果,边下载边解析的请求已经在网络层解析过了
+            Response<?> response = request.takeStreamedResponse();
+            if (response == null) {
+                response = request.parseNetworkResponse(networkResponse);
+            }
             request.addMarker("network-parse-complete");
 
             //写入缓存
-            //TODO(这个TODO是volley写的):对于304应该只更新缓存的元数据也不是整响应
             if (request.shouldCache() && response.cacheEntry != null){
-                mCache.put(request.getCacheKey(), response.cacheEntry);
-                request.addMarker("network-cache-written");
+                if (networkResponse.notModified) {
+                    //304:正文没有变化,只刷新缓存的元数据
+                    mCache.updateMetadata(request.getCacheKey(), response.cacheEntry);
+                    request.addMarker("network-cache-metadata-updated");
+                } else {
+                    if (!request.getCacheTags().isEmpty()) {
+                        response.cacheEntry.tags = request.getCacheTags();
+                    }
+                    if (response.cacheEntry.data == null && response.cacheEntry.body != null
+                            && !(mCache instanceof Cache.SpooledBodySupport)) {
+                        //这个缓存只认byte[],只好把落地的正文读回内存
+                        response.cacheEntry.data = response.cacheEntry.body.toByteArray();
+                        response.cacheEntry.body = null;
+                    }
+                    mCache.put(request.getCacheKey(), response.cacheEntry);
+                    request.addMarker("network-cache-written");
+                }
             }
 
             request.markDelivered();
@@ -142,6 +160,11 @@ public class NetworkDispatcher extends Thread {
             volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
             mDelivery.postError(request, volleyError);
             request.notifyListenerResponseNotUsable();
+        } finally {
+            //落地的正文只在这一次处理中有效,已经被缓存移走的不会被删除
+            if (networkResponse != null && networkResponse.body != null) {
+                networkResponse.body.release();
+            }
         }
     }
 
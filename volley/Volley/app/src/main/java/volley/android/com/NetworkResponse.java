@@ -16,9 +16,15 @@ public class NetworkResponse {
     /** HTTP状态码　*/
     public final int statusCode;
 
-    /** HTTP响应数据　**/
+    /** HTTP响应数据,正文落地到文件时为null　**/
     public final byte[] data;
 
+    /**
+     * 落地到文件的响应正文,正文在内存中时为null,见{@link Request#shouldSpoolResponse()}.
+     * 不论正文在哪里,都可以用{@link #getBody()}读取
+     */
+    public final ResponseBody body;
+
     /**
      * HTTP响应头部，区分大小写
      * 注意:
@@ -54,7 +60,7 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
                            boolean notModified, long networkTimeMs) {
-        this(statusCode, data, headers, toAllHeaderList(headers), notModified, networkTimeMs);
+        this(statusCode, data, null, headers, toAllHeaderList(headers), notModified, networkTimeMs);
     }
 
     /**
@@ -67,7 +73,18 @@ public class NetworkResponse {
      */
     public NetworkResponse(int statusCode, byte[] data, boolean notModified, long networkTimeMs,
                            List<Header> allHeaders) {
-        this(statusCode, data, toHeaderMap(allHeaders), allHeaders, notModified, networkTimeMs);
+        this(statusCode, data, null, toHeaderMap(allHeaders), allHeaders, notModified, networkTimeMs);
+    }
+
+    /**
+     * 创建一个正文落地在文件中的请求响应
+     * @param statusCode HTTP状态码
+     * @param body 落地到文件的响应正文
+     * @param networkTimeMs 请求往返时间
+     * @param allHeaders 服务端返回的响应头部
+     */
+    public NetworkResponse(int statusCode, ResponseBody body, long networkTimeMs, List<Header> allHeaders) {
+        this(statusCode, null, body, toHeaderMap(allHeaders), allHeaders, false, networkTimeMs);
     }
 
     /**
@@ -99,10 +116,11 @@ public class NetworkResponse {
         this(HttpURLConnection.HTTP_OK, data, headers, false, 0);
     }
 
-    private NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+    private NetworkResponse(int statusCode, byte[] data, ResponseBody body, Map<String, String> headers,
                             List<Header> allHeaders, boolean notModified, long networkTimeMs) {
         this.statusCode = statusCode;
         this.data = data;
+        this.body = body;
         this.headers = headers;
         if (allHeaders == null) {
             this.allHeaders = null;
@@ -113,6 +131,17 @@ public class NetworkResponse {
         this.networkTimeMs = networkTimeMs;
     }
 
+    /**
+     * 返回响应正文,正文在内存中时包装{@link #data}
+     * @return 没有正文时返回null
+     */
+    public ResponseBody getBody() {
+        if (body != null) {
+            return body;
+        }
+        return data == null ? null : ResponseBody.wrap(data);
+    }
+
     private static Map<String, String> toHeaderMap(List<Header> allHeaders) {
         if (allHeaders == null) {
             return null;
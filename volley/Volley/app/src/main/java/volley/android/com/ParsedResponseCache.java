@@ -0,0 +1,173 @@
+package volley.android.com;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import volley.android.com.toolbox.Response;
+
+/**
+ * 内存中的一级缓存,保存已经解析好的响应结果,放在{@link Cache}前面.
+ * <p>
+ * 以{@link Request#getCacheKey()}为键,连同解析时所用缓存项的元数据(etag/serverDate/lastModified/ttl/softTtl)一起保存.
+ * {@link CacheDispatcher}每次仍先从{@link Cache#getMetadata(String)}取元数据,只有元数据与保存时完全一致、
+ * 缓存项既没有过期也不需要刷新时才直接返回这里的结果,既不读正文也不再解析;
+ * 缓存项被替换、失效或删除后元数据对不上,自然回退到原来的读盘和解析流程.
+ * </p>
+ * 容量按解析前正文的字节数估算,超出时按LRU淘汰.这个类是线程安全的.
+ * 同一个结果对象会被派发给多个请求,开启之前需要确认解析结果在派发之后不会被修改
+ */
+public class ParsedResponseCache {
+
+    /**
+     * 一个解析好的响应结果
+     */
+    private static class Item {
+        /**
+         * 产生这个结果的请求类型,同一个缓存键被不同类型的请求解析出来的结果不能混用
+         */
+        final Class<?> requestClass;
+        final Object result;
+        final String etag;
+        final long serverDate;
+        final long lastModified;
+        final long ttl;
+        final long softTtl;
+        final int size;
+
+        Item(Class<?> requestClass, Object result, Cache.Entry entry) {
+            this.requestClass = requestClass;
+            this.result = result;
+            this.etag = entry.etag;
+            this.serverDate = entry.serverDate;
+            this.lastModified = entry.lastModified;
+            this.ttl = entry.ttl;
+            this.softTtl = entry.softTtl;
+            this.size = Math.max(entry.data == null ? 0 : entry.data.length, 1);
+        }
+
+        /**
+         * 保存的结果是否是从这份元数据对应的缓存项解析出来的
+         */
+        boolean matches(Class<?> requestClass, Cache.Entry metadata) {
+            return this.requestClass == requestClass
+                    && ttl == metadata.ttl
+                    && softTtl == metadata.softTtl
+                    && serverDate == metadata.serverDate
+                    && lastModified == metadata.lastModified
+                    && (etag == null ? metadata.etag == null : etag.equals(metadata.etag));
+        }
+    }
+
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>(16, .75f, true);
+
+    private final int mMaxSizeInBytes;
+
+    private long mSize = 0;
+
+    private long mHitCount = 0;
+
+    private long mMissCount = 0;
+
+    /**
+     * @param maxSizeInBytes 容量,按解析前正文的字节数估算
+     */
+    public ParsedResponseCache(int maxSizeInBytes) {
+        mMaxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * 取出一个可以直接派发的响应结果
+     * @param request 请求
+     * @param metadata 缓存中这个请求当前的元数据,必须没有过期且不需要刷新
+     * @return 没有保存或者已经与缓存不一致时返回null
+     */
+    synchronized Response<?> get(Request<?> request, Cache.Entry metadata) {
+        String key = request.getCacheKey();
+        Item item = mItems.get(key);
+        if (item == null) {
+            mMissCount++;
+            return null;
+        }
+        if (!item.matches(request.getClass(), metadata)) {
+            //缓存项已经变了,这个结果作废
+            remove(key);
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return Response.success(item.result, metadata);
+    }
+
+    /**
+     * 保存一个刚从缓存项解析出来的响应结果
+     * @param request 请求
+     * @param response 解析结果,只保存成功的结果
+     * @param entry 解析所用的缓存项
+     */
+    synchronized void put(Request<?> request, Response<?> response, Cache.Entry entry) {
+        if (!response.isSuccess()) {
+            return;
+        }
+        Item item = new Item(request.getClass(), response.result, entry);
+        if (item.size > mMaxSizeInBytes) {
+            return;
+        }
+        String key = request.getCacheKey();
+        remove(key);
+        mItems.put(key, item);
+        mSize += item.size;
+        trimToSize();
+    }
+
+    /**
+     * 删除一个缓存键的结果
+     * @param key 缓存键
+     */
+    public synchronized void remove(String key) {
+        Item removed = mItems.remove(key);
+        if (removed != null) {
+            mSize -= removed.size;
+        }
+    }
+
+    /**
+     * 清空所有结果,命中统计保留
+     */
+    public synchronized void clear() {
+        mItems.clear();
+        mSize = 0;
+    }
+
+    /**
+     * 返回直接命中的次数
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 返回未命中(没有保存或者已经与缓存不一致)的次数
+     * @return
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 返回当前占用的容量(字节)
+     * @return
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Item>> iterator = mItems.entrySet().iterator();
+        while (mSize > mMaxSizeInBytes && iterator.hasNext()) {
+            mSize -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+}
@@ -6,11 +6,16 @@ import android.os.Handler;
 import android.os.Looper;
 import android.text.TextUtils;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
+import volley.android.com.toolbox.FormUrlEncoder;
+import volley.android.com.toolbox.PartitionedCache;
 import volley.android.com.toolbox.Response;
 
 /**
@@ -134,11 +139,26 @@ public abstract class Request<T> implements Comparable<Request<T>>{
      */
     private Object mTag;
 
+    /**
+     * 写入缓存时附加到缓存项上的标签
+     */
+    private Set<String> mCacheTags = Collections.emptySet();
+
+    /**
+     * 缓存分区名,为null时由缓存按缓存键决定分区
+     */
+    private String mCachePartition;
+
     /**
      * 请求完成的回调接口
      */
     private NetworkRequestCompleteListener mRequestCompleteListener;
 
+    /**
+     * 边下载边解析出来的结果,见{@link #shouldStreamResponse()}.网络线程写入,{@link NetworkDispatcher}取走
+     */
+    private Response<T> mStreamedResponse;
+
     /**
      * 用url和Response.ErrorListener两个参数创建一个request请求,这里没有请求完成的回调,是因为设计者把请求完成回调放到了子类，子类更清除怎么解析一个请求结果
      * @param url　要请求的url
@@ -303,13 +323,56 @@ public abstract class Request<T> implements Comparable<Request<T>>{
     }
 
     /**
-     * 返回该请求的缓存健,默认情况下返回的是该请求的url
+     * 返回该请求的缓存健,默认情况下返回的是该请求的url;指定了缓存分区时带上分区前缀
      * @return
      */
     public String getCacheKey() {
+        if (mCachePartition != null) {
+            return PartitionedCache.partitionKey(mCachePartition, getUrl());
+        }
         return getUrl();
     }
 
+    /**
+     * 指定该请求的响应放在哪个缓存分区,配合{@link PartitionedCache}使用.需要在请求加入队列之前调用
+     * @param partition 分区名
+     * @return
+     */
+    public Request<?> setCachePartition(String partition) {
+        mCachePartition = partition;
+        return this;
+    }
+
+    /**
+     * 返回该请求指定的缓存分区,没有指定时返回null
+     * @return
+     */
+    public String getCachePartition() {
+        return mCachePartition;
+    }
+
+    /**
+     * 给该请求的响应在缓存中打一个标签,之后可以用标签批量失效或删除缓存项,
+     * 见{@link volley.android.com.toolbox.DiskBasedCache#removeByTag(String)}.需要在请求加入队列之前调用
+     * @param tag 标签
+     * @return
+     */
+    public Request<?> addCacheTag(String tag) {
+        if (mCacheTags.isEmpty()) {
+            mCacheTags = new HashSet<>();
+        }
+        mCacheTags.add(tag);
+        return this;
+    }
+
+    /**
+     * 返回该请求的缓存标签
+     * @return
+     */
+    public Set<String> getCacheTags() {
+        return mCacheTags;
+    }
+
     /**
      * 给该请求设置一个被标记成过期但正等待刷新结果(http的not modified)的缓存
      * @param entry
@@ -427,18 +490,8 @@ public abstract class Request<T> implements Comparable<Request<T>>{
      * @return 返回url参数的字节数组
      */
     private byte[] encodeParameters(Map<String, String> params, String paramsEncoding) {
-        StringBuilder encodedParams = new StringBuilder();
-        try {
-            for (Map.Entry<String, String> entry : params.entrySet()) {
-                encodedParams.append(URLEncoder.encode(entry.getKey(), paramsEncoding));
-                encodedParams.append('=');
-                encodedParams.append(URLEncoder.encode(entry.getValue(), paramsEncoding));
-                encodedParams.append('&');
-            }
-            return encodedParams.toString().getBytes(paramsEncoding);
-        } catch (UnsupportedEncodingException uee) {
-            throw new RuntimeException("Encoding not supported: " + paramsEncoding, uee);
-        }
+        //直接编码进一个大小正好的数组,不经过URLEncoder和StringBuilder
+        return FormUrlEncoder.encode(params, paramsEncoding);
     }
 
     /**
@@ -467,6 +520,21 @@ public abstract class Request<T> implements Comparable<Request<T>>{
         return null;
     }
 
+    /**
+     * 返回PUT/POST方法的请求正文,{@link volley.android.com.toolbox.BaseHttpStack}把它直接写到连接上.
+     * <p>
+     * 默认把{@link #getBody()}包装成固定长度的正文,重写了{@link #getBody()}的子类不需要做任何改动.
+     * 正文很大或者可以边生成边发送时重写这个方法,返回一个文件、缓冲池里的数据或者自定义编码的{@link RequestBody},
+     * 内存中不需要再有一个完整的byte[].这个函数在网络线程中调用,重试时会再调用一次
+     * </p>
+     * @return 没有正文时返回null
+     * @throws AuthFailureError
+     */
+    public RequestBody getRequestBody() throws AuthFailureError {
+        byte[] body = getBody();
+        return body != null ? RequestBody.create(body) : null;
+    }
+
     /**
      * 指定该请求是否可以缓存
      * @param shouldCache
@@ -559,6 +627,9 @@ public abstract class Request<T> implements Comparable<Request<T>>{
         synchronized (mLock) {
             mResponseDelivered = true;
         }
+        if (mRequestQueue != null) {
+            mRequestQueue.onResponseDelivered();
+        }
     }
 
     /**
@@ -578,6 +649,85 @@ public abstract class Request<T> implements Comparable<Request<T>>{
      */
     abstract protected Response<T> parseNetworkResponse(NetworkResponse response);
 
+    /**
+     * 是否边下载边解析响应正文,默认返回false.
+     * <p>
+     * 返回true时,{@link volley.android.com.toolbox.BasicNetwork}收到2xx响应后不再把整个正文先读成byte[],
+     * 而是在网络线程中直接调用{@link #parseNetworkResponse(NetworkResponse, InputStream)},解析可以和下载同时进行,
+     * 不缓存时内存中也不需要容纳整个正文.其他状态码仍然按原来的方式读出正文
+     * </p>
+     * @return
+     */
+    public boolean shouldStreamResponse() {
+        return false;
+    }
+
+    /**
+     * 是否允许把较大的响应正文落地到临时文件,默认返回false.
+     * <p>
+     * 返回true并且{@link volley.android.com.toolbox.BasicNetwork#setResponseSpooling(java.io.File, int)}开启了落地时,
+     * 超过阈值的2xx正文不再以byte[]保存,{@link NetworkResponse#data}为null,正文在{@link NetworkResponse#body}中,
+     * 子类的{@link #parseNetworkResponse(NetworkResponse)}需要用{@link NetworkResponse#getBody()}读取正文.
+     * 实现了{@link Cache.SpooledBodySupport}的缓存直接把文件移进缓存目录,正文不会再被复制一次.
+     * 临时文件在请求处理完之后删除
+     * </p>
+     * @return
+     */
+    public boolean shouldSpoolResponse() {
+        return false;
+    }
+
+    /**
+     * {@link #shouldStreamResponse()}返回true时,子类重写这个方法从输入流中增量解析响应结果.这个函数在网络线程被调用.
+     * <p>
+     * 输入流自带从缓冲池申请的读缓冲区,不需要再包一层BufferedInputStream,也不要关闭它.
+     * {@link #shouldCache()}为true时读出的字节同时写入缓存项,解析器没有读完的部分会在返回后被读完;
+     * 返回结果的{@link Response#cacheEntry}的正文由网络层填充,用{@link volley.android.com.toolbox.HttpHeaderParser#parseCacheHeaders(NetworkResponse)}生成即可.
+     * </p>
+     * 缓存命中或者使用其他{@link Network}实现时,仍然调用{@link #parseNetworkResponse(NetworkResponse)},
+     * 子类可以在其中用ByteArrayInputStream包装{@link NetworkResponse#data}后调用这个方法.
+     * <p>
+     * 默认实现把整个正文读进内存,再以同样的状态码、头部和耗时调用{@link #parseNetworkResponse(NetworkResponse)},
+     * 只打开了{@link #shouldStreamResponse()}而没有重写这个方法的子类照样能解析,只是没有边下载边解析的好处
+     * </p>
+     * @param response 只有状态码和头部,{@link NetworkResponse#data}为null
+     * @param content 响应正文
+     * @return 返回解析过后的响应结果
+     * @throws IOException 读取正文出错,按网络错误处理(可能重试)
+     */
+    protected Response<T> parseNetworkResponse(NetworkResponse response, InputStream content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = content.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        return parseNetworkResponse(new NetworkResponse(response.statusCode, bytes.toByteArray(),
+                response.notModified, response.networkTimeMs, response.allHeaders));
+    }
+
+    /**
+     * 流式解析响应正文,由网络层调用,结果保存在请求中,之后由{@link NetworkDispatcher}取走
+     * @param response 只有状态码和头部的响应
+     * @param content 响应正文
+     * @return 解析出来的结果,可能为null
+     * @throws IOException 读取正文出错
+     */
+    public final Response<?> parseStreamingResponse(NetworkResponse response, InputStream content) throws IOException {
+        mStreamedResponse = parseNetworkResponse(response, content);
+        return mStreamedResponse;
+    }
+
+    /**
+     * 取走流式解析出来的结果
+     * @return 没有流式解析过时返回null
+     */
+    /* package */ Response<T> takeStreamedResponse() {
+        Response<T> response = mStreamedResponse;
+        mStreamedResponse = null;
+        return response;
+    }
+
     /**
      * 子类可以重写这个方法,返回一个更加具体的错误,默认情况下会返回错误本身
      * @param volleyError 访问网络出现的错误
@@ -0,0 +1,122 @@
+package volley.android.com;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 请求正文.{@link volley.android.com.toolbox.BaseHttpStack}把它直接写到连接的输出流上,正文不需要先拼成一个完整的byte[].
+ * <p>
+ * 长度已知时以固定长度发送(Content-Length),未知时({@link #contentLength()}返回-1)以chunked方式发送.
+ * 每次发起请求(包括重试)都会调用一次{@link #writeTo(OutputStream)},所以实现必须能重复写出同样的内容.
+ * 子类可以重写{@link #writeTo(OutputStream)},在写的同时编码正文,例如边序列化边发送
+ * </p>
+ * 内容类型仍然由{@link Request#getBodyContentType()}决定
+ */
+public abstract class RequestBody {
+
+    /**
+     * 复制文件正文时使用的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * 返回正文的字节数
+     * @return 未知时返回-1,以chunked方式发送
+     */
+    public abstract long contentLength();
+
+    /**
+     * 把正文写到输出流,不要关闭输出流
+     * @param out 连接的输出流
+     * @throws IOException 写出错
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * 把正文写成一个byte[],给只接受byte[]的地方使用,例如基于{@link volley.android.com.toolbox.HttpStack}的旧实现
+     * @return
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException {
+        long length = contentLength();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : 256);
+        writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 包装一个已经在内存中的正文,{@link Request#getBody()}通过它适配到流式发送
+     * @param data 正文
+     * @return
+     */
+    public static RequestBody create(final byte[] data) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return data.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+
+            @Override
+            public byte[] toByteArray() {
+                return data;
+            }
+        };
+    }
+
+    /**
+     * 直接发送ByteArrayOutputStream(例如{@link volley.android.com.toolbox.PoolingByteArrayOutputStream})中的内容,
+     * 不用toByteArray()再复制一次.请求结束之前不要再写入或者关闭它,之后由调用者关闭,把缓冲区还给缓冲池
+     * @param bytes 已经写好正文的输出流
+     * @return
+     */
+    public static RequestBody create(final ByteArrayOutputStream bytes) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return bytes.size();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                bytes.writeTo(out);
+            }
+        };
+    }
+
+    /**
+     * 以文件内容作为正文,发送时一边读一边写,文件不会整个读进内存
+     * @param file 发送过程中不要修改的文件
+     * @return
+     */
+    public static RequestBody create(final File file) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return file.length();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+}
@@ -2,6 +2,7 @@ package volley.android.com;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -10,6 +11,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 一个拥有线程池的请求派发队列
@@ -84,6 +86,26 @@ public class RequestQueue {
     private final List<RequestFinishedListener> mFinishedListeners =
             new ArrayList<>();
 
+    /**
+     * 是否在后台线程初始化缓存
+     */
+    private boolean mAsyncCacheInitialization = false;
+
+    /**
+     * 解析过的响应结果的内存缓存,默认不开启
+     */
+    private ParsedResponseCache mParsedResponseCache;
+
+    /**
+     * 调用{@link #start()}的时间
+     */
+    private volatile long mStartTimeMs;
+
+    /**
+     * 从{@link #start()}到第一个响应结果派发的耗时(ms),还没有响应时是-1
+     */
+    private final AtomicLong mTimeToFirstResponseMs = new AtomicLong(-1);
+
     /**
      * 创建一个工作,调用{@link #start()}方法启动
      * @param cache 缓存操作接口
@@ -126,8 +148,12 @@ public class RequestQueue {
         //确保当前工作队列中的所有线程是已暂停了的
         stop();
 
+        mStartTimeMs = SystemClock.elapsedRealtime();
+        mTimeToFirstResponseMs.set(-1);
+
         //创建并启动缓存请求工作线程
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery,
+                mAsyncCacheInitialization, mParsedResponseCache);
         mCacheDispatcher.start();
 
         //创建并启动网络请求工作线程
@@ -138,6 +164,50 @@ public class RequestQueue {
 
     }
 
+    /**
+     * 设置是否在后台线程初始化缓存,需要在{@link #start()}之前调用.
+     * 开启后缓存加载期间请求照常处理,已加载的缓存键直接命中,未加载的缓存键如何处理由缓存实现决定,
+     * 见{@link volley.android.com.toolbox.DiskBasedCache#setWarmUpPolicy}
+     * @param async 为true时在后台线程初始化缓存
+     */
+    public void setAsyncCacheInitialization(boolean async) {
+        mAsyncCacheInitialization = async;
+    }
+
+    /**
+     * 设置解析过的响应结果的内存缓存,需要在{@link #start()}之前调用.
+     * 开启后新鲜的缓存命中直接派发内存中解析好的结果,不再读取正文和重新解析
+     * @param parsedResponseCache 为null时关闭
+     */
+    public void setParsedResponseCache(ParsedResponseCache parsedResponseCache) {
+        mParsedResponseCache = parsedResponseCache;
+    }
+
+    /**
+     * 返回解析过的响应结果的内存缓存,可以从中读取命中统计
+     * @return 没有开启时返回null
+     */
+    public ParsedResponseCache getParsedResponseCache() {
+        return mParsedResponseCache;
+    }
+
+    /**
+     * 返回从{@link #start()}到第一个响应结果派发的耗时,用于衡量冷启动的速度
+     * @return 耗时(ms),还没有派发过响应时返回-1
+     */
+    public long getTimeToFirstResponseMs() {
+        return mTimeToFirstResponseMs.get();
+    }
+
+    /**
+     * 从{@link Request#markDelivered()}中调过来,记录第一个响应结果的派发时间
+     */
+    void onResponseDelivered() {
+        if (mTimeToFirstResponseMs.get() < 0) {
+            mTimeToFirstResponseMs.compareAndSet(-1, SystemClock.elapsedRealtime() - mStartTimeMs);
+        }
+    }
+
     /**
      * 暂停网络请求线程和缓存请求线程
      */
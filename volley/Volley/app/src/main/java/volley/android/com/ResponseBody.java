@@ -0,0 +1,183 @@
+package volley.android.com;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 响应正文.较小的正文在内存中,较大的正文由网络层落地到一个临时文件,见{@link Request#shouldSpoolResponse()}.
+ * <p>
+ * 临时文件属于这一次请求:{@link NetworkDispatcher}在请求处理完之后调用{@link #release()}删除它,
+ * 解析结果不要在派发之后还引用这个文件.缓存可以用{@link #moveTo(File)}把文件直接移进缓存目录,正文不再复制一次,
+ * 移走之后的文件归缓存所有,不会再被删除
+ * </p>
+ * 这个类是线程安全的
+ */
+public class ResponseBody {
+
+    /**
+     * 没有计算校验和
+     */
+    public static final long NO_CHECKSUM = -1;
+
+    private final byte[] mData;
+
+    private File mFile;
+
+    private final long mLength;
+
+    private final long mChecksum;
+
+    private final String mContentHash;
+
+    /**
+     * 文件是否已经移交给了别人(缓存),移交之后不再删除
+     */
+    private boolean mMoved = false;
+
+    private ResponseBody(byte[] data, File file, long length, long checksum, String contentHash) {
+        mData = data;
+        mFile = file;
+        mLength = length;
+        mChecksum = checksum;
+        mContentHash = contentHash;
+    }
+
+    /**
+     * 包装内存中的正文
+     * @param data 正文
+     * @return
+     */
+    public static ResponseBody wrap(byte[] data) {
+        return new ResponseBody(data, null, data.length, NO_CHECKSUM, null);
+    }
+
+    /**
+     * 包装已经落地到临时文件的正文,文件的所有权交给返回的对象
+     * @param file 临时文件
+     * @param length 正文长度
+     * @param checksum 正文的CRC32,没有计算时为{@link #NO_CHECKSUM}
+     * @param contentHash 正文SHA-1的十六进制表示(小写),没有计算时为null
+     * @return
+     */
+    public static ResponseBody spooled(File file, long length, long checksum, String contentHash) {
+        return new ResponseBody(null, file, length, checksum, contentHash);
+    }
+
+    /**
+     * 返回正文的长度
+     * @return
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * 返回正文是否落地在文件中
+     * @return
+     */
+    public boolean isSpooled() {
+        return mData == null;
+    }
+
+    /**
+     * 返回正文所在的文件,正文在内存中时返回null
+     * @return
+     */
+    public synchronized File getFile() {
+        return mFile;
+    }
+
+    /**
+     * 返回正文的CRC32,没有计算时返回{@link #NO_CHECKSUM}
+     * @return
+     */
+    public long getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * 返回正文SHA-1的十六进制表示,没有计算时返回null
+     * @return
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    /**
+     * 打开一个读取正文的输入流,调用者负责关闭
+     * @return
+     * @throws IOException 文件已经被删除
+     */
+    public InputStream openStream() throws IOException {
+        if (mData != null) {
+            return new ByteArrayInputStream(mData);
+        }
+        return new BufferedInputStream(new FileInputStream(requireFile()));
+    }
+
+    /**
+     * 把整个正文读进内存.落地到文件的正文很大时会占用同样大小的堆空间,只在不得不用byte[]的地方调用
+     * @return
+     * @throws IOException
+     */
+    public byte[] toByteArray() throws IOException {
+        if (mData != null) {
+            return mData;
+        }
+        if ((int) mLength != mLength) {
+            throw new IOException("Body too large for byte[]: " + mLength);
+        }
+        byte[] data = new byte[(int) mLength];
+        InputStream in = new FileInputStream(requireFile());
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) {
+                    throw new IOException("Spooled body truncated at " + offset);
+                }
+                offset += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private synchronized File requireFile() throws IOException {
+        if (mFile == null) {
+            throw new IOException("Spooled body already released");
+        }
+        return mFile;
+    }
+
+    /**
+     * 把落地的文件重命名到target,文件的所有权随之转移,之后{@link #release()}不会再删除它
+     * @param target 目标文件,必须和临时文件在同一个文件系统中
+     * @return 重命名成功返回true;正文在内存中、已经被释放或者重命名失败时返回false,文件保持不变
+     */
+    public synchronized boolean moveTo(File target) {
+        if (mFile == null || mMoved || !mFile.renameTo(target)) {
+            return false;
+        }
+        mFile = target;
+        mMoved = true;
+        return true;
+    }
+
+    /**
+     * 删除还归这个对象所有的临时文件,可以重复调用
+     */
+    public synchronized void release() {
+        if (mFile != null && !mMoved) {
+            if (!mFile.delete() && mFile.exists()) {
+                VolleyLog.d("Could not delete spooled body %s", mFile.getAbsolutePath());
+            }
+            mFile = null;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package volley.android.com.toolbox;
 
+import android.os.Build;
+
 import org.apache.http.ProtocolVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.entity.BasicHttpEntity;
@@ -9,12 +11,17 @@ import org.apache.http.message.BasicStatusLine;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import volley.android.com.AuthFailureError;
 import volley.android.com.Request;
+import volley.android.com.RequestBody;
 
 /**
  * HTTP栈抽象
@@ -31,6 +38,68 @@ public abstract class BaseHttpStack implements HttpStack{
      */
     public abstract HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError;
 
+    /**
+     * 把请求的{@link Request#getRequestBody()}写到连接上,子类在{@link #executeRequest(Request, Map)}中设置好请求方法之后调用.
+     * 长度已知时用固定长度模式,未知时用chunked模式,HttpURLConnection都不会在内存中再缓存一份正文
+     * @param connection 还没有连接的HttpURLConnection
+     * @param request 需要发起的请求
+     * @throws IOException 写正文出错
+     * @throws AuthFailureError
+     */
+    protected static void addBodyIfExists(HttpURLConnection connection, Request<?> request)
+            throws IOException, AuthFailureError {
+        RequestBody body = request.getRequestBody();
+        if (body == null) {
+            return;
+        }
+        addBody(connection, request.getBodyContentType(), body);
+    }
+
+    /**
+     * 把正文写到连接上,请求没有设置Content-Type时使用contentType
+     * @param connection 还没有连接的HttpURLConnection
+     * @param contentType 正文的类型
+     * @param body 正文
+     * @throws IOException 写正文出错
+     */
+    static void addBody(HttpURLConnection connection, String contentType, RequestBody body) throws IOException {
+        connection.setDoOutput(true);
+        if (connection.getRequestProperty("Content-Type") == null) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+
+        long length = body.contentLength();
+        if (length < 0) {
+            //长度未知,chunk大小用默认值
+            connection.setChunkedStreamingMode(0);
+        } else if (length <= Integer.MAX_VALUE) {
+            connection.setFixedLengthStreamingMode((int) length);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            connection.setFixedLengthStreamingMode(length);
+        } else {
+            //旧版本不支持超过2G的固定长度
+            connection.setChunkedStreamingMode(0);
+        }
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            body.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 以通道的形式返回响应正文,{@link FileDownloadRequest}用它把正文直接传输到文件.
+     * 默认包装{@link HttpResponse#getContent()};底层本来就是通道的实现可以重写这个方法,省掉一次复制
+     * @param response {@link #executeRequest(Request, Map)}返回的响应,正文不为空
+     * @return 关闭通道时同时关闭正文的输入流
+     * @throws IOException
+     */
+    public ReadableByteChannel openContentChannel(HttpResponse response) throws IOException {
+        return Channels.newChannel(response.getContent());
+    }
+
     /**
      * 这个函数现在没地方用到，写出来的原因是因为{@link BasicNetwork#mHttpStack}已经在之前的版本发布了，使用旧版本的volley库仍然依赖了这个函数.
      * @param request 需要发起的请求
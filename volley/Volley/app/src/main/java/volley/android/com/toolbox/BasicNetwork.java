@@ -2,11 +2,20 @@ package volley.android.com.toolbox;
 
 import android.os.SystemClock;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 import volley.android.com.AuthFailureError;
 import volley.android.com.Cache;
@@ -23,6 +33,7 @@ import volley.android.com.NetworkError;
 import volley.android.com.NetworkResponse;
 import volley.android.com.NoConnectionError;
 import volley.android.com.Request;
+import volley.android.com.ResponseBody;
 import volley.android.com.RetryPolicy;
 import volley.android.com.ServerError;
 import volley.android.com.TimeoutError;
@@ -45,6 +56,16 @@ public class BasicNetwork implements Network{
      */
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    /**
+     * 读取响应正文时每次从输入流读取的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * 下载到文件时每次transferFrom传输的最大字节数,也是进度回调的间隔
+     */
+    private static final int DOWNLOAD_CHUNK_SIZE = 256 * 1024;
+
     @Deprecated
     protected final HttpStack mHttpStack;
 
@@ -52,6 +73,16 @@ public class BasicNetwork implements Network{
 
     protected final ByteArrayPool mPool;
 
+    /**
+     * 较大的响应正文落地到这个目录,为null表示不落地
+     */
+    private File mSpoolDirectory;
+
+    /**
+     * 正文超过这个大小(字节)时落地
+     */
+    private int mSpoolThreshold;
+
     /**
      * 创建一个网络接口实现
      * @param httpStack 需要用来访问网络的http栈
@@ -93,6 +124,18 @@ public class BasicNetwork implements Network{
         mPool = pool;
     }
 
+    /**
+     * 开启响应正文落地.{@link Request#shouldSpoolResponse()}返回true的请求,2xx响应的正文超过阈值时写到directory下的临时文件中,
+     * 不再以byte[]保存.directory最好和{@link DiskBasedCache}的目录在同一个文件系统中(例如都在Context#getCacheDir()下),
+     * 缓存时可以直接移动文件
+     * @param directory 临时文件所在的目录,为null时关闭落地
+     * @param thresholdBytes 正文超过这个大小时落地
+     */
+    public void setResponseSpooling(File directory, int thresholdBytes) {
+        mSpoolDirectory = directory;
+        mSpoolThreshold = thresholdBytes;
+    }
+
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
@@ -104,7 +147,9 @@ public class BasicNetwork implements Network{
 
             try {
                 //收集请求头部
-                Map<String, String> additionalRequestHeaders = getCacheHeaders(request.getCacheEntry());
+                Map<String, String> additionalRequestHeaders = request instanceof FileDownloadRequest
+                        ? getDownloadHeaders((FileDownloadRequest) request)
+                        : getCacheHeaders(request.getCacheEntry());
 
                 httpResponse = mBaseHttpStack.executeRequest(request, additionalRequestHeaders);
                 int statusCode = httpResponse.getStatusCode();
@@ -120,17 +165,51 @@ public class BasicNetwork implements Network{
                                 SystemClock.elapsedRealtime() - requestStart, responseHeaders);
                     }
 
+                    //缓存实体可能只有元数据,这时才读正文
+                    byte[] data = entry.loadData();
+                    if (data == null) {
+                        //发出条件请求之后缓存项被删除或者替换了,304没法用,不带条件头部重新请求
+                        request.addMarker("not-modified-body-missing");
+                        request.setCacheEntry(null);
+                        continue;
+                    }
+
                     //拼接请求的缓存实体中的头部字段和当前304响应的头部字段
                     List<Header> combinedHeaders = combineHeaders(responseHeaders, entry);
 
-                    return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, entry.data,
+                    return new NetworkResponse(HttpURLConnection.HTTP_NOT_MODIFIED, data,
                             true, SystemClock.elapsedRealtime() - requestStart, combinedHeaders);
                 }
 
                 InputStream inputStream = httpResponse.getContent();
 
+                //下载到文件,正文不进内存
+                if (inputStream != null && request instanceof FileDownloadRequest
+                        && (statusCode == HttpURLConnection.HTTP_OK || statusCode == HttpURLConnection.HTTP_PARTIAL)) {
+                    return performDownload((FileDownloadRequest) request, httpResponse, requestStart);
+                }
+
+                //边下载边解析,正文不先读成byte[]
+                if (inputStream != null && request.shouldStreamResponse()
+                        && statusCode >= 200 && statusCode <= 299) {
+                    return performStreamingParse(request, httpResponse, inputStream, requestStart);
+                }
+
                 //有一些正常响应是没有正文内容的，例如204，我们需要检查这种情况
-                if (inputStream != null) {
+                if (inputStream != null && mSpoolDirectory != null && request.shouldSpoolResponse()
+                        && statusCode >= 200 && statusCode <= 299) {
+                    //允许落地的请求,正文太大时写到临时文件
+                    ResponseBody body = readOrSpoolBody(inputStream, httpResponse.getContentLength());
+                    if (body.isSpooled()) {
+                        long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+                        if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
+                            VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [spooled=%d]",
+                                    request, requestLifetime, body.length());
+                        }
+                        return new NetworkResponse(statusCode, body, requestLifetime, responseHeaders);
+                    }
+                    responseContents = body.toByteArray();
+                } else if (inputStream != null) {
                     responseContents =
                             inputStreamToBytes(inputStream, httpResponse.getContentLength());
                 } else {
@@ -221,6 +300,187 @@ public class BasicNetwork implements Network{
     }
 
 
+    /**
+     * 获取下载请求的头部字段.临时文件中已经有数据并且知道第一次响应的校验字段时,从断点处继续下载;否则丢掉临时文件从头下载
+     * @param request 下载请求
+     * @return
+     */
+    private static Map<String, String> getDownloadHeaders(FileDownloadRequest request) {
+        File partial = request.getPartialFile();
+        long offset = partial.length();
+        String validator = request.getResumeValidator();
+        if (offset == 0 || validator == null) {
+            if (partial.exists() && !partial.delete()) {
+                VolleyLog.d("Could not delete partial download %s", partial.getAbsolutePath());
+            }
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=" + offset + "-");
+        //文件在两次请求之间变了的话服务端返回完整的200响应
+        headers.put("If-Range", validator);
+        return headers;
+    }
+
+    /**
+     * 把2xx响应的正文传输到下载请求的临时文件,完成后重命名成目标文件.206从断点处追加,200从头写.
+     * 读取正文出错时抛出IOException,由{@link #performRequest(Request)}按网络错误重试,重试时从断点处继续
+     * @param request 下载请求
+     * @param httpResponse 200或者206响应
+     * @param requestStart 请求开始的时间
+     * @return 没有正文的响应
+     * @throws IOException 读取正文或者写文件出错
+     */
+    private NetworkResponse performDownload(FileDownloadRequest request, HttpResponse httpResponse,
+                                            long requestStart) throws IOException {
+        int statusCode = httpResponse.getStatusCode();
+        List<Header> responseHeaders = httpResponse.getHeaders();
+        File partial = request.getPartialFile();
+
+        long offset = 0;
+        long total = -1;
+        if (statusCode == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = findHeader(responseHeaders, "Content-Range");
+            offset = partial.length();
+            if (contentRange == null || parseRangeStart(contentRange) != offset) {
+                //和临时文件对不上,下次从头下载
+                request.setResumeValidator(null);
+                closeQuietly(httpResponse.getContent());
+                throw new IOException("Unexpected Content-Range " + contentRange + " for offset " + offset);
+            }
+            total = parseRangeTotal(contentRange);
+        } else {
+            //200:服务端给的是完整的文件,记下校验字段供断点续传
+            String validator = findHeader(responseHeaders, "ETag");
+            if (validator == null) {
+                validator = findHeader(responseHeaders, "Last-Modified");
+            }
+            request.setResumeValidator(validator);
+        }
+        if (total < 0 && httpResponse.getContentLength() >= 0) {
+            total = offset + httpResponse.getContentLength();
+        }
+
+        File parent = partial.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        FileDownloadRequest.ProgressListener listener = request.getProgressListener();
+        ReadableByteChannel source = mBaseHttpStack.openContentChannel(httpResponse);
+        RandomAccessFile file = null;
+        long position = offset;
+        boolean canceled = false;
+        try {
+            file = new RandomAccessFile(partial, "rw");
+            FileChannel channel = file.getChannel();
+            channel.truncate(offset);
+            while (true) {
+                if (request.isCanceled()) {
+                    canceled = true;
+                    break;
+                }
+                long transferred = channel.transferFrom(source, position, DOWNLOAD_CHUNK_SIZE);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                if (listener != null) {
+                    listener.onProgress(position, total);
+                }
+            }
+        } finally {
+            try {
+                //关闭通道同时关闭输入流,连接才能被复用
+                source.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            if (file != null) {
+                file.close();
+            }
+        }
+
+        if (canceled) {
+            //取消的请求不会再重试,临时文件没用了
+            partial.delete();
+        } else {
+            if (total >= 0 && position != total) {
+                throw new IOException("Download truncated at " + position + " of " + total);
+            }
+            File target = request.getTargetFile();
+            if (!partial.renameTo(target)) {
+                //有的平台上重命名不会覆盖已有的文件
+                target.delete();
+                if (!partial.renameTo(target)) {
+                    throw new IOException("Could not rename " + partial + " to " + target);
+                }
+            }
+        }
+
+        long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+        if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
+            VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [downloaded=%d], [offset=%d], [rc=%d]",
+                    request, requestLifetime, position - offset, offset, statusCode);
+        }
+        return new NetworkResponse(statusCode, (byte[]) null, false, requestLifetime, responseHeaders);
+    }
+
+    /**
+     * 返回头部中第一个名字匹配(不区分大小写)的值
+     * @return 不存在时返回null
+     */
+    private static String findHeader(List<Header> headers, String name) {
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解析"bytes 100-199/1000"中的起始位置
+     * @return 格式不对时返回-1
+     */
+    private static long parseRangeStart(String contentRange) {
+        int start = contentRange.indexOf(' ') + 1;
+        int dash = contentRange.indexOf('-', start);
+        if (start == 0 || dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(start, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析"bytes 100-199/1000"中的文件总长度
+     * @return 总长度未知("*")或者格式不对时返回-1
+     */
+    private static long parseRangeTotal(String contentRange) {
+        int slash = contentRange.indexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            VolleyLog.v("Error occurred when closing InputStream");
+        }
+    }
+
     /**
      * 拼接缓存实体的头部和304响应头的头部，304响应头的头部是不完整的
      * http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.3.5
@@ -262,15 +522,185 @@ public class BasicNetwork implements Network{
         return combinedHeaders;
     }
 
+    /**
+     * 把响应正文交给请求流式解析.请求需要缓存时,读出的正文同时写入一个缓冲区,解析完后成为缓存项的正文
+     * @param request 当前执行的请求
+     * @param httpResponse 2xx响应
+     * @param in 响应正文的输入流
+     * @param requestStart 请求开始的时间
+     * @return 需要缓存时{@link NetworkResponse#data}是完整的正文,否则为null
+     * @throws IOException 读取正文出错
+     */
+    private NetworkResponse performStreamingParse(Request<?> request, HttpResponse httpResponse, InputStream in,
+                                                  long requestStart) throws IOException {
+        int statusCode = httpResponse.getStatusCode();
+        List<Header> responseHeaders = httpResponse.getHeaders();
+        PoolingByteArrayOutputStream bytes = request.shouldCache()
+                ? new PoolingByteArrayOutputStream(mPool, Math.max(httpResponse.getContentLength(), 0)) : null;
+        TeeInputStream content = new TeeInputStream(in, mPool, BUFFER_SIZE, bytes);
+        try {
+            Response<?> response = request.parseStreamingResponse(new NetworkResponse(statusCode, null, false,
+                    SystemClock.elapsedRealtime() - requestStart, responseHeaders), content);
+
+            byte[] data = null;
+            if (bytes != null && response != null && response.cacheEntry != null) {
+                //解析器可能没有读到末尾,缓存里必须是完整的正文
+                content.drain();
+                data = bytes.toByteArray();
+                response.cacheEntry.data = data;
+            }
+
+            long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+            logSlowRequests(requestLifetime, request, data, statusCode);
+            return new NetworkResponse(statusCode, data, false, requestLifetime, responseHeaders);
+        } finally {
+            try {
+                content.release();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            if (bytes != null) {
+                bytes.close();
+            }
+        }
+    }
+
+    /**
+     * 读取响应正文,超过{@link #mSpoolThreshold}时落地到临时文件.落地的同时计算CRC32和SHA-1,缓存可以据此直接移动文件
+     * @param in 响应正文的输入流,读完后关闭
+     * @param contentLength 正文长度,未知时为-1
+     * @return 较小的正文在内存中
+     * @throws IOException 读取或者写临时文件出错,临时文件已经被删除
+     */
+    private ResponseBody readOrSpoolBody(InputStream in, int contentLength) throws IOException {
+        PoolingByteArrayOutputStream bytes = null;
+        SpoolOutputStream spool = null;
+        byte[] buffer = null;
+        try {
+            if (contentLength > mSpoolThreshold) {
+                spool = new SpoolOutputStream(mSpoolDirectory);
+            } else {
+                bytes = new PoolingByteArrayOutputStream(mPool, Math.max(contentLength, 0));
+            }
+            buffer = mPool.getBuf(BUFFER_SIZE);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (spool == null && bytes.size() + count > mSpoolThreshold) {
+                    //超过阈值了,已经读出来的部分先写进临时文件
+                    spool = new SpoolOutputStream(mSpoolDirectory);
+                    bytes.writeTo(spool);
+                }
+                if (spool != null) {
+                    spool.write(buffer, 0, count);
+                } else {
+                    bytes.write(buffer, 0, count);
+                }
+            }
+            if (spool == null) {
+                return ResponseBody.wrap(bytes.toByteArray());
+            }
+            ResponseBody body = spool.finish();
+            spool = null;
+            return body;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            mPool.returnBuf(buffer);
+            if (bytes != null) {
+                bytes.close();
+            }
+            if (spool != null) {
+                //没有正常结束,删掉写了一半的临时文件
+                spool.abort();
+            }
+        }
+    }
+
+    /**
+     * 写入正文临时文件的输出流,写入的同时计算CRC32和SHA-1
+     */
+    private static class SpoolOutputStream extends FilterOutputStream {
+        private final File mFile;
+        private final CRC32 mCrc = new CRC32();
+        private final MessageDigest mDigest;
+        private long mLength = 0;
+
+        SpoolOutputStream(File directory) throws IOException {
+            super(null);
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            try {
+                mDigest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            mFile = File.createTempFile("body", ".tmp", directory);
+            out = new FileOutputStream(mFile);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCrc.update(b, off, len);
+            mDigest.update(b, off, len);
+            mLength += len;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * 关闭文件,返回拥有这个文件的正文对象
+         */
+        ResponseBody finish() throws IOException {
+            close();
+            return ResponseBody.spooled(mFile, mLength, mCrc.getValue(), DiskBasedCache.toHex(mDigest.digest()));
+        }
+
+        void abort() {
+            try {
+                close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing spool file");
+            }
+            mFile.delete();
+        }
+    }
+
     /**
      * 从输入流中读出数据，返回字节流
      * @param in 需要读数据的输入流
      * @param contentLength 要读取数据的长度
      * @return
+     * @throws IOException
      */
-    private byte[] inputStreamToBytes(InputStream in, int contentLength) {
+    private byte[] inputStreamToBytes(InputStream in, int contentLength) throws IOException {
         PoolingByteArrayOutputStream bytes =
                 new PoolingByteArrayOutputStream(mPool, contentLength);
+        byte[] buffer = null;
+        try {
+            buffer = mPool.getBuf(BUFFER_SIZE);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            try {
+                //关闭输入流,连接才能被复用
+                in.close();
+            } catch (IOException e) {
+                VolleyLog.v("Error occurred when closing InputStream");
+            }
+            mPool.returnBuf(buffer);
+            bytes.close();
+        }
     }
 
     /**
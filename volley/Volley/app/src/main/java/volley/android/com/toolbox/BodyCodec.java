@@ -0,0 +1,183 @@
+package volley.android.com.toolbox;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import volley.android.com.Cache;
+
+/**
+ * 缓存正文的压缩编解码.
+ * <p>
+ * {@link DiskBasedCache}开启压缩后,按响应的Content-Type决定是否压缩正文:文本、JSON、XML、JavaScript这类内容
+ * 压缩率很高,图片、音视频、压缩包这类本身已经压缩过的内容再压缩只会浪费CPU,直接原样存储.
+ * 使用的编码记录在缓存文件的头部,读取时据此解码
+ * </p>
+ */
+class BodyCodec {
+
+    /**
+     * 不压缩
+     */
+    static final int NONE = 0;
+
+    /**
+     * zlib格式的deflate压缩
+     */
+    static final int DEFLATE = 1;
+
+    /**
+     * 小于这个大小的正文不压缩,省下的空间抵不过CPU开销
+     */
+    private static final int MIN_COMPRESS_BYTES = 256;
+
+    /**
+     * 压缩后至少要小于原来的这个比例才按压缩存储,否则原样存储
+     */
+    private static final float MAX_COMPRESSED_RATIO = 0.9f;
+
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    /**
+     * 按缓存项的响应头部选择正文的编码
+     * @param entry 缓存项
+     * @return {@link #NONE}或者{@link #DEFLATE}
+     */
+    static int chooseCodec(Cache.Entry entry) {
+        if (entry.data.length < MIN_COMPRESS_BYTES) {
+            return NONE;
+        }
+        String contentEncoding = getHeader(entry, HEADER_CONTENT_ENCODING);
+        if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding.trim())) {
+            //正文仍是gzip等编码后的原始字节
+            return NONE;
+        }
+        return isCompressible(getHeader(entry, HttpHeaderParser.HEADER_CONTENT_TYPE)) ? DEFLATE : NONE;
+    }
+
+    /**
+     * Content-Type是否是值得压缩的类型
+     * @param contentType Content-Type头部的值,可以带charset等参数
+     * @return
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String mimeType = contentType;
+        int semicolon = mimeType.indexOf(';');
+        if (semicolon >= 0) {
+            mimeType = mimeType.substring(0, semicolon);
+        }
+        mimeType = mimeType.trim().toLowerCase(Locale.US);
+
+        return mimeType.startsWith("text/")
+                || mimeType.endsWith("+json")
+                || mimeType.endsWith("+xml")
+                || mimeType.equals("application/json")
+                || mimeType.equals("application/javascript")
+                || mimeType.equals("application/x-javascript")
+                || mimeType.equals("application/ecmascript")
+                || mimeType.equals("application/xml")
+                || mimeType.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * 编码正文
+     * @param codec 编码方式
+     * @param data 原始正文
+     * @return 编码后的正文;{@link #NONE}时原样返回;压缩省不下多少空间时返回null,调用者应改为原样存储
+     */
+    static byte[] encode(int codec, byte[] data) {
+        if (codec == NONE) {
+            return data;
+        }
+
+        int limit = (int) (data.length * MAX_COMPRESSED_RATIO);
+        byte[] out = new byte[limit];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < limit) {
+                length += deflater.deflate(out, length, limit - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 解码正文
+     * @param codec 编码方式
+     * @param data 缓存文件中存储的正文
+     * @param dataLength 原始正文的长度
+     * @return 原始正文
+     * @throws IOException 编码方式未知或者数据损坏
+     */
+    static byte[] decode(int codec, byte[] data, long dataLength) throws IOException {
+        if (codec == NONE) {
+            return data;
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown codec " + codec);
+        }
+        if (dataLength < 0 || (int) dataLength != dataLength) {
+            throw new IOException("Bad data length " + dataLength);
+        }
+
+        byte[] out = new byte[(int) dataLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            int length = 0;
+            while (!inflater.finished() && length < out.length) {
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (!inflater.finished() && length == out.length) {
+                //输出已经写满,zlib尾部的校验和可能还没有被消费
+                if (inflater.inflate(new byte[1]) != 0) {
+                    throw new IOException("Body longer than " + dataLength);
+                }
+            }
+            if (!inflater.finished() || length != out.length) {
+                throw new IOException("Truncated compressed body");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException(e.toString());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 取响应头部的值,同名头部以最后一个为准
+     */
+    private static String getHeader(Cache.Entry entry, String name) {
+        List<Header> headers = entry.allResponseHeaders;
+        if (headers == null) {
+            return entry.responseHeaders == null ? null : entry.responseHeaders.get(name);
+        }
+        String value = null;
+        for (Header header : headers) {
+            if (name.equalsIgnoreCase(header.getName())) {
+                value = header.getValue();
+            }
+        }
+        return value;
+    }
+}
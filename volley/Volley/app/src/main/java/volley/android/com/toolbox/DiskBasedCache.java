@@ -1,12 +1,12 @@
 package volley.android.com.toolbox;
 
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
-import android.text.TextUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -15,29 +15,69 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 import volley.android.com.Cache;
+import volley.android.com.ResponseBody;
 import volley.android.com.VolleyLog;
 
 /**
  * 本地缓存实现，将内存的内容以文件的形式缓存到一个目录中，缓存大小可以配置，默认的是5M.
- * 这个缓存支持{@link Entry#allResponseHeaders}的头部
+ * 这个缓存支持{@link Entry#allResponseHeaders}的头部.
+ * 空间不足时淘汰哪些缓存项由{@link EvictionPolicy}决定,默认是{@link LruEvictionPolicy}.
+ * 淘汰和过期清理都在后台维护线程中进行,写入缓存的线程不需要等待删除文件,见{@link #runMaintenance()}.
+ * 缓存键另外按字典序索引,缓存项的标签也有索引,可以按URL前缀或者标签批量失效/删除缓存项,见{@link #removeByPrefix(String)}.
+ * 缓存文件先写到临时文件再重命名,进程中途挂掉不会留下写了一半的缓存文件;正文带有CRC32,读取时校验
  */
-public class DiskBasedCache implements Cache{
+public class DiskBasedCache implements Cache, Cache.SpooledBodySupport, Cache.AccessRecorder {
 
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    /**
+     * 内存中的缓存项.所有线程都可以无锁读取,同一个缓存文件的修改由{@link #mLocks}中对应的锁串行化
+     */
+    private final ConcurrentHashMap<String, CacheHeader> mEntries =
+            new ConcurrentHashMap<String, CacheHeader>(16, .75f, LOCK_STRIPES);
+
+    /**
+     * 当前缓存使用的总大小(字节),与mEntries的修改在同一把条带锁内完成,保证两者一致
+     */
+    private final AtomicLong mTotalSize = new AtomicLong(0);
+
+    /**
+     * 按字典序排列的缓存键,与mEntries一起修改.同一前缀的缓存键排在一起,按前缀查找的开销只和匹配的数量有关
+     */
+    private final ConcurrentSkipListSet<String> mSortedKeys = new ConcurrentSkipListSet<>();
 
     /**
-     * 当前缓存使用的总大小(字节)
+     * 标签到缓存键的索引,与mEntries一起修改
      */
-    private long mTotalSize = 0;
+    private final ConcurrentHashMap<String, Set<String>> mTagIndex = new ConcurrentHashMap<>();
 
     /**
      * 缓存文件的根目录
@@ -45,9 +85,9 @@ public class DiskBasedCache implements Cache{
     private final File mRootDirectory;
 
     /**
-     * 缓存的最大空间(字节)
+     * 缓存的最大空间(字节),可以超过2G
      */
-    private final int mMaxCacheSizeInBytes;
+    private final long mMaxCacheSizeInBytes;
 
     /**
      * 默认缓存空间 5M
@@ -55,23 +95,250 @@ public class DiskBasedCache implements Cache{
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
     /**
-     * 缓存的高水位线百分比（到了这个值就说明缓存快要满了）
+     * 缓存的高水位线百分比（到了这个值就说明缓存快要满了），超过之后触发后台淘汰
+     */
+    private static final float HIGH_WATER_FACTOR = 0.9f;
+
+    /**
+     * 缓存的低水位线百分比,后台淘汰一次删到这个值以下,留出余量让后续的写入不会马上又触发淘汰
+     */
+    private static final float HYSTERESIS_FACTOR = 0.8f;
+
+    /**
+     * 写入之后会超过最大容量说明后台淘汰跟不上写入,写入线程等后台做完一轮淘汰再写,见{@link #awaitSpace(String, long)}.
+     * 写入线程自己从不淘汰
+     */
+    private static final float HARD_LIMIT_FACTOR = 1.0f;
+
+    /**
+     * 超过最大容量时写入线程最多等待后台淘汰这么久,仍然放不下就放弃这次写入
+     */
+    private static final long BACKPRESSURE_TIMEOUT_MS = 100;
+
+    /**
+     * 定期清理过期缓存项的间隔
+     */
+    private static final long SWEEP_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 默认的过期缓存项保留时间
+     */
+    private static final long DEFAULT_EXPIRED_RETENTION_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * 自上次保存新近度以来访问了这么多次缓存项时,在后台再保存一次
      */
-    private static final float HYSTERESIS_FACTOR = 0.9f;
+    private static final long SNAPSHOT_ACCESS_THRESHOLD = 1000;
 
     /**
      * magic number,用来作为文件头的标记
      */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /**
+     * 第二版头部格式的magic number,magic之后多了正文的编码方式和原始长度
+     */
+    private static final int CACHE_MAGIC_V2 = 0x20180516;
+
+    /**
+     * 第三版头部格式的magic number,整个头部一次读入一个ByteBuffer解析
+     */
+    private static final int CACHE_MAGIC_V3 = 0x20180701;
+
+    /**
+     * 第四版头部格式的magic number,与第三版相同,只是元数据段后面多了它自己的CRC32,见{@link CacheHeader#writeHeader(OutputStream)}.
+     * 四种格式的文件都能读取,新文件总是按第四版写入
+     */
+    private static final int CACHE_MAGIC_V4 = 0x20181016;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 条带锁的数量,必须是2的幂
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * 条带锁,按缓存键的64位哈希(也就是缓存文件名)分配.同一个缓存文件的读写总是拿到同一把锁
+     */
+    private final ReentrantLock[] mLocks = new ReentrantLock[LOCK_STRIPES];
+
+    /**
+     * 逻辑时钟,每次访问缓存项时递增,记录到{@link CacheHeader#lastAccess},重写索引时用它保存缓存项的新近度.
+     * 读线程之间不需要为维护访问顺序而互斥
+     */
+    private final AtomicLong mAccessClock = new AtomicLong(0);
+
+    /**
+     * 同一时间只允许一个线程做淘汰
+     */
+    private final ReentrantLock mPruneLock = new ReentrantLock();
+
+    /**
+     * 下一个会被淘汰的缓存项,由维护线程每轮结束时算出,写入线程做准入判断时直接拿来比较,不需要遍历所有缓存项.
+     * 两轮维护之间它可能已经被访问、替换或删除,只是一个近似
+     */
+    private volatile CacheHeader mVictimCandidate;
+
+    /**
+     * 后台维护线程,第一次需要时创建
+     */
+    private ScheduledExecutorService mMaintenanceExecutor;
+
+    /**
+     * 是否已经有一次还没开始执行的后台维护,避免每次写入都提交一个任务
+     */
+    private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean(false);
+
+    /**
+     * 每轮维护结束时通过它唤醒在{@link #awaitSpace(String, long)}中等待的写入线程
+     */
+    private final Object mMaintenanceDone = new Object();
+
+    /**
+     * 定期清理是否已经启动
+     */
+    private boolean mSweepStarted = false;
+
+    /**
+     * 完全过期(ttl已过)的缓存项保留多久之后被定期清理删掉.
+     * {@link volley.android.com.CacheDispatcher}把过期的缓存项交给网络请求,带着etag/Last-Modified去服务端验证,
+     * 返回304时用缓存的正文,只刷新元数据,所以不是一过期就删
+     */
+    private volatile long mExpiredRetentionMs = DEFAULT_EXPIRED_RETENTION_MS;
+
+    /**
+     * 上次保存新近度时{@link #mAccessClock}的值
+     */
+    private volatile long mSnapshotAccessClock = 0;
+
+    /**
+     * 是否已经有一次还没开始执行的新近度保存
+     */
+    private final AtomicBoolean mSnapshotScheduled = new AtomicBoolean(false);
+
+    /**
+     * 持久化索引,启动时优先从它恢复内存中的缓存项,避免逐个打开缓存文件
+     */
+    private final DiskCacheIndex mIndex;
+
+    /**
+     * 淘汰策略
+     */
+    private final EvictionPolicy mEvictionPolicy;
+
+    /**
+     * 预热期间(initialize()还没执行完)遇到内存中还不存在的缓存键时的处理策略
+     */
+    public enum WarmUpPolicy {
+        /**
+         * 只读取这个缓存键自己的文件,不等待整个目录加载完成
+         */
+        READ_KEY_FILE,
+
+        /**
+         * 直接当作缓存未命中,请求会被送去网络队列
+         */
+        MISS
+    }
+
+    /**
+     * 预热期间遇到未知缓存键时的处理策略,默认读取缓存键自己的文件
+     */
+    private volatile WarmUpPolicy mWarmUpPolicy = WarmUpPolicy.READ_KEY_FILE;
+
+    /**
+     * initialize()是否已经执行完成
+     */
+    private volatile boolean mInitialized = false;
+
+    /**
+     * 预热期间被删除的缓存键.它们可能还没有被加载到内存中,加载索引或者扫描目录时要跳过,否则删除会被加载撤销.
+     * initialize()执行完之后清空
+     */
+    private final Set<String> mRemovedDuringWarmUp =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * 是否按Content-Type压缩存储正文
+     */
+    private volatile boolean mCompressionEnabled = false;
+
+    /**
+     * 去重存储的正文块所在的子目录,不是分片目录的名字,目录扫描时会跳过它
+     */
+    private static final String BLOB_DIRECTORY = "blobs";
+
+    /**
+     * 写缓存文件时使用的临时目录,不是分片目录的名字,目录扫描时会跳过它.
+     * 缓存文件先完整写到这里再重命名到最终位置,启动时只需要清空这个目录,不用检查每一个缓存文件
+     */
+    private static final String TEMP_DIRECTORY = "tmp";
+
+    /**
+     * 没有记录正文校验和,旧版本写入的缓存文件
+     */
+    static final long NO_CHECKSUM = -1;
+
+    /**
+     * 小于这个大小的正文不去重,省下的空间抵不上多一个文件和一次哈希
+     */
+    private static final int DEDUP_MIN_BODY_SIZE = 1024;
+
+    /**
+     * 是否按内容哈希去重存储正文
+     */
+    private volatile boolean mDeduplicationEnabled = false;
+
+    /**
+     * 正文块的引用计数,键是内容哈希.只在内存中,启动时随着加载缓存项重新累计
+     */
+    private final ConcurrentHashMap<String, BlobRef> mBlobs = new ConcurrentHashMap<>();
+
+    /**
+     * 正文块的条带锁,按内容哈希分配.需要同时持有时总是先拿缓存键的条带锁再拿正文块的锁
+     */
+    private final Object[] mBlobLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * 启动后是否已经清理过没有被引用的正文块
+     */
+    private final AtomicBoolean mOrphanBlobsSwept = new AtomicBoolean(false);
+
+    /**
+     * 命中时第一次定位读取的字节数,常见的头部连同较小的正文一次就能读完
+     */
+    private static final int HEAD_READ_SIZE = 4 * 1024;
+
+    /**
+     * 第一次定位读取用的缓冲区,读线程之间复用
+     */
+    private final ByteArrayPool mReadBuffers = new ByteArrayPool(4 * HEAD_READ_SIZE);
+
     /**
      * 创建一个本地缓存实现DiskBasedCache的实例
      * @param rootDirectory 缓存落地文件的根目录
      * @param maxCacheSizeInBytes 缓存的最大容量
      */
-    public DiskBasedCache(File rootDirectory, int maxCacheSizeInBytes) {
+    public DiskBasedCache(File rootDirectory, long maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, new LruEvictionPolicy());
+    }
+
+    /**
+     * 创建一个使用指定淘汰策略的DiskBasedCache实例
+     * @param rootDirectory 缓存落地文件的根目录
+     * @param maxCacheSizeInBytes 缓存的最大容量
+     * @param evictionPolicy 淘汰策略,每个缓存实例使用自己的策略对象,不要共用
+     */
+    public DiskBasedCache(File rootDirectory, long maxCacheSizeInBytes, EvictionPolicy evictionPolicy) {
         mRootDirectory = rootDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mEvictionPolicy = evictionPolicy;
+        mIndex = new DiskCacheIndex(rootDirectory);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new ReentrantLock();
+            mBlobLocks[i] = new Object();
+        }
     }
 
     /**
@@ -82,263 +349,1909 @@ public class DiskBasedCache implements Cache{
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
     }
 
-    @Override
-    public void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files){
-                file.delete();
-            }
-        }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+    /**
+     * 设置预热期间遇到未知缓存键时的处理策略,配合{@link volley.android.com.RequestQueue#setAsyncCacheInitialization(boolean)}使用
+     * @param policy 处理策略
+     */
+    public void setWarmUpPolicy(WarmUpPolicy policy) {
+        mWarmUpPolicy = policy;
     }
 
     /**
-     * 更新disk on memory的内容
-     * @param key
-     * @param entry
+     * 设置是否压缩存储正文.开启后文本、JSON、XML等类型的正文以deflate压缩后写入,图片等本身已经压缩过的类型原样存储,
+     * 缓存容量按压缩后的大小计算.已经写入的缓存项不受影响,读取时按各自头部记录的编码方式解码
+     * @param enabled
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)){
-            mTotalSize += entry.size;
-        } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
-        }
-        mEntries.put(key, entry);
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
     }
 
     /**
-     * 删除这个key对应的缓存(disk on memory)
-     * @param key
+     * 设置是否按内容去重存储正文.开启后1KB以上的正文按内容哈希单独存成一个正文块,缓存文件中只有头部和正文块的引用,
+     * 不同缓存键下内容相同的正文(同一张图片的不同URL、分页接口重复的结果等)只占一份空间,写入已有的正文时不再写正文.
+     * 正文块按引用计数,最后一个引用它的缓存项被删除或淘汰时才删除.已经写入的缓存项不受影响
+     * @param enabled
      */
-    private void removeEntry(String key) {
-        CacheHeader removed = mEntries.remove(key);
-        if (removed != null) {
-            mTotalSize -= removed.size;
-        }
+    public void setDeduplicationEnabled(boolean enabled) {
+        mDeduplicationEnabled = enabled;
     }
 
-    @Override
-    public Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        if (entry == null){
-            return null;
-        }
-
-        File file = getFileForKey(key);
-
-        try {
-            //从文件读输入流
-            CountingInputStream cis = new CountingInputStream(
-                    new BufferedInputStream(createInputStream(file)), file.length());
-
-            try {
-                //1.从输入流中读出entry on Disk这个CacheHeader
-                CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
-                if (!TextUtils.equals(key, entryOnDisk.key)){
-                    //同一个文件被写入了两个缓存对象!
-                    VolleyLog.d("%s: key=%s, found=%s",
-                            file.getAbsolutePath(), key, entryOnDisk.key);
-
-                    //删除旧key的缓存内容，因为文件的数据已经被覆盖了
-                    removeEntry(key);
-                    return null;
-                }
-
-                //2.从输入流中读出剩下的数据
-                byte[] data = streamToBytes(cis, cis.bytesRemaining());
-
-                return entry.toCacheEntry(data);
-            } finally {
-                cis.close();
-            }
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-
-            //读取缓存都出错了，删除这个key对应的缓存
-            remove(key);
+    /**
+     * 设置完全过期的缓存项保留多久之后被定期清理删掉,默认1天.保留期内再次请求时发出条件请求,服务端返回304就不用重新下载正文.
+     * 缓存超过高水位线时过期的缓存项不论保留时间总是最先被淘汰
+     * @param retentionMs 保留时间(ms),0表示一过期就删
+     */
+    public void setExpiredEntryRetention(long retentionMs) {
+        mExpiredRetentionMs = retentionMs;
+    }
 
-            return null;
-        }
+    /**
+     * 返回initialize()是否已经执行完成
+     * @return
+     */
+    public boolean isInitialized() {
+        return mInitialized;
     }
 
     /**
-     * 返回一个key对应的文件对象,该对象的根目录是mRootDirectory
-     * @param key 文件对象对应的key
+     * 返回当前缓存使用的总大小(字节)
      * @return
      */
-    public File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+    public long getTotalSize() {
+        return mTotalSize.get();
     }
 
     /**
-     * 为缓存键创建一个伪随机文件名
-     * @param key
+     * 返回缓存的最大容量(字节)
      * @return
      */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
+    public long getMaxSizeInBytes() {
+        return mMaxCacheSizeInBytes;
+    }
 
-        //作为文件名 = 左半部分取哈希码 + 右半部分哈希码
-        String localFileName = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFileName += String.valueOf(key.substring(firstHalfLength).hashCode());
+    /**
+     * 返回缓存键对应的条带锁
+     * @param key 缓存键
+     * @return
+     */
+    private ReentrantLock lockFor(String key) {
+        return lockForHash(hashKey(key));
+    }
 
-        return localFileName;
+    /**
+     * 返回缓存键哈希对应的条带锁.缓存文件以键的哈希命名,所以同一个缓存文件总是对应同一把锁
+     * @param hash {@link #hashKey(String)}的结果
+     * @return
+     */
+    private ReentrantLock lockForHash(long hash) {
+        int h = (int) (hash ^ (hash >>> 32));
+        h ^= (h >>> 16);
+        return mLocks[h & (LOCK_STRIPES - 1)];
     }
 
     /**
-     * 缓存压力大，缩小缓存的大小
-     * @param neededSpace 目前需要的缓存大小
+     * 按固定顺序获取所有条带锁,用于clear和重写索引这类需要整个缓存静止的操作.调用者不能已经持有任何一把条带锁
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if (neededSpace + mTotalSize < mMaxCacheSizeInBytes){
-            return;
+    private void lockAll() {
+        for (ReentrantLock lock : mLocks) {
+            lock.lock();
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+    private void unlockAll() {
+        for (int i = mLocks.length - 1; i >= 0; i--) {
+            mLocks[i].unlock();
         }
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
+    /**
+     * 一个正文块的引用计数和大小
+     */
+    private static class BlobRef {
+        int refCount;
 
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()){
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
+        final long size;
 
-            //按返回顺序删掉缓存文件
-            boolean deleted = getFileForKey(e.key).delete();
+        BlobRef(long size) {
+            this.size = size;
+        }
+    }
 
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                        e.key, getFilenameForKey(e.key));
-            }
+    private Object blobLockFor(String blobHash) {
+        return mBlobLocks[blobHash.hashCode() & (LOCK_STRIPES - 1)];
+    }
 
-            //删掉缓存文件在内存里面的缓存项
-            iterator.remove();
+    /**
+     * 返回正文块的文件,按哈希的前两位十六进制数分目录,例如 blobs/a3/a3f0...
+     * @param blobHash
+     * @return
+     */
+    private File getBlobFile(String blobHash) {
+        return new File(mRootDirectory, BLOB_DIRECTORY + File.separator + blobHash.substring(0, 2)
+                + File.separator + blobHash);
+    }
 
-            prunedFiles++;
+    /**
+     * 增加一次正文块的引用,第一次引用时把正文块的大小计入缓存容量.调用者必须持有引用它的缓存键对应的条带锁
+     * @param blobHash 正文内容哈希
+     * @param size 正文块的大小,为-1时(加载已有的缓存项)从文件获得
+     * @return 正文块的大小
+     */
+    private long retainBlob(String blobHash, long size) {
+        synchronized (blobLockFor(blobHash)) {
+            BlobRef ref = mBlobs.get(blobHash);
+            if (ref == null) {
+                File file = getBlobFile(blobHash);
+                //文件不存在时大小为0,读取时出错会把引用它的缓存项删掉
+                ref = new BlobRef(size < 0 ? file.length() : size);
+                mBlobs.put(blobHash, ref);
+                mTotalSize.addAndGet(ref.size);
+            }
+            ref.refCount++;
+            return ref.size;
+        }
+    }
 
-            //删到水位线以下了
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+    /**
+     * 为写入缓存项准备正文块:已经存在时只增加引用,正文一个字节都不写;不存在时写入正文块,
+     * 先写临时文件再重命名,不会留下写了一半的正文块.
+     * 调用者必须持有缓存键对应的条带锁,写完缓存文件后调用{@link #releaseBlob(String)}放掉这次引用,
+     * 缓存项自己的引用在{@link #putEntry(String, CacheHeader)}中增加
+     * @param blobHash 正文内容哈希
+     * @param body 编码后的正文
+     * @return 正文块原来是否已经存在
+     * @throws IOException 写入正文块失败
+     */
+    private boolean pinBlob(String blobHash, byte[] body) throws IOException {
+        synchronized (blobLockFor(blobHash)) {
+            if (mBlobs.containsKey(blobHash)) {
+                retainBlob(blobHash, -1);
+                return true;
+            }
+            File file = getBlobFile(blobHash);
+            File temp = new File(file.getPath() + ".tmp");
+            OutputStream os = createOutputStreamAndParent(temp);
+            try {
+                os.write(body);
+            } finally {
+                os.close();
             }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not rename " + temp.getAbsolutePath());
+            }
+            retainBlob(blobHash, body.length);
+            return false;
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    /**
+     * 与{@link #pinBlob(String, byte[])}相同,正文块不存在时直接把落地的正文文件移过来作为正文块,正文不经过内存.
+     * 不在同一个文件系统中无法移动时退回到复制
+     * @param blobHash 正文内容哈希,见{@link ResponseBody#getContentHash()}
+     * @param body 落地到文件的正文
+     * @return 正文块原来是否已经存在
+     * @throws IOException 移动和复制都失败
+     */
+    private boolean pinSpooledBlob(String blobHash, ResponseBody body) throws IOException {
+        synchronized (blobLockFor(blobHash)) {
+            if (mBlobs.containsKey(blobHash)) {
+                retainBlob(blobHash, -1);
+                return true;
+            }
+            File file = getBlobFile(blobHash);
+            File parent = file.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            if (!body.moveTo(file)) {
+                File temp = new File(file.getPath() + ".tmp");
+                InputStream is = body.openStream();
+                try {
+                    OutputStream os = createOutputStreamAndParent(temp);
+                    try {
+                        byte[] buffer = new byte[8 * 1024];
+                        int n;
+                        while ((n = is.read(buffer)) != -1) {
+                            os.write(buffer, 0, n);
+                        }
+                    } finally {
+                        os.close();
+                    }
+                } finally {
+                    is.close();
+                }
+                if (!temp.renameTo(file)) {
+                    temp.delete();
+                    throw new IOException("Could not rename " + temp.getAbsolutePath());
+                }
+            }
+            retainBlob(blobHash, body.length());
+            return false;
         }
     }
 
     /**
-     * 新增或者替换缓存项（落地)
-     * @param key 缓存项的键
-     * @param entry 新的缓存项
+     * 减少一次正文块的引用,没有引用时删除正文块
+     * @param blobHash
      */
-    @Override
+    private void releaseBlob(String blobHash) {
+        synchronized (blobLockFor(blobHash)) {
+            BlobRef ref = mBlobs.get(blobHash);
+            if (ref == null || --ref.refCount > 0) {
+                return;
+            }
+            mBlobs.remove(blobHash);
+            mTotalSize.addAndGet(-ref.size);
+            File file = getBlobFile(blobHash);
+            if (!file.delete() && file.exists()) {
+                VolleyLog.d("Could not delete cache blob %s", file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 读出正文块的全部内容
+     * @param blobHash
+     * @return
+     * @throws IOException
+     */
+    private byte[] readBlob(String blobHash) throws IOException {
+        RandomAccessFile raf = createRandomAccessFile(getBlobFile(blobHash));
+        try {
+            FileChannel channel = raf.getChannel();
+            byte[] blob = newBodyArray(channel.size());
+            readFully(channel, blob, 0, blob.length, 0);
+            return blob;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 删除没有被任何缓存项引用的正文块,以及写到一半的临时文件.进程在写完正文块、写缓存文件之前被杀掉时会留下这样的文件.
+     * 只能在所有缓存项都加载完之后调用
+     */
+    private void deleteOrphanBlobs() {
+        File[] dirs = new File(mRootDirectory, BLOB_DIRECTORY).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        int deleted = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                synchronized (blobLockFor(name.endsWith(".tmp") ? name.substring(0, name.length() - 4) : name)) {
+                    if (name.endsWith(".tmp") || !mBlobs.containsKey(name)) {
+                        if (file.delete()) {
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        if (deleted > 0) {
+            VolleyLog.d("Deleted %d orphan cache blobs", deleted);
+        }
+    }
+
+    /**
+     * 计算正文的内容哈希(SHA-1的十六进制表示)
+     * @param body
+     * @return
+     */
+    private static String hashBody(byte[] body) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest(body));
+    }
+
+    /**
+     * 返回字节数组的十六进制表示(小写),正文块以它命名
+     * @param hash
+     * @return
+     */
+    static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public void clear() {
+        lockAll();
+        try {
+            deleteContents(mRootDirectory);
+            mEntries.clear();
+            mSortedKeys.clear();
+            mTagIndex.clear();
+            mBlobs.clear();
+            mTotalSize.set(0);
+            mIndex.delete();
+        } finally {
+            unlockAll();
+        }
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * 更新disk on memory的内容,调用者必须持有缓存键对应的条带锁
+     * @param key
+     * @param entry
+     */
+    private void putEntry(String key, CacheHeader entry) {
+        if (entry.blobHash != null) {
+            entry.blobSize = retainBlob(entry.blobHash, -1);
+        }
+        touch(entry);
+        CacheHeader oldEntry = mEntries.put(key, entry);
+        if (oldEntry == null){
+            mTotalSize.addAndGet(entry.size);
+            mSortedKeys.add(key);
+        } else {
+            mTotalSize.addAndGet(entry.size - oldEntry.size);
+            untag(key, oldEntry.tags);
+            if (oldEntry.blobHash != null) {
+                releaseBlob(oldEntry.blobHash);
+            }
+        }
+        for (String tag : entry.tags) {
+            Set<String> keys = mTagIndex.get(tag);
+            if (keys == null) {
+                Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                keys = mTagIndex.putIfAbsent(tag, created);
+                if (keys == null) {
+                    keys = created;
+                }
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * 从标签索引中去掉一个缓存键,调用者必须持有缓存键对应的条带锁
+     */
+    private void untag(String key, Set<String> tags) {
+        for (String tag : tags) {
+            Set<String> keys = mTagIndex.get(tag);
+            if (keys != null) {
+                keys.remove(key);
+                //空集合留在索引里,标签的数量有限,不值得为删除它和并发的添加做同步
+            }
+        }
+    }
+
+    /**
+     * 记录一次对缓存项的访问,更新它的访问时间和淘汰优先级
+     * @param entry
+     */
+    private void touch(CacheHeader entry) {
+        entry.lastAccess = mAccessClock.incrementAndGet();
+        entry.priority = mEvictionPolicy.onAccess(entry.key, entry.size + entry.blobSize, entry.networkTimeMs);
+
+        //加载期间的访问只是在重放保存下来的顺序,不需要保存
+        if (mInitialized && entry.lastAccess - mSnapshotAccessClock >= SNAPSHOT_ACCESS_THRESHOLD
+                && mSnapshotScheduled.compareAndSet(false, true)) {
+            getMaintenanceExecutor().execute(mSnapshotTask);
+        }
+    }
+
+    /**
+     * 保存缓存项的新近度和淘汰策略的内部状态,下次启动时{@link #initialize()}按保存的顺序恢复,
+     * 重启之后第一次淘汰不会误删最热的缓存项.
+     * <p>
+     * 缓存项被访问一定次数之后,以及每次定期清理时,如果有新的访问,会在后台自动保存.
+     * 进程随时可能被系统杀掉,可以在Activity#onStop()或者onTrimMemory()中主动调用一次.
+     * 保存期间会短暂阻塞其他线程的读写,不要在主线程调用
+     * </p>
+     */
+    public void saveAccessState() {
+        long clock = mAccessClock.get();
+        //重写索引时按lastAccess从旧到新排列,索引中的记录顺序就是新近度
+        rewriteIndex();
+        if (mEvictionPolicy instanceof EvictionPolicy.Persistable) {
+            mIndex.savePolicyState((EvictionPolicy.Persistable) mEvictionPolicy);
+        }
+        mSnapshotAccessClock = clock;
+    }
+
+    /**
+     * 有新的访问时保存一次新近度
+     */
+    private void saveAccessStateIfChanged() {
+        if (mAccessClock.get() != mSnapshotAccessClock) {
+            saveAccessState();
+        }
+    }
+
+    /**
+     * 删除这个key对应的缓存(disk on memory),调用者必须持有缓存键对应的条带锁
+     * @param key
+     */
+    private void removeEntry(String key) {
+        boolean removed = removeEntryFromMemory(key);
+        if (!mInitialized) {
+            //缓存项可能只是还没有加载,不管内存中有没有都要记下删除,索引中的记录也要作废
+            mRemovedDuringWarmUp.add(key);
+            mIndex.recordRemove(key);
+        } else if (removed) {
+            mIndex.recordRemove(key);
+        }
+    }
+
+    /**
+     * 只从内存中删除缓存项,不写索引,调用者必须持有缓存键对应的条带锁
+     * @return 缓存项是否存在
+     */
+    private boolean removeEntryFromMemory(String key) {
+        CacheHeader removed = mEntries.remove(key);
+        if (removed == null) {
+            return false;
+        }
+        mTotalSize.addAndGet(-removed.size);
+        mSortedKeys.remove(key);
+        untag(key, removed.tags);
+        if (removed.blobHash != null) {
+            releaseBlob(removed.blobHash);
+        }
+        return true;
+    }
+
+    @Override
+    public Entry get(String key) {
+        mEvictionPolicy.recordRequest(key);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            return getLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 记录一次没有读取缓存项的命中:计一次请求,更新访问时间和淘汰优先级.
+     * 只更新内存中缓存项的两个volatile字段,不需要条带锁;和并发的替换竞争时更新的是旧对象,没有影响
+     */
+    @Override
+    public void recordAccess(String key) {
+        mEvictionPolicy.recordRequest(key);
+        CacheHeader entry = mEntries.get(key);
+        if (entry != null) {
+            touch(entry);
+        }
+    }
+
+    /**
+     * 读取缓存项,调用者必须持有缓存键对应的条带锁
+     */
+    private Entry getLocked(String key) {
+        CacheHeader entry = mEntries.get(key);
+        File file = getFileForKey(key);
+        if (entry == null){
+            //预热期间缓存项可能只是还没被加载,按策略决定是否直接读它自己的文件
+            if (mInitialized || mWarmUpPolicy != WarmUpPolicy.READ_KEY_FILE || !file.exists()) {
+                return null;
+            }
+        }
+
+        try {
+            //用定位读取代替输入流:头部和较小的正文一次读完,正文直接读进最终的数组,不经过中间缓冲区
+            RandomAccessFile raf = createRandomAccessFile(file);
+            byte[] head = mReadBuffers.getBuf(HEAD_READ_SIZE);
+            try {
+                FileChannel channel = raf.getChannel();
+                long fileLength = channel.size();
+                int headLength = (int) Math.min(head.length, fileLength);
+                readFully(channel, head, 0, headLength, 0);
+
+                //1.从文件开头解析出entry on Disk这个CacheHeader
+                CacheHeader entryOnDisk;
+                int bodyOffset = bufferedHeaderLength(head, headLength);
+                if (bodyOffset > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(head, 0, bodyOffset).order(ByteOrder.LITTLE_ENDIAN);
+                    int magic = buffer.getInt();
+                    buffer.position(8);
+                    entryOnDisk = CacheHeader.parseBufferedHeader(magic, buffer);
+                } else {
+                    //旧格式的文件,或者头部比第一次读出来的还长,退回到从输入流解析
+                    CountingInputStream cis = new CountingInputStream(
+                            new BufferedInputStream(Channels.newInputStream(channel.position(0))), fileLength);
+                    entryOnDisk = CacheHeader.readHeader(cis);
+                    bodyOffset = (int) (fileLength - cis.bytesRemaining());
+                }
+                if (!key.equals(entryOnDisk.key)){
+                    //同一个文件被写入了两个缓存对象!
+                    VolleyLog.d("%s: key=%s, found=%s",
+                            file.getAbsolutePath(), key, entryOnDisk.key);
+
+                    //删除旧key的缓存内容，因为文件的数据已经被覆盖了
+                    removeEntry(key);
+                    return null;
+                }
+
+                //2.读出剩下的正文,去重存储的正文在正文块中
+                byte[] data;
+                if (entryOnDisk.blobHash != null) {
+                    data = readBlob(entryOnDisk.blobHash);
+                } else {
+                    data = newBodyArray(fileLength - bodyOffset);
+                    //头部比第一次读出来的还长时,第一次读取中没有正文
+                    int buffered = Math.max(0, Math.min(headLength - bodyOffset, data.length));
+                    if (buffered > 0) {
+                        System.arraycopy(head, bodyOffset, data, 0, buffered);
+                    }
+                    readFully(channel, data, buffered, data.length - buffered, bodyOffset + buffered);
+                }
+                //旧版本写入的文件没有校验和
+                if (entryOnDisk.checksum != NO_CHECKSUM && entryOnDisk.checksum != checksum(data)) {
+                    throw new IOException("Checksum mismatch");
+                }
+                data = BodyCodec.decode(entryOnDisk.codec, data, entryOnDisk.dataLength);
+
+                if (entry == null) {
+                    //预热期间直接读出来的缓存项,顺便放到内存中,后面的目录扫描会跳过它
+                    entryOnDisk.size = fileLength;
+                    putEntry(key, entryOnDisk);
+                } else {
+                    touch(entry);
+                }
+
+                //内存中的缓存项可能是从索引恢复的,只有部分元数据,这里以文件中的头部为准
+                return entryOnDisk.toCacheEntry(data);
+            } finally {
+                mReadBuffers.returnBuf(head);
+                raf.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+
+            //读取缓存都出错了，删除这个key对应的缓存
+            removeLocked(key);
+
+            return null;
+        }
+    }
+
+    /**
+     * 第一次读取已经读出的字节中是否包含了完整的第三版或第四版头部
+     * @param head 文件开头的字节
+     * @param length head中有效的字节数
+     * @return 包含完整的头部时返回头部(连同magic和头部长度)的总长度,也就是正文的偏移,否则返回-1
+     */
+    private static int bufferedHeaderLength(byte[] head, int length) {
+        if (length < 8) {
+            return -1;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(head, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        int magic = buffer.getInt(0);
+        if (magic != CACHE_MAGIC_V3 && magic != CACHE_MAGIC_V4) {
+            return -1;
+        }
+        int headerLength = buffer.getInt(4);
+        if (headerLength < 0 || headerLength > length - 8) {
+            return -1;
+        }
+        return 8 + headerLength;
+    }
+
+    /**
+     * 为正文分配数组,长度超出数组的上限说明文件已经损坏
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    private static byte[] newBodyArray(long length) throws IOException {
+        if (length < 0 || (int) length != length) {
+            throw new IOException("body length=" + length);
+        }
+        return new byte[(int) length];
+    }
+
+    /**
+     * 从文件的指定位置开始读满length个字节,一次read()不保证读满,需要循环读
+     * @param channel
+     * @param dst 目标数组
+     * @param offset 目标数组中的偏移
+     * @param length 要读取的字节数
+     * @param position 文件中的位置
+     * @throws IOException 文件不够长
+     */
+    static void readFully(FileChannel channel, byte[] dst, int offset, int length, long position)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position() - offset);
+            if (n < 0) {
+                throw new IOException("readFully EOF at " + (position + buffer.position() - offset));
+            }
+        }
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        Entry metadata = getMetadataInternal(key);
+        //未命中或者过期时调用者不会再调用get,在这里计一次请求;命中时由随后的get计数,每次请求只计一次
+        if (metadata == null || metadata.isExpired()) {
+            mEvictionPolicy.recordRequest(key);
+        }
+        return metadata;
+    }
+
+    private Entry getMetadataInternal(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            CacheHeader entry = mEntries.get(key);
+            if (entry == null) {
+                //预热期间与get()相同的处理,但只读头部
+                File file = getFileForKey(key);
+                if (mInitialized || mWarmUpPolicy != WarmUpPolicy.READ_KEY_FILE || !file.exists()) {
+                    return null;
+                }
+                CacheHeader entryOnDisk = readHeaderOnly(key, file);
+                if (entryOnDisk == null) {
+                    return null;
+                }
+                entryOnDisk.size = file.length();
+                putEntry(key, entryOnDisk);
+                return entryOnDisk.toCacheEntry(null);
+            }
+
+            if (!entry.hasFullMetadata()) {
+                //从索引恢复的缓存项只有ttl等少量元数据,第一次用到时补读一次文件头部
+                CacheHeader entryOnDisk = readHeaderOnly(key, getFileForKey(key));
+                if (entryOnDisk == null) {
+                    return null;
+                }
+                entryOnDisk.copyStateFrom(entry);
+                mEntries.put(key, entryOnDisk);
+                entry = entryOnDisk;
+            }
+            return entry.toCacheEntry(null);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 只读取缓存文件的头部,不读正文.调用者必须持有缓存键对应的条带锁
+     * @param key 缓存键
+     * @param file 缓存文件
+     * @return 文件的头部,读取失败或者文件属于其他缓存键时返回null(并清理掉对应的缓存项)
+     */
+    private CacheHeader readHeaderOnly(String key, File file) {
+        try {
+            CountingInputStream cis = new CountingInputStream(
+                    new BufferedInputStream(createInputStream(file)), file.length());
+            try {
+                CacheHeader entryOnDisk = CacheHeader.readHeader(cis);
+                if (!key.equals(entryOnDisk.key)) {
+                    VolleyLog.d("%s: key=%s, found=%s",
+                            file.getAbsolutePath(), key, entryOnDisk.key);
+                    removeEntry(key);
+                    return null;
+                }
+                return entryOnDisk;
+            } finally {
+                cis.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeLocked(key);
+            return null;
+        }
+    }
+
+    /**
+     * 返回一个key对应的文件对象,该对象的根目录是mRootDirectory
+     * @param key 文件对象对应的key
+     * @return
+     */
+    public File getFileForKey(String key) {
+        return new File(mRootDirectory, getFilenameForKey(key));
+    }
+
+    /**
+     * 返回缓存键对应的文件相对于根目录的路径.
+     * <p>
+     * 文件名是缓存键64位哈希的16位十六进制表示,按哈希的前两位十六进制数分到两级子目录中(16 x 16个目录),
+     * 例如 a/3/a3f0...,缓存项再多单个目录下的文件数也不会太多
+     * </p>
+     * @param key
+     * @return
+     */
+    private String getFilenameForKey(String key) {
+        return toRelativePath(hashKey(key));
+    }
+
+    /**
+     * 计算缓存键的64位哈希(FNV-1a,最后再做一次混淆),不产生任何临时对象.
+     * 几万个缓存项之间发生碰撞的概率在十亿分之一以下,不同的缓存键实际上不会再写到同一个文件
+     * @param key
+     * @return
+     */
+    static long hashKey(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = key.length(); i < n; i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * 文件名的长度,64位哈希的十六进制表示
+     */
+    private static final int FILE_NAME_LENGTH = 16;
+
+    private static String toRelativePath(long hash) {
+        char[] path = new char[4 + FILE_NAME_LENGTH];
+        for (int i = 0; i < FILE_NAME_LENGTH; i++) {
+            path[4 + i] = HEX_DIGITS[(int) (hash >>> (60 - 4 * i)) & 0xf];
+        }
+        path[0] = path[4];
+        path[1] = File.separatorChar;
+        path[2] = path[5];
+        path[3] = File.separatorChar;
+        return new String(path);
+    }
+
+    /**
+     * 解析缓存文件名中的哈希
+     * @param name 文件名
+     * @return 不是缓存文件名时返回null
+     */
+    private static Long parseFileName(String name) {
+        if (name.length() != FILE_NAME_LENGTH) {
+            return null;
+        }
+        long hash = 0;
+        for (int i = 0; i < FILE_NAME_LENGTH; i++) {
+            int digit = Character.digit(name.charAt(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            hash = (hash << 4) | digit;
+        }
+        return hash;
+    }
+
+    /**
+     * 是否是一级或二级分片目录的名字(一位十六进制数)
+     */
+    private static boolean isShardName(String name) {
+        return name.length() == 1 && Character.digit(name.charAt(0), 16) >= 0;
+    }
+
+    /**
+     * 返回按最近访问时间从旧到新排序的缓存项快照
+     * @return
+     */
+    private List<CacheHeader> snapshotByRecency() {
+        return snapshot(false);
+    }
+
+    /**
+     * 返回按淘汰优先级从小到大(最先被淘汰的在前)排序的缓存项快照
+     * @return
+     */
+    private List<CacheHeader> snapshotByPriority() {
+        return snapshot(true);
+    }
+
+    private List<CacheHeader> snapshot(boolean byPriority) {
+        //lastAccess/priority会被读线程并发修改,必须先把它固定下来再排序,否则比较结果前后不一致
+        List<AccessSnapshot> snapshot = new ArrayList<>(mEntries.size());
+        for (CacheHeader header : mEntries.values()) {
+            snapshot.add(new AccessSnapshot(header, byPriority));
+        }
+        Collections.sort(snapshot, new Comparator<AccessSnapshot>() {
+            @Override
+            public int compare(AccessSnapshot lhs, AccessSnapshot rhs) {
+                return Double.compare(lhs.order, rhs.order);
+            }
+        });
+
+        List<CacheHeader> result = new ArrayList<>(snapshot.size());
+        for (AccessSnapshot item : snapshot) {
+            result.add(item.header);
+        }
+        return result;
+    }
+
+    /**
+     * 某一时刻缓存项的访问时间或淘汰优先级
+     */
+    private static class AccessSnapshot {
+        final CacheHeader header;
+        final double order;
+
+        AccessSnapshot(CacheHeader header, boolean byPriority) {
+            this.header = header;
+            this.order = byPriority ? header.priority : header.lastAccess;
+        }
+    }
+
+    /**
+     * 返回当前淘汰优先级最小(下一个会被淘汰)的缓存项,缓存为空时返回null
+     * @return
+     */
+    private CacheHeader findVictim() {
+        CacheHeader victim = null;
+        double lowest = 0;
+        for (CacheHeader header : mEntries.values()) {
+            double priority = header.priority;
+            if (victim == null || priority < lowest) {
+                victim = header;
+                lowest = priority;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * 执行一次缓存维护,正常情况下由后台维护线程调用,也可以在空闲时主动调用.
+     * <ol>
+     *     <li>删掉过期超过保留时间的缓存项;缓存超过高水位线时删掉所有过期的缓存项</li>
+     *     <li>仍然超过高水位线时,按{@link CacheHeader#priority}对缓存项快照排序,从优先级最小的开始淘汰到低水位线以下,
+     *     默认策略下就是从最久未访问的开始.这是一个近似的顺序:快照之后发生的访问不会影响本轮的淘汰顺序</li>
+     * </ol>
+     * 每个缓存项只在删除时短暂持有它的条带锁,维护期间读写照常进行.调用者不能持有任何条带锁
+     */
+    void runMaintenance() {
+        mMaintenanceScheduled.set(false);
+
+        mPruneLock.lock();
+        try {
+            runMaintenanceLocked();
+        } finally {
+            mPruneLock.unlock();
+        }
+    }
+
+    /**
+     * 执行一轮维护,最后更新{@link #mVictimCandidate},调用者必须持有{@link #mPruneLock}
+     */
+    private void runMaintenanceLocked() {
+        long before = mTotalSize.get();
+        long startTime = SystemClock.elapsedRealtime();
+        boolean overHighWater = before >= mMaxCacheSizeInBytes * HIGH_WATER_FACTOR;
+
+        //先清理过期的缓存项,它们命中了也要去网络验证,是最不值得保留的
+        long now = System.currentTimeMillis();
+        long expiredBefore = overHighWater ? now : now - mExpiredRetentionMs;
+        int expiredFiles = 0;
+        for (CacheHeader e : mEntries.values()) {
+            if (e.ttl < expiredBefore && evict(e)) {
+                expiredFiles++;
+            }
+        }
+
+        int prunedFiles = 0;
+        if (mTotalSize.get() >= mMaxCacheSizeInBytes * HIGH_WATER_FACTOR) {
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries.");
+            }
+
+            for (CacheHeader e : snapshotByPriority()) {
+                //删到低水位线以下了
+                if (mTotalSize.get() < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    break;
+                }
+                if (evict(e)) {
+                    prunedFiles++;
+                }
+            }
+        }
+
+        if (VolleyLog.DEBUG && (expiredFiles > 0 || prunedFiles > 0)) {
+            VolleyLog.v("swept %d expired files, pruned %d files, %d bytes, %d ms", expiredFiles,
+                    prunedFiles, (mTotalSize.get() - before), SystemClock.elapsedRealtime() - startTime);
+        }
+
+        //下一次准入判断用的淘汰对象在这里算好,写入线程不用遍历
+        mVictimCandidate = findVictim();
+
+        synchronized (mMaintenanceDone) {
+            mMaintenanceDone.notifyAll();
+        }
+    }
+
+    /**
+     * 淘汰一个缓存项,快照之后被替换或删除了则跳过.调用者不能持有任何条带锁
+     * @param e 快照中的缓存项
+     * @return 是否删除了
+     */
+    private boolean evict(CacheHeader e) {
+        ReentrantLock lock = lockFor(e.key);
+        lock.lock();
+        try {
+            if (mEntries.get(e.key) != e) {
+                return false;
+            }
+
+            //按返回顺序删掉缓存文件
+            boolean deleted = getFileForKey(e.key).delete();
+            if (!deleted) {
+                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                        e.key, getFilenameForKey(e.key));
+            }
+
+            //删掉缓存文件在内存里面的缓存项
+            removeEntry(e.key);
+            mEvictionPolicy.onEvict(e.key, e.priority);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓存超过高水位线时提交一次后台维护
+     */
+    private void scheduleMaintenanceIfNeeded() {
+        if (mTotalSize.get() >= mMaxCacheSizeInBytes * HIGH_WATER_FACTOR) {
+            requestMaintenance();
+        }
+    }
+
+    /**
+     * 写入前的反压:写入之后会超过最大容量时,请后台维护线程淘汰,最多等{@link #BACKPRESSURE_TIMEOUT_MS}.
+     * 淘汰总是在维护线程做,写入线程只是等待.多个写入线程同时通过检查时可能稍微超过最大容量,下一轮维护会删回去.
+     * 调用者不能持有任何条带锁
+     * @param key 缓存项的键,替换已有的缓存项时只计算增加的大小
+     * @param neededSpace 新缓存项的大小
+     * @return 是否有空间写入,false时调用者放弃这次写入
+     */
+    private boolean awaitSpace(String key, long neededSpace) {
+        CacheHeader existing = mEntries.get(key);
+        long growth = existing == null ? neededSpace : neededSpace - existing.size;
+        long limit = (long) (mMaxCacheSizeInBytes * HARD_LIMIT_FACTOR);
+        if (growth + mTotalSize.get() < limit) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BACKPRESSURE_TIMEOUT_MS);
+        synchronized (mMaintenanceDone) {
+            while (growth + mTotalSize.get() >= limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                requestMaintenance();
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mMaintenanceDone, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 提交一次后台维护,已经有一次在排队时不重复提交
+     */
+    private void requestMaintenance() {
+        if (mMaintenanceScheduled.compareAndSet(false, true)) {
+            getMaintenanceExecutor().execute(mMaintenanceTask);
+        }
+    }
+
+    private final Runnable mMaintenanceTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                runMaintenance();
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Cache maintenance failed");
+            }
+        }
+    };
+
+    /**
+     * 定期清理,顺带保存新近度
+     */
+    private final Runnable mSweepTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                //第一次运行时所有缓存项都已经加载完,引用计数是完整的
+                if (mOrphanBlobsSwept.compareAndSet(false, true)) {
+                    deleteOrphanBlobs();
+                }
+                runMaintenance();
+                saveAccessStateIfChanged();
+            } catch (RuntimeException e) {
+                //不能让异常终止定期任务
+                VolleyLog.e(e, "Cache maintenance failed");
+            }
+        }
+    };
+
+    private final Runnable mSnapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            mSnapshotScheduled.set(false);
+            try {
+                saveAccessStateIfChanged();
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Saving cache access state failed");
+            }
+        }
+    };
+
+    /**
+     * 返回后台维护线程,第一次调用时创建
+     */
+    private synchronized ScheduledExecutorService getMaintenanceExecutor() {
+        if (mMaintenanceExecutor == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "volley-cache-maintenance");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mMaintenanceExecutor = executor;
+        }
+        return mMaintenanceExecutor;
+    }
+
+    /**
+     * 等待已经提交的后台维护执行完,测试使用
+     */
+    void awaitMaintenance() throws InterruptedException, ExecutionException {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            executor = mMaintenanceExecutor;
+        }
+        if (executor == null) {
+            return;
+        }
+        //维护线程只有一个,排在后面的空任务执行时,之前提交的维护都已经结束
+        do {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } while (mMaintenanceScheduled.get());
+    }
+
+    /**
+     * 新增或者替换缓存项（落地)
+     * @param key 缓存项的键
+     * @param entry 新的缓存项
+     */
+    @Override
     public void put(String key, Entry entry) {
-        //确保有缓存空间可以插入缓存项
-        pruneIfNeeded(entry.data.length);
+        if (entry.data == null && entry.body != null) {
+            putSpooled(key, entry);
+            return;
+        }
+
+        //压缩放在锁外面做,缓存空间按实际写入的大小计算
+        int codec = mCompressionEnabled ? BodyCodec.chooseCodec(entry) : BodyCodec.NONE;
+        byte[] body = BodyCodec.encode(codec, entry.data);
+        if (body == null) {
+            codec = BodyCodec.NONE;
+            body = entry.data;
+        }
+
+        //内容哈希和校验和也在锁外面算
+        String blobHash = null;
+        if (mDeduplicationEnabled && body.length >= DEDUP_MIN_BODY_SIZE) {
+            blobHash = hashBody(body);
+        }
+        long checksum = checksum(body);
+
+        //需要腾出空间时先问淘汰策略是否值得为新的缓存键淘汰别人,替换已有的缓存项总是接纳
+        if (!mEntries.containsKey(key) && !admit(key, body.length)) {
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Cache entry not admitted: %s", key);
+            }
+            return;
+        }
+
+        //后台淘汰跟不上写入时等它一会,写入线程自己不淘汰
+        if (!awaitSpace(key, body.length)) {
+            VolleyLog.d("Cache full, dropping entry for %s", key);
+            return;
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            putLocked(key, entry, codec, body, checksum, blobHash, null);
+        } finally {
+            lock.unlock();
+        }
+
+        //腾空间的事情交给后台维护线程,写入线程不等待删除文件
+        scheduleMaintenanceIfNeeded();
+
+        if (mIndex.needsRewrite(mEntries.size())) {
+            rewriteIndex();
+        }
+    }
+
+    /**
+     * 写入正文落地在文件中的缓存项.正文总是作为正文块存储(不压缩),落地的文件直接移过来成为正文块
+     * @param key 缓存项的键
+     * @param entry data为null,正文在{@link Entry#body}中
+     */
+    private void putSpooled(String key, Entry entry) {
+        ResponseBody body = entry.body;
+        String blobHash = body.getContentHash();
+        long checksum = body.getChecksum();
+        if (blobHash == null || checksum == ResponseBody.NO_CHECKSUM) {
+            //落地时没有算哈希,没法作为正文块,只能读回内存按普通的缓存项写入
+            if (SpooledEntries.readIntoMemory(key, entry)) {
+                put(key, entry);
+            }
+            return;
+        }
+
+        if (!mEntries.containsKey(key) && !admit(key, body.length())) {
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Cache entry not admitted: %s", key);
+            }
+            return;
+        }
+
+        if (!awaitSpace(key, body.length())) {
+            VolleyLog.d("Cache full, dropping entry for %s", key);
+            return;
+        }
+
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            putLocked(key, entry, BodyCodec.NONE, null, checksum, blobHash, body);
+        } finally {
+            lock.unlock();
+        }
+
+        scheduleMaintenanceIfNeeded();
+
+        if (mIndex.needsRewrite(mEntries.size())) {
+            rewriteIndex();
+        }
+    }
+
+    /**
+     * 询问淘汰策略是否接纳一个新的缓存键,写入后不会触发淘汰时总是接纳.
+     * 后台维护让缓存保持在高水位线以下,所以这里要和高水位线比较,和最大容量比较的话准入过滤几乎不会生效.
+     * <p>
+     * 和新缓存键比较的是维护线程上一轮算出的{@link #mVictimCandidate},写入线程不遍历缓存项,同时请维护线程重新算一次.
+     * 还没有算过或者它已经不在缓存中时直接接纳
+     * </p>
+     * @param key 新的缓存键
+     * @param neededSpace 新缓存项的大小
+     * @return
+     */
+    private boolean admit(String key, long neededSpace) {
+        if (neededSpace + mTotalSize.get() < mMaxCacheSizeInBytes * HIGH_WATER_FACTOR) {
+            return true;
+        }
+        requestMaintenance();
+        CacheHeader victim = mVictimCandidate;
+        return victim == null || mEntries.get(victim.key) != victim || mEvictionPolicy.admit(key, victim.key);
+    }
+
+    /**
+     * 写入缓存文件,调用者必须持有缓存键对应的条带锁.
+     * <p>
+     * 先把头部和正文完整写到{@link #TEMP_DIRECTORY}中的临时文件,再重命名覆盖最终的缓存文件.
+     * 进程在中途挂掉时,缓存文件要么还是旧的,要么已经是完整的新文件,读路径上不会遇到写了一半的文件;
+     * 写入失败时旧的缓存项原样保留
+     * </p>
+     * @param key 缓存键
+     * @param entry 缓存项
+     * @param codec 正文的编码方式
+     * @param body 按codec编码后的正文,spooled不为null时为null
+     * @param checksum 正文的校验和,见{@link #checksum(byte[])}
+     * @param blobHash 正文的内容哈希,不为null时正文存到共享的正文块中,缓存文件只有头部
+     * @param spooled 落地到文件的正文,不为null时blobHash也不为null,文件直接移过来成为正文块
+     */
+    private void putLocked(String key, Entry entry, int codec, byte[] body, long checksum, String blobHash,
+                           ResponseBody spooled) {
+        String fileName = getFilenameForKey(key);
+        File file = new File(mRootDirectory, fileName);
+        File temp = getTempFile(file);
+        CacheHeader e = new CacheHeader(key, entry);
+        e.codec = codec;
+        e.checksum = checksum;
+
+        if (blobHash != null) {
+            //正文块在缓存文件之前写好,旧的缓存文件还没有动,失败时直接放弃这次写入
+            try {
+                if (spooled != null) {
+                    pinSpooledBlob(blobHash, spooled);
+                } else {
+                    pinBlob(blobHash, body);
+                }
+            } catch (IOException ioe) {
+                VolleyLog.d("Failed to write cache blob for %s: %s", key, ioe.toString());
+                return;
+            }
+            e.blobHash = blobHash;
+        }
+
+        //缓存项按整个文件的大小计入容量,和启动时从文件加载的大小一致.正文块的大小单独计入容量,缓存项自己只算头部
+        byte[] header = e.toBytes();
+        e.size = blobHash != null ? header.length : header.length + body.length;
+
+        //先记索引再提交文件:进程若在中途挂掉,索引里最多多出一个与文件对不上的缓存项,get时以文件中的头部为准
+        mIndex.recordPut(e, fileName);
+        try {
+            BufferedOutputStream fos = new BufferedOutputStream(createOutputStreamAndParent(temp));
+            try {
+                fos.write(header);
+                if (blobHash == null) {
+                    fos.write(body);
+                }
+            } finally {
+                fos.close();
+            }
+            commitTempFile(temp, file);
+
+            putEntry(key, e);
+            return;
+        } catch (IOException ioe) {
+            VolleyLog.d("%s", ioe.toString());
+        } finally {
+            if (blobHash != null) {
+                releaseBlob(blobHash);
+            }
+        }
+
+        if (!temp.delete() && temp.exists()) {
+            VolleyLog.d("Could not clean up file %s", temp.getAbsolutePath());
+        }
+        //缓存文件没有动过,索引恢复到写入之前的状态
+        CacheHeader oldEntry = mEntries.get(key);
+        if (oldEntry != null) {
+            mIndex.recordPut(oldEntry, fileName);
+        } else {
+            mIndex.recordRemove(key);
+        }
+    }
+
+    /**
+     * 返回缓存文件写入时使用的临时文件.临时文件与缓存文件同名,缓存文件名对应的条带锁保证同一时间只有一个线程在写它
+     * @param file 缓存文件
+     * @return
+     */
+    private File getTempFile(File file) {
+        return new File(mRootDirectory, TEMP_DIRECTORY + File.separator + file.getName());
+    }
+
+    /**
+     * 把写好的临时文件重命名为缓存文件,原子地替换旧文件.分片目录还不存在时先创建目录
+     * @param temp 临时文件
+     * @param file 缓存文件
+     * @throws IOException 重命名失败,旧文件保持不变
+     */
+    private static void commitTempFile(File temp, File file) throws IOException {
+        if (temp.renameTo(file)) {
+            return;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && parent.mkdirs() && temp.renameTo(file)) {
+            return;
+        }
+        throw new IOException("Could not rename " + temp.getAbsolutePath());
+    }
+
+    /**
+     * 计算存储的正文的校验和(CRC32),读取正文时用它发现损坏的缓存文件
+     * @param body 编码后的正文
+     * @return
+     */
+    static long checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return crc.getValue();
+    }
+
+    /**
+     * 打开缓存文件的输出流,分片目录还不存在时先创建目录
+     */
+    private OutputStream createOutputStreamAndParent(File file) throws FileNotFoundException {
+        try {
+            return createOutputStream(file);
+        } catch (FileNotFoundException e) {
+            File parent = file.getParentFile();
+            if (parent == null || parent.exists()) {
+                throw e;
+            }
+            parent.mkdirs();
+            return createOutputStream(file);
+        }
+    }
+
+    /**
+     * 加载缓存目录.
+     * <p>
+     * 这个函数不会在整个加载过程中持有锁,每加载一个缓存文件只短暂地持有这个文件的条带锁,因此可以在后台线程执行,
+     * 期间其他线程的get/put照常进行:已经加载的缓存键直接命中,未加载的缓存键按{@link WarmUpPolicy}处理
+     * </p>
+     */
+    @Override
+    public void initialize() {
+        try {
+            if (!mRootDirectory.exists()){
+                if (!mRootDirectory.mkdir()){
+                    VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+                }
+                //TODO 这里有点不理解,这个return为什么不是在创建不成功之后才return?
+                return;
+            }
+
+            //上次运行时没有提交的临时文件,缓存文件本身不受影响
+            deleteContents(new File(mRootDirectory, TEMP_DIRECTORY));
+
+            //先恢复淘汰策略的状态,加载缓存项时的访问和准入判断都基于恢复后的状态
+            if (mEvictionPolicy instanceof EvictionPolicy.Persistable) {
+                mIndex.loadPolicyState((EvictionPolicy.Persistable) mEvictionPolicy);
+            }
+
+            //优先从索引恢复,索引不存在或者校验失败再退回到目录扫描
+            if (loadFromIndex()) {
+                return;
+            }
+
+            File[] files = mRootDirectory.listFiles();
+            if (files == null){
+                //目录下没有任何缓存文件
+                return;
+            }
+
+            for (File file : files){
+                if (DiskCacheIndex.isIndexFile(file)) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    if (isShardName(file.getName())) {
+                        loadShard(file);
+                    }
+                } else {
+                    //根目录下的文件是旧版本命名规则留下的
+                    migrateLegacyFile(file);
+                }
+            }
+
+            //扫描完成后生成一份新的索引,下次启动就不用再扫描了
+            rewriteIndex();
+        } finally {
+            resumePendingDeletes();
+            mSnapshotAccessClock = mAccessClock.get();
+            mInitialized = true;
+            //加载已经结束,不会再有缓存项被加载回来
+            mRemovedDuringWarmUp.clear();
+            startPeriodicSweep();
+        }
+    }
+
+    /**
+     * 启动定期清理,第一次清理在加载完成后马上进行,顺带处理上次运行时超出的容量
+     */
+    private synchronized void startPeriodicSweep() {
+        if (!mSweepStarted) {
+            mSweepStarted = true;
+            getMaintenanceExecutor().scheduleWithFixedDelay(mSweepTask, 0, SWEEP_INTERVAL_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 加载一个一级分片目录下的所有缓存文件
+     * @param shard 一级分片目录
+     */
+    private void loadShard(File shard) {
+        File[] subShards = shard.listFiles();
+        if (subShards == null) {
+            return;
+        }
+        for (File subShard : subShards) {
+            File[] files = subShard.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                Long hash = parseFileName(file.getName());
+                if (hash == null) {
+                    file.delete();
+                    continue;
+                }
+                loadFile(file, hash);
+            }
+        }
+    }
+
+    /**
+     * 读取一个缓存文件的头部,加到内存中
+     * @param file 缓存文件
+     * @param hash 文件名中的哈希
+     */
+    private void loadFile(File file, long hash) {
+        //这时还不知道文件属于哪个缓存键,但条带锁是按键的哈希分配的,文件名就是这个哈希
+        ReentrantLock lock = lockForHash(hash);
+        lock.lock();
+        try {
+            //文件内的数据大小(字节数)
+            long entrySize = file.length();
+
+            CountingInputStream cis = new CountingInputStream(new BufferedInputStream(createInputStream(file)), entrySize);
+
+            try {
+                CacheHeader entry = CacheHeader.readHeader(cis);
+                if (hashKey(entry.key) != hash) {
+                    //文件不在它应该在的位置
+                    throw new IOException("Misplaced cache file " + file.getAbsolutePath());
+                }
+
+                //当我们数据从文件读出来，这里传入的就是文件的长度，当我们put一个entry进来这里传入的就是data的字节数
+                entry.size = entrySize;
+
+                //已读出数据,存入mEntries.预热期间已经被put或者get过的缓存项比文件里的更新,不要覆盖;被删除过的不要加载回来
+                if (!mEntries.containsKey(entry.key) && !mRemovedDuringWarmUp.contains(entry.key)) {
+                    putEntry(entry.key, entry);
+                }
+            } finally {
+                //不管出现异常与否,都需要输入流
+                cis.close();
+            }
+
+        } catch (FileNotFoundException e) {
+            //预热期间被其他线程删掉了
+        } catch (IOException e) {
+            //非我族类,得而诛之
+            file.delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把旧版本命名规则(根目录下以缓存键左右两半的String.hashCode()拼接命名)的缓存文件搬到新的位置并加载
+     * @param file 旧的缓存文件
+     */
+    private void migrateLegacyFile(File file) {
+        //新版本不会再访问旧文件名,读头部时不需要持锁
+        CacheHeader entry;
+        try {
+            CountingInputStream cis = new CountingInputStream(
+                    new BufferedInputStream(createInputStream(file)), file.length());
+            try {
+                entry = CacheHeader.readHeader(cis);
+            } finally {
+                cis.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            return;
+        }
+
+        ReentrantLock lock = lockFor(entry.key);
+        lock.lock();
+        try {
+            File target = getFileForKey(entry.key);
+            if (mEntries.containsKey(entry.key) || target.exists() || mRemovedDuringWarmUp.contains(entry.key)) {
+                //预热期间已经写入了更新的版本,或者已经被删除
+                file.delete();
+                return;
+            }
+            File parent = target.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            if (!file.renameTo(target)) {
+                VolleyLog.d("Could not migrate %s", file.getAbsolutePath());
+                file.delete();
+                return;
+            }
+            entry.size = target.length();
+            putEntry(entry.key, entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 递归删除目录下的所有内容,目录本身保留
+     */
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * 从持久化索引中恢复内存中的缓存项,按索引记录的新近度顺序恢复访问时间,保留LRU顺序
+     * @return 恢复成功返回true
+     */
+    private boolean loadFromIndex() {
+        List<DiskCacheIndex.Record> records = mIndex.load();
+        if (records == null) {
+            return false;
+        }
+
+        //文件命名规则变了的话,索引中的文件名就对不上了,这份索引不能再用
+        for (DiskCacheIndex.Record record : records) {
+            if (!getFilenameForKey(record.header.key).equals(record.fileName)) {
+                VolleyLog.d("Cache index out of date, rescanning %s", mRootDirectory.getAbsolutePath());
+                mIndex.delete();
+                return false;
+            }
+        }
+
+        for (DiskCacheIndex.Record record : records) {
+            ReentrantLock lock = lockFor(record.header.key);
+            lock.lock();
+            try {
+                //预热期间已经被put或者get过的缓存项比索引里的更新,不要覆盖;被删除过的不要加载回来
+                if (!mEntries.containsKey(record.header.key) && !mRemovedDuringWarmUp.contains(record.header.key)) {
+                    putEntry(record.header.key, record.header);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 用内存中的缓存项重写索引文件,清除冗余记录.调用者不能持有任何条带锁
+     */
+    private void rewriteIndex() {
+        lockAll();
+        try {
+            List<CacheHeader> headers = snapshotByRecency();
+            List<String> fileNames = new ArrayList<>(headers.size());
+            for (CacheHeader header : headers) {
+                fileNames.add(getFilenameForKey(header.key));
+            }
+            mIndex.rewrite(headers, fileNames);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            CacheHeader onDisk = readCurrentHeaderLocked(key);
+            if (onDisk == null) {
+                return;
+            }
+            CacheHeader updated = onDisk.withMetadata(onDisk.etag, onDisk.serverDate, onDisk.lastModified,
+                    fullExpire ? 0 : onDisk.ttl, 0);
+            if (!rewriteMetadataLocked(onDisk, updated)) {
+                //etag没变,元数据段长度一定不变,走到这里是旧格式的文件或者写文件出错了
+                Entry entry = getLocked(key);
+                if (entry != null) {
+                    entry.softTtl = 0;
+                    if (fullExpire) {
+                        entry.ttl = 0;
+                    }
+                    //大小不变,不需要淘汰,直接在锁内重写(这条出错恢复的路径不再压缩,也不去重)
+                    putLocked(key, entry, BodyCodec.NONE, entry.data, checksum(entry.data), null, null);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 304时只刷新元数据.元数据段长度不变时直接在缓存文件里改写这一段,正文一个字节都不读也不写
+     */
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        boolean updated = false;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            CacheHeader onDisk = readCurrentHeaderLocked(key);
+            if (onDisk != null) {
+                updated = rewriteMetadataLocked(onDisk, onDisk.withMetadata(entry.etag, entry.serverDate,
+                        entry.lastModified, entry.ttl, entry.softTtl));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (updated) {
+            return;
+        }
+
+        //缓存项已经不存在,旧格式的文件,或者etag长度变了原地放不下,退回到整个重写
+        if (entry.data != null) {
+            put(key, entry);
+            return;
+        }
+        Entry current = get(key);
+        if (current != null) {
+            current.etag = entry.etag;
+            current.serverDate = entry.serverDate;
+            current.lastModified = entry.lastModified;
+            current.ttl = entry.ttl;
+            current.softTtl = entry.softTtl;
+            put(key, current);
+        }
+    }
+
+    /**
+     * 读出缓存项在文件中的当前头部,同时确认文件确实属于这个缓存键.调用者必须持有缓存键对应的条带锁
+     * @param key 缓存键
+     * @return 缓存项不存在或者读取失败时返回null
+     */
+    private CacheHeader readCurrentHeaderLocked(String key) {
+        CacheHeader entry = mEntries.get(key);
+        File file = getFileForKey(key);
+        if (entry == null) {
+            //预热期间缓存项可能只是还没被加载,先把它自己的文件加载到内存中,后面的加载会跳过它
+            if (mInitialized || !file.exists()) {
+                return null;
+            }
+            CacheHeader loaded = readHeaderOnly(key, file);
+            if (loaded == null) {
+                return null;
+            }
+            loaded.size = file.length();
+            putEntry(key, loaded);
+            return loaded;
+        }
+        CacheHeader onDisk = readHeaderOnly(key, file);
+        if (onDisk != null) {
+            onDisk.copyStateFrom(entry);
+        }
+        return onDisk;
+    }
+
+    /**
+     * 在缓存文件中原地改写元数据段,并更新内存和索引.调用者必须持有缓存键对应的条带锁.
+     * <p>
+     * 元数据段连同它的CRC32是一次定位写入.进程在写到一半时挂掉的话,下次读取时CRC对不上,
+     * 按损坏的文件处理(未命中并删除),不会把新旧混杂的etag和过期时间当成有效的元数据.
+     * 没有这个CRC的旧格式文件不原地改写
+     * </p>
+     * @param onDisk 文件中当前的头部
+     * @param updated 新的头部,只有元数据与onDisk不同
+     * @return 旧格式的文件、元数据段长度变了(不能原地改写)或者写文件失败时返回false
+     */
+    private boolean rewriteMetadataLocked(CacheHeader onDisk, CacheHeader updated) {
+        if (onDisk.magic != CACHE_MAGIC_V4 || !onDisk.hasSameMetadataLength(updated)) {
+            return false;
+        }
 
-        File file = getFileForKey(key);
+        String fileName = getFilenameForKey(onDisk.key);
+        File file = new File(mRootDirectory, fileName);
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(createOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-
-            if (!success){
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(onDisk.metadataOffset());
+                raf.write(updated.metadataBytes());
+            } finally {
+                raf.close();
             }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return false;
+        }
 
-            fos.write(entry.data);
-            fos.close();
+        mEntries.put(updated.key, updated);
+        mIndex.recordPut(updated, fileName);
+        return true;
+    }
 
-            putEntry(key, e);
-            return;
-        } catch (IOException e) {
+    @Override
+    public void remove(String key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        boolean deleted = file.delete();
+    /**
+     * 删除缓存项,调用者必须持有缓存键对应的条带锁
+     */
+    private void removeLocked(String key) {
+        boolean deleted = getFileForKey(key).delete();
+        removeEntry(key);
         if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    key, getFilenameForKey(key));
         }
     }
 
-
-    @Override
-    public void initialize() {
-        if (!mRootDirectory.exists()){
-            if (!mRootDirectory.mkdir()){
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
-            }
-            //TODO 这里有点不理解,这个return为什么不是在创建不成功之后才return?
-            return;
+    /**
+     * 让所有以prefix开头的缓存项过期,之后的请求会去服务端验证
+     * @param prefix 缓存键(默认是URL)的前缀
+     * @param fullExpire 是否完全过期
+     * @return 匹配的缓存项数量
+     */
+    public int invalidateByPrefix(String prefix, boolean fullExpire) {
+        List<String> keys = keysWithPrefix(prefix);
+        for (String key : keys) {
+            invalidate(key, fullExpire);
         }
+        return keys.size();
+    }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null){
-            //目录下没有任何缓存文件
-            return;
-        }
+    /**
+     * 删除所有以prefix开头的缓存项.缓存项马上从内存中移除,缓存文件在后台一次删完
+     * @param prefix 缓存键(默认是URL)的前缀
+     * @return 删除的缓存项数量
+     */
+    public int removeByPrefix(String prefix) {
+        return removeAll(keysWithPrefix(prefix));
+    }
 
-        for (File file : files){
-            try {
-                //文件内的数据大小(字节数)
-                long entrySize = file.length();
+    /**
+     * 让所有带有这个标签的缓存项过期,之后的请求会去服务端验证
+     * @param tag 标签,见{@link volley.android.com.Request#addCacheTag(String)}
+     * @param fullExpire 是否完全过期
+     * @return 匹配的缓存项数量
+     */
+    public int invalidateByTag(String tag, boolean fullExpire) {
+        List<String> keys = keysWithTag(tag);
+        for (String key : keys) {
+            invalidate(key, fullExpire);
+        }
+        return keys.size();
+    }
 
-                CountingInputStream cis = new CountingInputStream(new BufferedInputStream(createInputStream(file)), entrySize);
+    /**
+     * 删除所有带有这个标签的缓存项.缓存项马上从内存中移除,缓存文件在后台一次删完
+     * @param tag 标签,见{@link volley.android.com.Request#addCacheTag(String)}
+     * @return 删除的缓存项数量
+     */
+    public int removeByTag(String tag) {
+        return removeAll(keysWithTag(tag));
+    }
 
-                try {
-                    CacheHeader entry = CacheHeader.readHeader(cis);
+    /**
+     * 返回以prefix开头的所有缓存键,只遍历匹配的部分
+     */
+    private List<String> keysWithPrefix(String prefix) {
+        List<String> keys = new ArrayList<>();
+        for (String key : mSortedKeys.tailSet(prefix)) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
 
-                    //当我们数据从文件读出来，这里传入的就是文件的长度，当我们put一个entry进来这里传入的就是data的字节数
-                    entry.size = entrySize;
+    private List<String> keysWithTag(String tag) {
+        Set<String> keys = mTagIndex.get(tag);
+        return keys == null ? Collections.<String>emptyList() : new ArrayList<>(keys);
+    }
 
-                    //已读出数据,存入mEntries
-                    putEntry(entry.key, entry);
-                } finally {
-                    //不管出现异常与否,都需要输入流
-                    cis.close();
+    /**
+     * 把缓存项从内存和索引中移除,缓存文件交给后台维护线程一次删完.
+     * 删除记录一次性写入索引,待删除的文件也先记录下来,进程在删完之前被杀掉的话,下次启动时接着删
+     * @param keys 缓存键
+     * @return 实际移除的数量
+     */
+    private int removeAll(List<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        //先写删除记录:期间被重新写入的缓存键,它的新记录排在删除记录后面,索引仍然认为它存在
+        mIndex.recordRemoves(keys);
+
+        List<String> removedKeys = new ArrayList<>(keys.size());
+        List<String> fileNames = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (removeEntryFromMemory(key)) {
+                    removedKeys.add(key);
+                    fileNames.add(getFilenameForKey(key));
                 }
-
-            } catch (IOException e) {
-                //非我族类,得而诛之
-                file.delete();
+            } finally {
+                lock.unlock();
             }
-
         }
+        if (!removedKeys.isEmpty()) {
+            mIndex.recordPendingDeletes(removedKeys, fileNames);
+            scheduleDeletes(removedKeys, fileNames);
+        }
+        return removedKeys.size();
     }
 
-    @Override
-    public void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    /**
+     * 在后台维护线程中删除一批缓存文件,删除前确认缓存键没有被重新写入
+     */
+    private void scheduleDeletes(final List<String> keys, final List<String> fileNames) {
+        getMaintenanceExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                int deleted = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    String key = keys.get(i);
+                    ReentrantLock lock = lockFor(key);
+                    lock.lock();
+                    try {
+                        //已经被重新写入了,文件是新的
+                        if (!mEntries.containsKey(key) && new File(mRootDirectory, fileNames.get(i)).delete()) {
+                            deleted++;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                mIndex.completePendingDeletes();
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Deleted %d of %d cache files in batch", deleted, keys.size());
+                }
             }
-            put(key, entry);
-        }
+        });
     }
 
-    @Override
-    public void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    /**
+     * 接着删除上次运行时没有删完的缓存文件
+     */
+    private void resumePendingDeletes() {
+        List<String> pending = mIndex.loadPendingDeletes();
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(pending.size() / 2);
+        List<String> fileNames = new ArrayList<>(pending.size() / 2);
+        for (int i = 0; i < pending.size(); i += 2) {
+            keys.add(pending.get(i));
+            fileNames.add(pending.get(i + 1));
         }
+        //记录在新的一批里,删完之后旧的列表随之删除
+        mIndex.recordPendingDeletes(Collections.<String>emptyList(), Collections.<String>emptyList());
+        scheduleDeletes(keys, fileNames);
     }
 
     /**
@@ -455,7 +2368,66 @@ public class DiskBasedCache implements Cache{
     static String readString(CountingInputStream cis) throws IOException{
         long n = readLong(cis);
         byte[] b = streamToBytes(cis, n);
-        return new String(b, "UTF-8");
+        return new String(b, UTF_8);
+    }
+
+    /**
+     * 往缓冲区写入一个非负整数的变长编码(每个字节低7位存数据,最高位表示后面还有字节)
+     * @param buffer
+     * @param n 不能是负数
+     */
+    static void putVarint(ByteBuffer buffer, long n) {
+        while ((n & ~0x7FL) != 0) {
+            buffer.put((byte) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+
+    /**
+     * 从缓冲区读出一个变长编码的非负整数
+     * @param buffer
+     * @return
+     * @throws IOException 编码超过10个字节
+     */
+    static long getVarint(ByteBuffer buffer) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * 返回一个非负整数变长编码后的字节数
+     */
+    static int varintSize(long n) {
+        int size = 1;
+        while ((n & ~0x7FL) != 0) {
+            size++;
+            n >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * 从缓冲区读出一个以变长编码长度开头的UTF-8字符串,直接从缓冲区的数组解码,不复制字节
+     * @param buffer 必须是基于数组的缓冲区
+     * @return
+     * @throws IOException
+     */
+    static String getString(ByteBuffer buffer) throws IOException {
+        long length = getVarint(buffer);
+        if (length > buffer.remaining()) {
+            throw new IOException("getString length=" + length + ", remaining=" + buffer.remaining());
+        }
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return s;
     }
 
     /**
@@ -473,34 +2445,20 @@ public class DiskBasedCache implements Cache{
         }
 
         byte[] bytes = new byte[(int) length];
-        //@FIXME 不知道这里为什么要这么写，是我就直接cis.read(bytes,0,length)了,难道是为了判断读出来的值?
-        new DataInputStream(cis).readFully(bytes);
-        return bytes;
-    }
-
-    /**
-     * 写入头部字段到输出流中,数据写入前会先写入头部字段的数量
-     * @param headers 需要写入到本地的头部字段
-     * @param os 要写入数据的输出流
-     * @throws IOException
-     */
-    static void writeHeaderList(List<Header> headers, OutputStream os) throws IOException {
-        if (headers != null){
-            //先写入头部列表的长度
-            writeInt(os, headers.size());
-
-            //再依次写入键值对
-            for (Header header : headers){
-                writeString(os, header.getName());
-                writeString(os, header.getValue());
+        //一次read()不保证读满,必须循环读到指定长度为止
+        int offset = 0;
+        while (offset < bytes.length) {
+            int n = cis.read(bytes, offset, bytes.length - offset);
+            if (n < 0) {
+                throw new IOException("streamToBytes EOF at " + offset + ", length=" + length);
             }
-        } else {
-            writeInt(os, 0);
+            offset += n;
         }
+        return bytes;
     }
 
     /**
-     * 从输入流中读取头部字段
+     * 从输入流中读取头部字段(第一、二版头部格式)
      * @param cis 要读出头部字段的输入流
      * @return 返回一个包含所有头部字段输入流的列表
      * @throws IOException
@@ -589,6 +2547,22 @@ public class DiskBasedCache implements Cache{
         //该对象所有数据的长度(这个值不会序列化到本地)
         long size;
 
+        /**
+         * 最近一次访问时的逻辑时钟,用于在索引中保存新近度(这个值不会序列化到本地)
+         */
+        volatile long lastAccess;
+
+        /**
+         * {@link EvictionPolicy}给出的淘汰优先级,值越小越先被淘汰(这个值不会序列化到本地)
+         */
+        volatile double priority;
+
+        /**
+         * 从网络获取这个缓存项花费的时间(毫秒),淘汰策略用它估计重新获取的代价.
+         * 这个值不在缓存文件的头部中,只记录在{@link DiskCacheIndex}里
+         */
+        long networkTimeMs;
+
         /**
          * 标示该缓存项的一个键
          */
@@ -624,6 +2598,65 @@ public class DiskBasedCache implements Cache{
          */
         final List<Header> allResponseHeaders;
 
+        /**
+         * 正文的编码方式,见{@link BodyCodec}
+         */
+        int codec = BodyCodec.NONE;
+
+        /**
+         * 原始(解码后)正文的长度,旧格式的文件没有记录这个值,为-1
+         */
+        long dataLength = -1;
+
+        /**
+         * 这个头部在文件中的格式对应的magic number,由最近一次读取或写入决定,改写元数据段时用来计算偏移
+         */
+        int magic = CACHE_MAGIC_V4;
+
+        /**
+         * 缓存项的标签,只有第三版及之后的格式能保存,见{@link Entry#tags}
+         */
+        Set<String> tags = Collections.emptySet();
+
+        /**
+         * 去重存储时正文所在正文块的内容哈希,正文直接跟在头部后面时为null,见{@link #setDeduplicationEnabled(boolean)}
+         */
+        String blobHash;
+
+        /**
+         * 正文块的大小,只用于淘汰策略估计这个缓存项的代价,容量按正文块统计,不计入{@link #size}(这个值不会序列化到本地)
+         */
+        long blobSize;
+
+        /**
+         * 存储的(编码后的)正文的CRC32,读取正文时校验,没有记录时为{@link #NO_CHECKSUM}
+         */
+        long checksum = NO_CHECKSUM;
+
+        /**
+         * 第三版及之后的格式中常见响应头部名字的共享字典,头部名字与其中某一项完全相同(区分大小写)时只写入它的序号.
+         * 只能在末尾追加,已有项的顺序不能改变
+         */
+        private static final String[] HEADER_NAME_DICTIONARY = {
+                "Date", "Server", "Content-Type", "Content-Length", "Content-Encoding", "Cache-Control",
+                "Expires", "Last-Modified", "ETag", "Etag", "Vary", "Connection", "Keep-Alive",
+                "Transfer-Encoding", "Set-Cookie", "Age", "Pragma", "Location", "Accept-Ranges", "Via",
+                "Access-Control-Allow-Origin", "Content-Language", "Content-Disposition", "Link",
+                "Strict-Transport-Security", "X-Content-Type-Options", "X-Frame-Options", "X-XSS-Protection",
+                "X-Android-Received-Millis", "X-Android-Sent-Millis", "X-Android-Response-Source",
+                "X-Android-Selected-Protocol", "Alt-Svc", "P3P",
+        };
+
+        private static final Map<String, Integer> HEADER_NAME_INDEX = new HashMap<>();
+
+        static {
+            for (int i = 0; i < HEADER_NAME_DICTIONARY.length; i++) {
+                HEADER_NAME_INDEX.put(HEADER_NAME_DICTIONARY[i], i);
+            }
+        }
+
+        private static final byte[] EMPTY_BYTES = new byte[0];
+
         private CacheHeader(String key, String etag, long serverDate, long lastModified, long ttl,
                             long softTtl, List<Header> allResponseHeaders) {
             this.key = key;
@@ -647,6 +2680,19 @@ public class DiskBasedCache implements Cache{
             return HttpHeaderParser.toAllHeaderList(entry.responseHeaders);
         }
 
+        /**
+         * 实例化一个只包含部分元数据的CacheHeader对象,用于从{@link DiskCacheIndex}恢复缓存项,
+         * 其余元数据在读取缓存文件时从文件头部获得
+         * @param key 该缓存项对应的键
+         * @param size 缓存项的大小
+         * @param ttl 缓存的真实过期时间
+         * @param softTtl 缓存需被刷新的时间
+         */
+        CacheHeader(String key, long size, long ttl, long softTtl) {
+            this(key, null, 0, 0, ttl, softTtl, null);
+            this.size = size;
+        }
+
         /**
          * 实例化一个CacheHeader对象
          * @param key 该缓存项对应的键
@@ -655,7 +2701,119 @@ public class DiskBasedCache implements Cache{
         CacheHeader(String key, Entry entry) {
             this(key, entry.etag, entry.serverDate, entry.lastModified, entry.ttl, entry.softTtl,
                     getAllResponseHeaders(entry));
-            size = entry.data.length;
+            size = entry.data != null ? entry.data.length : entry.body.length();
+            dataLength = size;
+            networkTimeMs = entry.networkTimeMs;
+            if (entry.tags != null) {
+                tags = entry.tags;
+            }
+        }
+
+        /**
+         * 复制不在缓存文件头部中的状态(大小、访问时间、淘汰优先级、网络耗时)
+         * @param other
+         */
+        void copyStateFrom(CacheHeader other) {
+            size = other.size;
+            lastAccess = other.lastAccess;
+            priority = other.priority;
+            networkTimeMs = other.networkTimeMs;
+            blobSize = other.blobSize;
+        }
+
+        /**
+         * 返回一个替换了元数据的CacheHeader,缓存键、大小、访问时间和响应头部沿用当前的值
+         */
+        CacheHeader withMetadata(String etag, long serverDate, long lastModified, long ttl, long softTtl) {
+            CacheHeader header = new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl,
+                    allResponseHeaders);
+            header.copyStateFrom(this);
+            header.codec = codec;
+            header.dataLength = dataLength;
+            header.magic = magic;
+            header.tags = tags;
+            header.blobHash = blobHash;
+            header.checksum = checksum;
+            return header;
+        }
+
+        /**
+         * 元数据段(etag/serverDate/lastModified/ttl/softTtl)在序列化后的头部中的偏移,紧跟在magic和缓存键之后
+         * @return
+         * @throws IOException
+         */
+        long metadataOffset() throws IOException {
+            int keyLength = key.getBytes(UTF_8).length;
+            if (magic == CACHE_MAGIC) {
+                return 4 + 8 + keyLength;
+            }
+            if (magic == CACHE_MAGIC_V2) {
+                //多了编码方式和原始长度
+                return 4 + 4 + 8 + 8 + keyLength;
+            }
+            return 4 + 4 + varintSize(codec) + varintSize(dataLength + 1) + varintSize(keyLength) + keyLength;
+        }
+
+        /**
+         * 按{@link #magic}对应的格式序列化元数据段,与完整头部中对应的部分完全相同.第四版包括元数据段的CRC32
+         * @return
+         * @throws IOException
+         */
+        byte[] metadataBytes() throws IOException {
+            if (magic == CACHE_MAGIC_V3 || magic == CACHE_MAGIC_V4) {
+                byte[] etagBytes = etag == null ? EMPTY_BYTES : etag.getBytes(UTF_8);
+                int length = varintSize(etagBytes.length) + etagBytes.length + 4 * 8;
+                ByteBuffer buffer = ByteBuffer.allocate(magic == CACHE_MAGIC_V4 ? length + 4 : length)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                putVarint(buffer, etagBytes.length);
+                buffer.put(etagBytes);
+                buffer.putLong(serverDate).putLong(lastModified).putLong(ttl).putLong(softTtl);
+                if (magic == CACHE_MAGIC_V4) {
+                    buffer.putInt(metadataChecksum(buffer.array(), 0, length));
+                }
+                return buffer.array();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeString(bytes, etag == null ? "" : etag);
+            writeLong(bytes, serverDate);
+            writeLong(bytes, lastModified);
+            writeLong(bytes, ttl);
+            writeLong(bytes, softTtl);
+            return bytes.toByteArray();
+        }
+
+        /**
+         * 与另一个头部序列化后的元数据段长度是否相同,相同时才能只改写这一段.除etag外其余字段都是定长的
+         * @param other
+         * @return
+         */
+        boolean hasSameMetadataLength(CacheHeader other) {
+            try {
+                return etagLength(etag) == etagLength(other.etag);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static int etagLength(String etag) throws IOException {
+            return etag == null ? 0 : etag.getBytes(UTF_8).length;
+        }
+
+        /**
+         * 计算元数据段(etag长度到softTtl)的CRC32
+         */
+        private static int metadataChecksum(byte[] bytes, int offset, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, offset, length);
+            return (int) crc.getValue();
+        }
+
+        /**
+         * 是否包含完整的元数据.从{@link DiskCacheIndex}恢复的缓存项只有ttl/softTtl,需要读取文件头部补全
+         * @return
+         */
+        boolean hasFullMetadata() {
+            return allResponseHeaders != null;
         }
 
         /**
@@ -666,7 +2824,17 @@ public class DiskBasedCache implements Cache{
          */
         static CacheHeader readHeader(CountingInputStream is) throws IOException {
             int magic = readInt(is);
-            if (magic != CACHE_MAGIC){
+            if (magic == CACHE_MAGIC_V3 || magic == CACHE_MAGIC_V4) {
+                return readBufferedHeader(magic, is);
+            }
+
+            //第一、二版格式,逐个字段从输入流读取
+            int codec = BodyCodec.NONE;
+            long dataLength = -1;
+            if (magic == CACHE_MAGIC_V2) {
+                codec = readInt(is);
+                dataLength = readLong(is);
+            } else if (magic != CACHE_MAGIC){
                 throw new IOException();
             }
             String key = readString(is);
@@ -677,34 +2845,235 @@ public class DiskBasedCache implements Cache{
             long softTtl = readLong(is);
             List<Header> allResponseHeaders = readHeaderList(is);
 
-            return new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+            CacheHeader header = new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl, allResponseHeaders);
+            header.codec = codec;
+            header.dataLength = dataLength;
+            header.magic = magic;
+            return header;
+        }
+
+        /**
+         * 读取第三、四版格式的头部:先读出头部长度,再把整个头部一次读入内存,从ByteBuffer中解析
+         * @param magic 已经读出的magic
+         * @param is magic已经被读出的输入流
+         * @return
+         * @throws IOException
+         */
+        private static CacheHeader readBufferedHeader(int magic, CountingInputStream is) throws IOException {
+            int length = readInt(is);
+            if (length < 0 || length > is.bytesRemaining()) {
+                throw new IOException("readHeader length=" + length + ", remaining=" + is.bytesRemaining());
+            }
+            return parseBufferedHeader(magic,
+                    ByteBuffer.wrap(streamToBytes(is, length)).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        /**
+         * 从ByteBuffer中解析第三、四版格式的头部,position到limit之间正好是magic和头部长度之后的整个头部.
+         * 第四版的元数据段CRC32对不上时抛出IOException
+         * @param magic {@link #CACHE_MAGIC_V3}或{@link #CACHE_MAGIC_V4}
+         * @param buffer 小端序、有底层数组的ByteBuffer,解析完后position等于limit.解析出来的对象不引用buffer的内容
+         * @return
+         * @throws IOException
+         */
+        static CacheHeader parseBufferedHeader(int magic, ByteBuffer buffer) throws IOException {
+            try {
+                int codec = (int) getVarint(buffer);
+                long dataLength = getVarint(buffer) - 1;
+                String key = getString(buffer);
+                int metadataStart = buffer.position();
+                String etag = getString(buffer);
+                long serverDate = buffer.getLong();
+                long lastModified = buffer.getLong();
+                long ttl = buffer.getLong();
+                long softTtl = buffer.getLong();
+                if (magic == CACHE_MAGIC_V4) {
+                    int expected = metadataChecksum(buffer.array(), buffer.arrayOffset() + metadataStart,
+                            buffer.position() - metadataStart);
+                    if (buffer.getInt() != expected) {
+                        throw new IOException("readHeader metadata checksum mismatch");
+                    }
+                }
+
+                long count = getVarint(buffer);
+                //每个头部至少占两个字节,据此校验数量,避免按损坏的数量分配内存
+                if (count > buffer.remaining() / 2) {
+                    throw new IOException("readHeader count=" + count);
+                }
+                List<Header> allResponseHeaders = count == 0
+                        ? Collections.<Header>emptyList() : new ArrayList<Header>((int) count);
+                for (int i = 0; i < count; i++) {
+                    long nameRef = getVarint(buffer);
+                    String name;
+                    if (nameRef == 0) {
+                        name = getString(buffer);
+                    } else if (nameRef <= HEADER_NAME_DICTIONARY.length) {
+                        name = HEADER_NAME_DICTIONARY[(int) nameRef - 1];
+                    } else {
+                        throw new IOException("readHeader nameRef=" + nameRef);
+                    }
+                    allResponseHeaders.add(new Header(name, getString(buffer)));
+                }
+
+                //标签是可选的一段,没有标签时不写
+                Set<String> tags = Collections.emptySet();
+                if (buffer.hasRemaining()) {
+                    long tagCount = getVarint(buffer);
+                    if (tagCount > buffer.remaining()) {
+                        throw new IOException("readHeader tagCount=" + tagCount);
+                    }
+                    tags = new HashSet<>();
+                    for (int i = 0; i < tagCount; i++) {
+                        tags.add(getString(buffer));
+                    }
+                }
+                //正文块的引用也是可选的,有引用或者校验和时标签数量总会写出(可能为0)
+                String blobHash = null;
+                if (buffer.hasRemaining()) {
+                    blobHash = getString(buffer);
+                    if (blobHash.isEmpty()) {
+                        blobHash = null;
+                    }
+                }
+                //正文的校验和,有校验和时正文块的引用总会写出(没有时是空串)
+                long checksum = NO_CHECKSUM;
+                if (buffer.hasRemaining()) {
+                    checksum = buffer.getInt() & 0xffffffffL;
+                }
+                if (buffer.hasRemaining()) {
+                    throw new IOException("readHeader trailing bytes=" + buffer.remaining());
+                }
+
+                CacheHeader header = new CacheHeader(key, etag, serverDate, lastModified, ttl, softTtl,
+                        allResponseHeaders);
+                header.codec = codec;
+                header.dataLength = dataLength;
+                header.magic = magic;
+                header.tags = tags;
+                header.blobHash = blobHash;
+                header.checksum = checksum;
+                return header;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("readHeader truncated");
+            }
         }
 
         /**
-         * 往输出流中写入CacheHeader中的数据
+         * 往输出流中写入CacheHeader中的数据,总是按第四版格式写:
+         * <pre>
+         * [int magic][int 头部长度]
+         * [varint 编码方式][varint 原始长度+1][varint 键长度][键]
+         * [varint etag长度][etag][long serverDate][long lastModified][long ttl][long softTtl][int 元数据段CRC32]
+         * [varint 头部数量]{[varint 名字序号,0表示后面跟着名字][varint 名字长度][名字]? [varint 值长度][值]}*
+         * ([varint 标签数量]{[varint 标签长度][标签]}* ([varint 哈希长度][正文块哈希] [int 正文CRC32]?)?)?
+         * </pre>
+         * 整型都是小端序.元数据段(etag到元数据段CRC32)中的时间戳是定长的,etag长度不变时可以原地改写这一段,
+         * CRC32覆盖etag长度到softTtl,写到一半的元数据段在读取时能被发现.第三版没有这个CRC32,其余相同
          * @param os
          * @return
          */
         boolean writeHeader(OutputStream os) {
-
             try {
-                //先写入magic number
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                //etag有可能会是null,需要处理
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeHeaderList(allResponseHeaders, os);
+                os.write(toBytes());
                 os.flush();
+                magic = CACHE_MAGIC_V4;
                 return true;
             } catch (IOException e) {
                 VolleyLog.d("%s", e.toString());
                 return false;
             }
+        }
+
+        /**
+         * 按第四版格式把头部序列化到一个ByteBuffer中,先算出精确的长度,只分配一次
+         * @return
+         */
+        byte[] toBytes() {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            byte[] etagBytes = etag == null ? EMPTY_BYTES : etag.getBytes(UTF_8);
+            List<Header> headers = allResponseHeaders == null
+                    ? Collections.<Header>emptyList() : allResponseHeaders;
+
+            //字典之外的名字和所有值的UTF-8编码,字典中的名字为null
+            byte[][] encoded = new byte[headers.size() * 2][];
+            int[] nameRefs = new int[headers.size()];
+
+            int length = varintSize(codec) + varintSize(dataLength + 1)
+                    + varintSize(keyBytes.length) + keyBytes.length
+                    + varintSize(etagBytes.length) + etagBytes.length + 4 * 8 + 4
+                    + varintSize(headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                Header header = headers.get(i);
+                Integer index = HEADER_NAME_INDEX.get(header.getName());
+                if (index != null) {
+                    nameRefs[i] = index + 1;
+                    length += varintSize(nameRefs[i]);
+                } else {
+                    encoded[2 * i] = header.getName().getBytes(UTF_8);
+                    length += 1 + varintSize(encoded[2 * i].length) + encoded[2 * i].length;
+                }
+                encoded[2 * i + 1] = header.getValue().getBytes(UTF_8);
+                length += varintSize(encoded[2 * i + 1].length) + encoded[2 * i + 1].length;
+            }
+            byte[][] tagBytes = new byte[tags.size()][];
+            byte[] blobBytes = blobHash == null ? null : blobHash.getBytes(UTF_8);
+            boolean hasChecksum = checksum != NO_CHECKSUM;
+            if (hasChecksum && blobBytes == null) {
+                blobBytes = EMPTY_BYTES;
+            }
+            boolean hasTrailer = !tags.isEmpty() || blobBytes != null;
+            if (blobBytes != null) {
+                length += varintSize(blobBytes.length) + blobBytes.length;
+            }
+            if (hasChecksum) {
+                length += 4;
+            }
+            if (hasTrailer) {
+                length += varintSize(tags.size());
+                int i = 0;
+                for (String tag : tags) {
+                    tagBytes[i] = tag.getBytes(UTF_8);
+                    length += varintSize(tagBytes[i].length) + tagBytes[i].length;
+                    i++;
+                }
+            }
 
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + length).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(CACHE_MAGIC_V4).putInt(length);
+            putVarint(buffer, codec);
+            putVarint(buffer, dataLength + 1);
+            putVarint(buffer, keyBytes.length);
+            buffer.put(keyBytes);
+            int metadataStart = buffer.position();
+            putVarint(buffer, etagBytes.length);
+            buffer.put(etagBytes);
+            buffer.putLong(serverDate).putLong(lastModified).putLong(ttl).putLong(softTtl);
+            buffer.putInt(metadataChecksum(buffer.array(), metadataStart, buffer.position() - metadataStart));
+            putVarint(buffer, headers.size());
+            for (int i = 0; i < headers.size(); i++) {
+                putVarint(buffer, nameRefs[i]);
+                if (nameRefs[i] == 0) {
+                    putVarint(buffer, encoded[2 * i].length);
+                    buffer.put(encoded[2 * i]);
+                }
+                putVarint(buffer, encoded[2 * i + 1].length);
+                buffer.put(encoded[2 * i + 1]);
+            }
+            if (hasTrailer) {
+                putVarint(buffer, tagBytes.length);
+                for (byte[] tag : tagBytes) {
+                    putVarint(buffer, tag.length);
+                    buffer.put(tag);
+                }
+            }
+            if (blobBytes != null) {
+                putVarint(buffer, blobBytes.length);
+                buffer.put(blobBytes);
+            }
+            if (hasChecksum) {
+                buffer.putInt((int) checksum);
+            }
+            return buffer.array();
         }
 
         /**
@@ -720,6 +3089,8 @@ public class DiskBasedCache implements Cache{
             e.lastModified = lastModified;
             e.ttl = ttl;
             e.softTtl = softTtl;
+            e.networkTimeMs = networkTimeMs;
+            e.tags = tags;
 
             /** @FIXME 这里是否有问题? {@link HttpHeaderParser#toHeaderMap(List)}返回的map其实是可以修改的 */
             e.responseHeaders = HttpHeaderParser.toHeaderMap(allResponseHeaders);
@@ -734,6 +3105,11 @@ public class DiskBasedCache implements Cache{
         return new FileInputStream(file);
     }
 
+    //VisibleForTesting
+    RandomAccessFile createRandomAccessFile(File file) throws FileNotFoundException {
+        return new RandomAccessFile(file, "r");
+    }
+
     //VisibleForTesting
     OutputStream createOutputStream(File file) throws FileNotFoundException {
         return new FileOutputStream(file);
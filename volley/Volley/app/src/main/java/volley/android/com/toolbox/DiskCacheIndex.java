@@ -0,0 +1,576 @@
+package volley.android.com.toolbox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import volley.android.com.VolleyLog;
+
+/**
+ * {@link DiskBasedCache}的持久化索引文件.
+ * <p>
+ * 没有索引时{@link DiskBasedCache#initialize()}需要打开目录下的每一个缓存文件并完整解析头部，缓存项一多冷启动就很慢.
+ * 索引文件把每个缓存项的 键哈希/大小/ttl/softTtl/网络耗时/文件名/新近度 紧凑地记录下来,启动时一次顺序读完即可重建内存索引.
+ * </p>
+ *
+ * 文件格式: [int 魔数][int 版本号]{[int 记录长度][记录][int 记录的CRC32]}*
+ * <ul>
+ *     <li>PUT记录: [int 类型][int 键哈希][string 键][string 文件名][long 大小][long ttl][long softTtl][long 网络耗时][long 新近度]
+ *     [int 标签数量]{[string 标签]}*[string 正文块哈希,没有时为空串]</li>
+ *     <li>REMOVE记录: [int 类型][int 键哈希][string 键]</li>
+ * </ul>
+ * 缓存每次变动只追加一条记录,冗余记录过多时整体重写一次(先写临时文件再重命名).
+ * 进程在追加记录的中途挂掉时,文件末尾会留下一条不完整或者校验不过的记录,启动时只丢掉这一条并截掉文件末尾,
+ * 前面的记录照常使用,不需要为此退回到目录扫描.
+ * 命中不追加记录,新近度靠{@link DiskBasedCache}定期按访问顺序重写索引来保存.
+ * 淘汰策略的内部状态(见{@link EvictionPolicy.Persistable})保存在旁边单独的文件里.
+ * 批量删除时还没有在后台删掉的缓存文件也记录在旁边单独的文件里,进程在删除完成前被杀掉的话,下次启动时接着删
+ */
+class DiskCacheIndex {
+
+    /**
+     * 索引文件名,{@link DiskBasedCache}扫描目录时需要跳过它
+     */
+    static final String INDEX_FILE_NAME = "volley.index";
+
+    /**
+     * 重写索引时使用的临时文件名
+     */
+    private static final String TEMP_INDEX_FILE_NAME = "volley.index.tmp";
+
+    /**
+     * 淘汰策略状态的文件名
+     */
+    private static final String POLICY_FILE_NAME = "volley.policy";
+
+    private static final String TEMP_POLICY_FILE_NAME = "volley.policy.tmp";
+
+    /**
+     * 淘汰策略状态文件的魔数
+     */
+    private static final int POLICY_MAGIC = 0x20180801;
+
+    /**
+     * 待删除缓存文件列表的文件名
+     */
+    private static final String PENDING_DELETES_FILE_NAME = "volley.trash";
+
+    /**
+     * 已经记录到待删除列表中但还没有删完的批次数,降到0时删除列表文件
+     */
+    private int mPendingDeleteBatches = 0;
+
+    /**
+     * 索引文件的魔数
+     */
+    private static final int INDEX_MAGIC = 0x20180306;
+
+    /**
+     * 索引文件格式的版本号,格式变化时递增,旧版本的索引直接作废
+     */
+    private static final int INDEX_VERSION = 5;
+
+    private static final int RECORD_PUT = 1;
+
+    private static final int RECORD_REMOVE = 2;
+
+    /**
+     * 冗余记录数超过存活缓存项数加上这个值时重写索引
+     */
+    private static final int REWRITE_SLACK = 1000;
+
+    /**
+     * 从索引中读出的一条缓存项记录
+     */
+    static class Record {
+        final DiskBasedCache.CacheHeader header;
+        final String fileName;
+        final long rank;
+
+        Record(DiskBasedCache.CacheHeader header, String fileName, long rank) {
+            this.header = header;
+            this.fileName = fileName;
+            this.rank = rank;
+        }
+    }
+
+    private final File mIndexFile;
+
+    private final File mTempFile;
+
+    private final File mPolicyFile;
+
+    private final File mTempPolicyFile;
+
+    private final File mPendingDeletesFile;
+
+    /**
+     * 追加写索引的输出流,懒打开
+     */
+    private OutputStream mWriter;
+
+    /**
+     * 索引文件中当前的记录数
+     */
+    private int mRecordCount = 0;
+
+    /**
+     * 下一条PUT记录的新近度,数值越大越新
+     */
+    private long mNextRank = 0;
+
+    DiskCacheIndex(File rootDirectory) {
+        mIndexFile = new File(rootDirectory, INDEX_FILE_NAME);
+        mTempFile = new File(rootDirectory, TEMP_INDEX_FILE_NAME);
+        mPolicyFile = new File(rootDirectory, POLICY_FILE_NAME);
+        mTempPolicyFile = new File(rootDirectory, TEMP_POLICY_FILE_NAME);
+        mPendingDeletesFile = new File(rootDirectory, PENDING_DELETES_FILE_NAME);
+    }
+
+    /**
+     * 返回文件是否是索引文件或者淘汰策略状态文件(包括临时文件)
+     */
+    static boolean isIndexFile(File file) {
+        String name = file.getName();
+        return INDEX_FILE_NAME.equals(name) || TEMP_INDEX_FILE_NAME.equals(name)
+                || POLICY_FILE_NAME.equals(name) || TEMP_POLICY_FILE_NAME.equals(name)
+                || PENDING_DELETES_FILE_NAME.equals(name);
+    }
+
+    /**
+     * 记录一批等待在后台删除的缓存文件,每对应一次调用,删完后必须调用一次{@link #completePendingDeletes()}
+     * @param keys 缓存键
+     * @param fileNames 缓存文件名,与keys一一对应
+     */
+    synchronized void recordPendingDeletes(List<String> keys, List<String> fileNames) {
+        mPendingDeleteBatches++;
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(mPendingDeletesFile, true));
+            try {
+                for (int i = 0; i < keys.size(); i++) {
+                    DiskBasedCache.writeString(os, keys.get(i));
+                    DiskBasedCache.writeString(os, fileNames.get(i));
+                }
+            } finally {
+                os.close();
+            }
+        } catch (IOException e) {
+            //只影响进程被杀掉之后的补删,不影响这次删除
+            VolleyLog.d("Failed to record pending deletes: %s", e.toString());
+        }
+    }
+
+    /**
+     * 一批缓存文件已经删完,所有批次都删完时删除待删除列表
+     */
+    synchronized void completePendingDeletes() {
+        if (--mPendingDeleteBatches == 0) {
+            mPendingDeletesFile.delete();
+        }
+    }
+
+    /**
+     * 读出上次运行时没有删完的缓存文件
+     * @return 按键和文件名交替排列,没有时返回空列表
+     */
+    synchronized List<String> loadPendingDeletes() {
+        List<String> result = new ArrayList<>();
+        if (!mPendingDeletesFile.exists()) {
+            return result;
+        }
+        try {
+            DiskBasedCache.CountingInputStream cis = new DiskBasedCache.CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(mPendingDeletesFile)), mPendingDeletesFile.length());
+            try {
+                while (cis.bytesRemaining() > 0) {
+                    String key = DiskBasedCache.readString(cis);
+                    String fileName = DiskBasedCache.readString(cis);
+                    result.add(key);
+                    result.add(fileName);
+                }
+            } finally {
+                cis.close();
+            }
+        } catch (IOException e) {
+            //最后一条记录可能没写完,前面读出来的照常处理
+            VolleyLog.d("Truncated pending deletes: %s", e.toString());
+        }
+        if (result.size() % 2 != 0) {
+            result.remove(result.size() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * 保存淘汰策略的内部状态,先写临时文件再重命名
+     * @param policy 淘汰策略
+     */
+    synchronized void savePolicyState(EvictionPolicy.Persistable policy) {
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(mTempPolicyFile)));
+            try {
+                out.writeInt(POLICY_MAGIC);
+                out.writeUTF(policy.getClass().getName());
+                policy.writeState(out);
+            } finally {
+                out.close();
+            }
+            if (!mTempPolicyFile.renameTo(mPolicyFile)) {
+                throw new IOException("Unable to rename " + mTempPolicyFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to save eviction policy state: %s", e.toString());
+            mTempPolicyFile.delete();
+        }
+    }
+
+    /**
+     * 恢复淘汰策略的内部状态.状态是另一种策略保存的或者格式不对时忽略,策略保持初始状态
+     * @param policy 淘汰策略
+     */
+    synchronized void loadPolicyState(EvictionPolicy.Persistable policy) {
+        if (!mPolicyFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mPolicyFile)));
+            try {
+                if (in.readInt() != POLICY_MAGIC || !policy.getClass().getName().equals(in.readUTF())) {
+                    throw new IOException("Policy state does not match");
+                }
+                policy.readState(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Discarding eviction policy state %s: %s", mPolicyFile.getAbsolutePath(), e.toString());
+        }
+    }
+
+    /**
+     * 一次顺序读取整个索引文件
+     * @return 按新近度从旧到新排序的记录,索引不存在或者校验失败返回null
+     */
+    synchronized List<Record> load() {
+        if (!mIndexFile.exists()) {
+            return null;
+        }
+
+        long length = mIndexFile.length();
+        if ((int) length != length) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = new byte[(int) length];
+            DataInputStream in = new DataInputStream(new FileInputStream(mIndexFile));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (length < 8 || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION) {
+                throw new IOException("Bad index header");
+            }
+
+            Map<String, Record> records = new HashMap<>();
+            int recordCount = 0;
+            long maxRank = -1;
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                int recordLength = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+                boolean complete = recordLength >= 0 && recordLength <= buffer.remaining() - 4;
+                if (!complete || crc(bytes, start + 4, recordLength) != buffer.getInt(start + 4 + recordLength)) {
+                    if (complete && start + 4 + recordLength + 4 < length) {
+                        //后面还有记录,不是没写完而是文件损坏了
+                        throw new IOException("Bad record at " + start);
+                    }
+                    //最后一条记录没有写完,截掉它,后面追加的记录接在完整的记录后面
+                    VolleyLog.d("Truncating cache index %s at %d of %d", mIndexFile.getAbsolutePath(),
+                            start, length);
+                    truncate(start);
+                    break;
+                }
+                readRecord(new DiskBasedCache.CountingInputStream(
+                        new ByteArrayInputStream(bytes, start + 4, recordLength), recordLength), records);
+                buffer.position(start + 4 + recordLength + 4);
+                recordCount++;
+            }
+            for (Record record : records.values()) {
+                maxRank = Math.max(maxRank, record.rank);
+            }
+
+            List<Record> result = new ArrayList<>(records.values());
+            Collections.sort(result, new Comparator<Record>() {
+                @Override
+                public int compare(Record lhs, Record rhs) {
+                    return lhs.rank < rhs.rank ? -1 : (lhs.rank == rhs.rank ? 0 : 1);
+                }
+            });
+
+            mRecordCount = recordCount;
+            mNextRank = maxRank + 1;
+            return result;
+        } catch (IOException e) {
+            VolleyLog.d("Discarding cache index %s: %s", mIndexFile.getAbsolutePath(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * 解析一条校验过的记录
+     * @param cis 正好包含一条记录的输入流
+     * @param records 按缓存键保存的记录,PUT记录加入或者替换,REMOVE记录删除
+     * @throws IOException 记录格式不对
+     */
+    private static void readRecord(DiskBasedCache.CountingInputStream cis, Map<String, Record> records)
+            throws IOException {
+        int type = DiskBasedCache.readInt(cis);
+        int keyHash = DiskBasedCache.readInt(cis);
+        String key = DiskBasedCache.readString(cis);
+        if (key.hashCode() != keyHash) {
+            throw new IOException("Key hash mismatch for " + key);
+        }
+
+        if (type == RECORD_PUT) {
+            String fileName = DiskBasedCache.readString(cis);
+            long size = DiskBasedCache.readLong(cis);
+            long ttl = DiskBasedCache.readLong(cis);
+            long softTtl = DiskBasedCache.readLong(cis);
+            long networkTimeMs = DiskBasedCache.readLong(cis);
+            long rank = DiskBasedCache.readLong(cis);
+            if (size < 0 || rank < 0) {
+                throw new IOException("Bad record for " + key);
+            }
+            int tagCount = DiskBasedCache.readInt(cis);
+            if (tagCount < 0 || tagCount > cis.bytesRemaining()) {
+                throw new IOException("Bad tag count for " + key);
+            }
+            Set<String> tags = Collections.emptySet();
+            if (tagCount > 0) {
+                tags = new HashSet<>();
+                for (int i = 0; i < tagCount; i++) {
+                    tags.add(DiskBasedCache.readString(cis));
+                }
+            }
+            String blobHash = DiskBasedCache.readString(cis);
+            DiskBasedCache.CacheHeader header =
+                    new DiskBasedCache.CacheHeader(key, size, ttl, softTtl);
+            header.networkTimeMs = networkTimeMs;
+            header.tags = tags;
+            header.blobHash = blobHash.isEmpty() ? null : blobHash;
+            records.put(key, new Record(header, fileName, rank));
+        } else if (type == RECORD_REMOVE) {
+            records.remove(key);
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+        if (cis.bytesRemaining() != 0) {
+            throw new IOException("Trailing bytes in record for " + key);
+        }
+    }
+
+    /**
+     * 把索引文件截短到指定长度,丢掉末尾不完整的记录
+     */
+    private void truncate(long length) throws IOException {
+        closeWriter();
+        RandomAccessFile raf = new RandomAccessFile(mIndexFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 用当前内存中的缓存项重写整个索引文件
+     * @param headers 按LRU顺序(从旧到新)排列的缓存项
+     * @param fileNames 缓存项对应的文件名,与headers一一对应
+     */
+    synchronized void rewrite(Collection<DiskBasedCache.CacheHeader> headers, List<String> fileNames) {
+        closeWriter();
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(mTempFile));
+            try {
+                writeFileHeader(os);
+                long rank = 0;
+                int i = 0;
+                for (DiskBasedCache.CacheHeader header : headers) {
+                    writePut(os, header, fileNames.get(i++), rank++);
+                }
+                mNextRank = rank;
+                mRecordCount = i;
+            } finally {
+                os.close();
+            }
+            if (!mTempFile.renameTo(mIndexFile)) {
+                throw new IOException("Unable to rename " + mTempFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Failed to rewrite cache index: %s", e.toString());
+            delete();
+        }
+    }
+
+    /**
+     * 追加一条新增或替换缓存项的记录
+     */
+    synchronized void recordPut(DiskBasedCache.CacheHeader header, String fileName) {
+        try {
+            OutputStream os = openWriter();
+            writePut(os, header, fileName, mNextRank++);
+            os.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append to cache index: %s", e.toString());
+            delete();
+        }
+    }
+
+    /**
+     * 追加一条删除缓存项的记录
+     */
+    synchronized void recordRemove(String key) {
+        try {
+            OutputStream os = openWriter();
+            writeRemove(os, key);
+            os.flush();
+            mRecordCount++;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append to cache index: %s", e.toString());
+            delete();
+        }
+    }
+
+    /**
+     * 一次追加多条删除缓存项的记录,只刷新一次
+     */
+    synchronized void recordRemoves(List<String> keys) {
+        try {
+            OutputStream os = openWriter();
+            for (String key : keys) {
+                writeRemove(os, key);
+            }
+            os.flush();
+            mRecordCount += keys.size();
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append to cache index: %s", e.toString());
+            delete();
+        }
+    }
+
+    /**
+     * 冗余记录是否已经多到需要重写
+     * @param liveEntries 当前存活的缓存项数
+     */
+    synchronized boolean needsRewrite(int liveEntries) {
+        return mRecordCount > liveEntries * 2 + REWRITE_SLACK;
+    }
+
+    /**
+     * 删除索引文件,下次启动会退回到目录扫描.写索引出错时也调用它,保证不会留下一份与缓存不一致的索引
+     */
+    synchronized void delete() {
+        closeWriter();
+        mIndexFile.delete();
+        mTempFile.delete();
+        mRecordCount = 0;
+        mNextRank = 0;
+    }
+
+    private OutputStream openWriter() throws IOException {
+        if (mWriter == null) {
+            boolean exists = mIndexFile.exists();
+            mWriter = new BufferedOutputStream(new FileOutputStream(mIndexFile, true));
+            if (!exists) {
+                writeFileHeader(mWriter);
+            }
+        }
+        return mWriter;
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                VolleyLog.d("%s", e.toString());
+            }
+            mWriter = null;
+        }
+    }
+
+    private static void writeFileHeader(OutputStream os) throws IOException {
+        DiskBasedCache.writeInt(os, INDEX_MAGIC);
+        DiskBasedCache.writeInt(os, INDEX_VERSION);
+    }
+
+    private static void writePut(OutputStream os, DiskBasedCache.CacheHeader header,
+                                 String fileName, long rank) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DiskBasedCache.writeInt(record, RECORD_PUT);
+        DiskBasedCache.writeInt(record, header.key.hashCode());
+        DiskBasedCache.writeString(record, header.key);
+        DiskBasedCache.writeString(record, fileName);
+        DiskBasedCache.writeLong(record, header.size);
+        DiskBasedCache.writeLong(record, header.ttl);
+        DiskBasedCache.writeLong(record, header.softTtl);
+        DiskBasedCache.writeLong(record, header.networkTimeMs);
+        DiskBasedCache.writeLong(record, rank);
+        DiskBasedCache.writeInt(record, header.tags.size());
+        for (String tag : header.tags) {
+            DiskBasedCache.writeString(record, tag);
+        }
+        DiskBasedCache.writeString(record, header.blobHash == null ? "" : header.blobHash);
+        writeRecord(os, record);
+    }
+
+    private static void writeRemove(OutputStream os, String key) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DiskBasedCache.writeInt(record, RECORD_REMOVE);
+        DiskBasedCache.writeInt(record, key.hashCode());
+        DiskBasedCache.writeString(record, key);
+        writeRecord(os, record);
+    }
+
+    /**
+     * 写入一条带长度和CRC32的记录
+     */
+    private static void writeRecord(OutputStream os, ByteArrayOutputStream record) throws IOException {
+        byte[] bytes = record.toByteArray();
+        DiskBasedCache.writeInt(os, bytes.length);
+        os.write(bytes);
+        DiskBasedCache.writeInt(os, crc(bytes, 0, bytes.length));
+    }
+}
@@ -0,0 +1,67 @@
+package volley.android.com.toolbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * {@link DiskBasedCache}的淘汰策略.
+ * <p>
+ * 缓存项每次被写入或命中时,DiskBasedCache向策略询问它新的淘汰优先级,缓存空间不足时按优先级从小到大淘汰;
+ * 新的缓存键写入前如果需要腾出空间,还会先询问策略是否接纳它(准入过滤),不被接纳的缓存项不会写入.
+ * </p>
+ * 这些方法会被多个线程并发调用,实现必须是线程安全的
+ */
+public interface EvictionPolicy {
+
+    /**
+     * 缓存键被请求了一次,不论是否命中,用于统计访问频率
+     * @param key 缓存键
+     */
+    void recordRequest(String key);
+
+    /**
+     * 缓存项被写入或者命中
+     * @param key 缓存键
+     * @param size 缓存项的大小(字节)
+     * @param networkTimeMs 从网络获取这个缓存项花费的时间,未知时为0
+     * @return 缓存项新的淘汰优先级,值越小越先被淘汰
+     */
+    double onAccess(String key, long size, long networkTimeMs);
+
+    /**
+     * 缓存项因为空间不足被淘汰
+     * @param key 缓存键
+     * @param priority 缓存项被淘汰时的优先级
+     */
+    void onEvict(String key, double priority);
+
+    /**
+     * 缓存空间不足时,决定是否接纳一个新的缓存键
+     * @param candidateKey 准备写入的缓存键
+     * @param victimKey 为了接纳它第一个会被淘汰的缓存键
+     * @return 返回false时新缓存项不会写入
+     */
+    boolean admit(String candidateKey, String victimKey);
+
+    /**
+     * 内部状态(例如访问频率)可以保存下来的淘汰策略.
+     * DiskBasedCache定期把状态和缓存项的新近度一起保存,重启后在加载缓存项之前恢复,淘汰质量不会因为进程重启而退化
+     */
+    interface Persistable {
+
+        /**
+         * 保存内部状态
+         * @param out
+         * @throws IOException
+         */
+        void writeState(DataOutputStream out) throws IOException;
+
+        /**
+         * 恢复{@link #writeState(DataOutputStream)}保存的状态,格式不对时抛出IOException,策略保持初始状态
+         * @param in
+         * @throws IOException
+         */
+        void readState(DataInputStream in) throws IOException;
+    }
+}
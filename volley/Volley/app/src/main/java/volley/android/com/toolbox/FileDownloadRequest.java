@@ -0,0 +1,111 @@
+package volley.android.com.toolbox;
+
+import java.io.File;
+
+import volley.android.com.NetworkResponse;
+import volley.android.com.Request;
+
+/**
+ * 把响应正文直接下载到文件的请求.
+ * <p>
+ * {@link BasicNetwork}收到2xx响应后用{@link java.nio.channels.FileChannel#transferFrom}把正文写进目标文件旁边的
+ * <code>目标文件名.part</code>,写完再重命名成目标文件;正文不经过byte[],也不经过{@link NetworkResponse#data}.
+ * 中途出错重试时,带上Range和If-Range从已经写下的位置继续下载,服务端不支持时从头下载.
+ * 下载的文件不进入{@link volley.android.com.Cache},派发的结果就是目标文件
+ * </p>
+ * 使用其他{@link volley.android.com.Network}实现时这个请求无法工作
+ */
+public class FileDownloadRequest extends Request<File> {
+
+    /**
+     * 下载进度的回调,在网络线程中被调用,实现中不要做耗时的操作
+     */
+    public interface ProgressListener {
+        /**
+         * 又写下了一批数据
+         * @param downloadedBytes 目标文件中已经写下的字节数,包括之前断点处已有的部分
+         * @param totalBytes 整个文件的大小,未知时为-1
+         */
+        void onProgress(long downloadedBytes, long totalBytes);
+    }
+
+    private final File mTarget;
+
+    private final File mPartialFile;
+
+    private final Response.Listener<File> mListener;
+
+    private ProgressListener mProgressListener;
+
+    /**
+     * 第一次响应的ETag或者Last-Modified,断点续传时放在If-Range中,保证两次拿到的是同一个文件.只在网络线程中访问
+     */
+    private String mResumeValidator;
+
+    /**
+     * 创建一个下载请求
+     * @param url 文件的地址
+     * @param target 下载到这个文件,已经存在时会被覆盖
+     * @param listener 下载完成的回调
+     * @param errorListener 下载出错的回调
+     */
+    public FileDownloadRequest(String url, File target, Response.Listener<File> listener,
+                               Response.ErrorListener errorListener) {
+        super(Method.GET, url, errorListener);
+        mTarget = target;
+        mPartialFile = new File(target.getPath() + ".part");
+        mListener = listener;
+        setShouldCache(false);
+    }
+
+    /**
+     * 设置下载进度的回调
+     * @param listener 为null表示不需要进度
+     * @return 返回请求对象本身，方便使用者使用链式调用
+     */
+    public FileDownloadRequest setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * 返回下载的目标文件
+     * @return
+     */
+    public File getTargetFile() {
+        return mTarget;
+    }
+
+    /**
+     * 返回下载过程中写入的临时文件
+     * @return
+     */
+    File getPartialFile() {
+        return mPartialFile;
+    }
+
+    ProgressListener getProgressListener() {
+        return mProgressListener;
+    }
+
+    String getResumeValidator() {
+        return mResumeValidator;
+    }
+
+    void setResumeValidator(String validator) {
+        mResumeValidator = validator;
+    }
+
+    @Override
+    protected Response<File> parseNetworkResponse(NetworkResponse response) {
+        //正文已经由网络层写进目标文件
+        return Response.success(mTarget, null);
+    }
+
+    @Override
+    protected void deliverResponse(File response) {
+        if (mListener != null) {
+            mListener.onResponse(response);
+        }
+    }
+}
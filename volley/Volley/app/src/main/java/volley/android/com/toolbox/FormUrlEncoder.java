@@ -0,0 +1,292 @@
+package volley.android.com.toolbox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import volley.android.com.RequestBody;
+
+/**
+ * application/x-www-form-urlencoded编码器,对于兼容ASCII的字符集,输出和逐个参数调用URLEncoder.encode再拼接的结果完全一致(包括末尾的'&').
+ * <p>
+ * 编码结果直接写进目标byte[]或者输出流,不产生中间的String和StringBuilder.
+ * 先算出编码后的长度,{@link #encode(Map, String)}只分配一个大小正好的数组,{@link #createBody(Map, String)}以固定长度流式发送.
+ * UTF-8直接按码点编码;其他字符集遇到需要转义的字符时,整段交给String#getBytes编码,会有少量分配
+ * </p>
+ * 这个类是线程安全的
+ */
+public final class FormUrlEncoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 一个字符(或者一对代理字符)在UTF-8下最多产生的输出字节数:4个字节,每个转成%XX
+     */
+    private static final int MAX_CHAR_BYTES = 12;
+
+    /**
+     * 流式写出时使用的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 2048;
+
+    private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    /**
+     * 不需要转义的ASCII字符,和URLEncoder一致:字母、数字、'.'、'-'、'*'、'_'.空格单独处理成'+'
+     */
+    private static final boolean[] UNRESERVED = new boolean[128];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+    }
+
+    /**
+     * 流式写出时的缓冲区从这里申请,所有请求共用
+     */
+    private static final ByteArrayPool sPool = new ByteArrayPool(4 * BUFFER_SIZE);
+
+    private FormUrlEncoder() {
+    }
+
+    /**
+     * 编码参数,返回大小正好的byte[],{@link volley.android.com.Request#getBody()}的默认实现使用它
+     * @param params 参数,键和值都不能为null
+     * @param charsetName 字符集
+     * @return
+     */
+    public static byte[] encode(Map<String, String> params, String charsetName) {
+        Charset charset = forName(charsetName);
+        long length = encodedLength(params, charset);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Encoded parameters too large: " + length);
+        }
+        byte[] data = new byte[(int) length];
+        try {
+            encode(params, charset, data, null);
+        } catch (IOException e) {
+            //没有输出流,不会发生
+            throw new IllegalStateException(e);
+        }
+        return data;
+    }
+
+    /**
+     * 把参数编码后写到输出流,经过一块从缓冲池申请的缓冲区,不会整个编码到内存中
+     * @param params 参数,键和值都不能为null
+     * @param charsetName 字符集
+     * @param out 输出流,不会被关闭
+     * @throws IOException 写出错
+     */
+    public static void writeTo(Map<String, String> params, String charsetName, OutputStream out) throws IOException {
+        Charset charset = forName(charsetName);
+        byte[] buffer = sPool.getBuf(BUFFER_SIZE);
+        try {
+            int count = encode(params, charset, buffer, out);
+            out.write(buffer, 0, count);
+        } finally {
+            sPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * 返回一个流式发送参数的请求正文,长度事先算好,以固定长度发送.
+     * 参数在每次发送时重新编码,请求结束之前不要修改params
+     * @param params 参数,键和值都不能为null
+     * @param charsetName 字符集
+     * @return
+     */
+    public static RequestBody createBody(final Map<String, String> params, final String charsetName) {
+        final long length = encodedLength(params, forName(charsetName));
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                FormUrlEncoder.writeTo(params, charsetName, out);
+            }
+        };
+    }
+
+    /**
+     * 返回编码后的字节数
+     * @param params 参数,键和值都不能为null
+     * @param charset 字符集
+     * @return
+     */
+    static long encodedLength(Map<String, String> params, Charset charset) {
+        long length = 0;
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            //'='和'&'各一个字节
+            length += encodedLength(entry.getKey(), charset) + encodedLength(entry.getValue(), charset) + 2;
+        }
+        return length;
+    }
+
+    private static long encodedLength(String s, Charset charset) {
+        boolean utf8 = UTF_8.equals(charset);
+        long length = 0;
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == ' ' || (c < 128 && UNRESERVED[c])) {
+                length++;
+                i++;
+            } else if (!utf8) {
+                int end = escapedRunEnd(s, i);
+                length += 3 * s.substring(i, end).getBytes(charset).length;
+                i = end;
+            } else if (c < 0x80) {
+                length += 3;
+                i++;
+            } else if (c < 0x800) {
+                length += 6;
+                i++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 12;
+                i += 2;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                //不成对的代理字符被编码成'?'
+                length += 3;
+                i++;
+            } else {
+                length += 9;
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 编码所有参数.out为null时buffer必须足够容纳全部结果;否则buffer写满时先写到out
+     * @return buffer中还没有写出的字节数
+     */
+    private static int encode(Map<String, String> params, Charset charset, byte[] buffer, OutputStream out)
+            throws IOException {
+        int position = 0;
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            position = encode(entry.getKey(), charset, buffer, position, out);
+            position = put(buffer, position, out, (byte) '=');
+            position = encode(entry.getValue(), charset, buffer, position, out);
+            position = put(buffer, position, out, (byte) '&');
+        }
+        return position;
+    }
+
+    private static int encode(String s, Charset charset, byte[] buffer, int position, OutputStream out)
+            throws IOException {
+        boolean utf8 = UTF_8.equals(charset);
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            if (out != null && position > buffer.length - MAX_CHAR_BYTES) {
+                out.write(buffer, 0, position);
+                position = 0;
+            }
+            char c = s.charAt(i);
+            if (c == ' ') {
+                buffer[position++] = '+';
+                i++;
+            } else if (c < 128 && UNRESERVED[c]) {
+                buffer[position++] = (byte) c;
+                i++;
+            } else if (!utf8) {
+                //和URLEncoder一样,连续需要转义的一段字符一起编码
+                int end = escapedRunEnd(s, i);
+                byte[] bytes = s.substring(i, end).getBytes(charset);
+                for (byte b : bytes) {
+                    position = putEscaped(buffer, position, out, b);
+                }
+                i = end;
+            } else if (c < 0x80) {
+                position = escape(buffer, position, c);
+                i++;
+            } else if (c < 0x800) {
+                position = escape(buffer, position, 0xc0 | (c >> 6));
+                position = escape(buffer, position, 0x80 | (c & 0x3f));
+                i++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+                position = escape(buffer, position, 0xf0 | (codePoint >> 18));
+                position = escape(buffer, position, 0x80 | ((codePoint >> 12) & 0x3f));
+                position = escape(buffer, position, 0x80 | ((codePoint >> 6) & 0x3f));
+                position = escape(buffer, position, 0x80 | (codePoint & 0x3f));
+                i += 2;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                position = escape(buffer, position, '?');
+                i++;
+            } else {
+                position = escape(buffer, position, 0xe0 | (c >> 12));
+                position = escape(buffer, position, 0x80 | ((c >> 6) & 0x3f));
+                position = escape(buffer, position, 0x80 | (c & 0x3f));
+                i++;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * 返回从start开始连续需要转义的一段字符的结束位置
+     */
+    private static int escapedRunEnd(String s, int start) {
+        int end = start;
+        int n = s.length();
+        while (end < n) {
+            char c = s.charAt(end);
+            if (c == ' ' || (c < 128 && UNRESERVED[c])) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static int escape(byte[] buffer, int position, int b) {
+        buffer[position] = '%';
+        buffer[position + 1] = HEX_DIGITS[(b >> 4) & 0xf];
+        buffer[position + 2] = HEX_DIGITS[b & 0xf];
+        return position + 3;
+    }
+
+    private static int putEscaped(byte[] buffer, int position, OutputStream out, byte b) throws IOException {
+        if (out != null && position > buffer.length - 3) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        return escape(buffer, position, b);
+    }
+
+    private static int put(byte[] buffer, int position, OutputStream out, byte b) throws IOException {
+        if (out != null && position == buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        buffer[position] = b;
+        return position + 1;
+    }
+
+    private static Charset forName(String charsetName) {
+        try {
+            return Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Encoding not supported: " + charsetName, e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package volley.android.com.toolbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 近似统计访问频率的Count-Min Sketch,供{@link TinyLfuEvictionPolicy}使用.
+ * <p>
+ * 每个long存放16个4位计数器(最大15),每个键映射到4个计数器,频率取其中的最小值.
+ * 累计的计数次数达到容量的10倍时,所有计数器减半,让统计值反映最近一段时间的访问
+ * </p>
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    /**
+     * 每个4位计数器右移一位后需要清掉的最高位
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final long COUNTER_MASK = 0xfL;
+
+    private final long[] mTable;
+
+    private final int mTableMask;
+
+    /**
+     * 计数次数达到这个值时所有计数器减半
+     */
+    private final int mSampleSize;
+
+    /**
+     * 自上次减半以来的计数次数
+     */
+    private int mSize;
+
+    /**
+     * @param expectedEntries 预计的键数量
+     */
+    FrequencySketch(int expectedEntries) {
+        int capacity = Math.max(expectedEntries, 16);
+        int tableSize = Integer.highestOneBit(capacity - 1) << 1;
+        mTable = new long[tableSize];
+        mTableMask = tableSize - 1;
+        mSampleSize = 10 * capacity;
+    }
+
+    /**
+     * 键被访问了一次
+     * @param hashCode 键的哈希码
+     */
+    synchronized void increment(int hashCode) {
+        int hash = spread(hashCode);
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = indexHash(hash, i);
+            int index = (int) h & mTableMask;
+            int offset = counterOffset(h);
+            if (((mTable[index] >>> offset) & COUNTER_MASK) != COUNTER_MASK) {
+                mTable[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++mSize >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * 返回键的近似访问次数(0~15)
+     * @param hashCode 键的哈希码
+     */
+    synchronized int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = indexHash(hash, i);
+            int count = (int) ((mTable[(int) h & mTableMask] >>> counterOffset(h)) & COUNTER_MASK);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 保存所有计数器
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(mTable.length);
+        out.writeInt(mSize);
+        for (long counters : mTable) {
+            out.writeLong(counters);
+        }
+    }
+
+    /**
+     * 恢复{@link #writeTo(DataOutputStream)}保存的计数器,容量不一致时抛出IOException,计数器保持不变
+     */
+    synchronized void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != mTable.length) {
+            throw new IOException("Sketch size mismatch");
+        }
+        int size = in.readInt();
+        long[] table = new long[mTable.length];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = in.readLong();
+        }
+        System.arraycopy(table, 0, mTable, 0, table.length);
+        mSize = size;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize /= 2;
+    }
+
+    private static long indexHash(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        return h + (h >>> 32);
+    }
+
+    /**
+     * 在一个long中选出16个计数器中的一个,返回它的位偏移
+     */
+    private static int counterOffset(long h) {
+        return (int) ((h >>> 40) & 15) << 2;
+    }
+
+    /**
+     * 打散String.hashCode()低位分布不均的问题
+     */
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
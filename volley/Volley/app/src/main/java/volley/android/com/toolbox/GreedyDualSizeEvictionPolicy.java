@@ -0,0 +1,62 @@
+package volley.android.com.toolbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * GreedyDual-Size淘汰策略,同时考虑缓存项的大小和重新获取它的代价.
+ * <p>
+ * 缓存项每次被访问时优先级设为 L + 代价/大小,代价是从网络获取它花费的时间(毫秒),L是最近一次被淘汰的缓存项的优先级.
+ * 又大又快的缓存项先被淘汰,又小又慢的缓存项留得更久;L随淘汰单调增长,长期不被访问的缓存项最终都会被淘汰.
+ * L会随缓存一起保存,重启后新访问的缓存项不会因为L归零而排到所有旧缓存项前面被淘汰
+ * </p>
+ */
+public class GreedyDualSizeEvictionPolicy implements EvictionPolicy, EvictionPolicy.Persistable {
+
+    /**
+     * 获取时间未知时使用的代价
+     */
+    private static final long DEFAULT_COST_MS = 1;
+
+    /**
+     * 基准值L
+     */
+    private volatile double mInflation = 0;
+
+    @Override
+    public void recordRequest(String key) {
+    }
+
+    @Override
+    public double onAccess(String key, long size, long networkTimeMs) {
+        long cost = networkTimeMs > 0 ? networkTimeMs : DEFAULT_COST_MS;
+        return mInflation + (double) cost / Math.max(size, 1);
+    }
+
+    @Override
+    public synchronized void onEvict(String key, double priority) {
+        if (priority > mInflation) {
+            mInflation = priority;
+        }
+    }
+
+    @Override
+    public boolean admit(String candidateKey, String victimKey) {
+        return true;
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        out.writeDouble(mInflation);
+    }
+
+    @Override
+    public synchronized void readState(DataInputStream in) throws IOException {
+        double inflation = in.readDouble();
+        if (inflation < 0 || Double.isNaN(inflation)) {
+            throw new IOException("Bad inflation " + inflation);
+        }
+        mInflation = inflation;
+    }
+}
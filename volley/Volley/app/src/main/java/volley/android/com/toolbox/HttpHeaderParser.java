@@ -177,6 +177,7 @@ public class HttpHeaderParser {
         Cache.Entry entry = new Cache.Entry();
         //响应正文的原始数据
         entry.data = response.data;
+        entry.body = response.body;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
         entry.ttl = finalExpire;
@@ -184,6 +185,7 @@ public class HttpHeaderParser {
         entry.lastModified = lastModified;
         entry.allResponseHeaders = response.allHeaders;
         entry.responseHeaders = response.headers;
+        entry.networkTimeMs = response.networkTimeMs;
 
         return entry;
     }
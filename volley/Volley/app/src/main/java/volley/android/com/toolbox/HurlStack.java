@@ -0,0 +1,182 @@
+package volley.android.com.toolbox;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import volley.android.com.AuthFailureError;
+import volley.android.com.Request;
+import volley.android.com.Request.Method;
+import volley.android.com.RequestBody;
+
+/**
+ * 基于{@link HttpURLConnection}的{@link BaseHttpStack}.
+ * <p>
+ * 请求正文通过{@link #addBodyIfExists(HttpURLConnection, Request)}直接写到连接上:长度已知时以固定长度发送,
+ * 未知时以chunked方式发送,HttpURLConnection不会在内存中再缓存一份正文
+ * </p>
+ */
+public class HurlStack extends BaseHttpStack {
+
+    @Override
+    public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders)
+            throws IOException, AuthFailureError {
+        //请求自己的头部优先于额外的头部
+        Map<String, String> headers = new HashMap<>();
+        headers.putAll(additionalHeaders);
+        headers.putAll(request.getHeaders());
+
+        HttpURLConnection connection = createConnection(new URL(request.getUrl()));
+        boolean keepConnectionOpen = false;
+        try {
+            int timeoutMs = request.getTimeoutMs();
+            connection.setConnectTimeout(timeoutMs);
+            connection.setReadTimeout(timeoutMs);
+            connection.setUseCaches(false);
+            connection.setDoInput(true);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            setConnectionParametersForRequest(connection, request);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == -1) {
+                //连接上拿不到状态码
+                throw new IOException("Could not retrieve response code from HttpUrlConnection.");
+            }
+
+            List<Header> responseHeaders = convertHeaders(connection.getHeaderFields());
+            if (!hasResponseBody(request.getMethod(), responseCode)) {
+                return new HttpResponse(responseCode, responseHeaders);
+            }
+
+            //正文读完关闭输入流时才断开连接
+            keepConnectionOpen = true;
+            return new HttpResponse(responseCode, responseHeaders, connection.getContentLength(),
+                    new UrlConnectionInputStream(connection));
+        } finally {
+            if (!keepConnectionOpen) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 打开一个还没有连接的HttpURLConnection,子类可以重写它设置SSL、代理等
+     * @param url 请求的地址
+     * @return
+     * @throws IOException
+     */
+    protected HttpURLConnection createConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setInstanceFollowRedirects(HttpURLConnection.getFollowRedirects());
+        return connection;
+    }
+
+    /**
+     * 按请求方法设置连接并写出请求正文
+     */
+    private static void setConnectionParametersForRequest(HttpURLConnection connection, Request<?> request)
+            throws IOException, AuthFailureError {
+        switch (request.getMethod()) {
+            case Method.DEPRECATED_GET_OR_POST:
+                //旧的用法:有getPostBody()时是POST,否则是GET
+                byte[] postBody = request.getPostBody();
+                if (postBody != null) {
+                    connection.setRequestMethod("POST");
+                    addBody(connection, request.getPostBodyContentType(), RequestBody.create(postBody));
+                }
+                break;
+            case Method.GET:
+                connection.setRequestMethod("GET");
+                break;
+            case Method.DELETE:
+                connection.setRequestMethod("DELETE");
+                break;
+            case Method.POST:
+                connection.setRequestMethod("POST");
+                addBodyIfExists(connection, request);
+                break;
+            case Method.PUT:
+                connection.setRequestMethod("PUT");
+                addBodyIfExists(connection, request);
+                break;
+            case Method.HEAD:
+                connection.setRequestMethod("HEAD");
+                break;
+            case Method.OPTIONS:
+                connection.setRequestMethod("OPTIONS");
+                break;
+            case Method.TRACE:
+                connection.setRequestMethod("TRACE");
+                break;
+            case Method.PATCH:
+                connection.setRequestMethod("PATCH");
+                addBodyIfExists(connection, request);
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /**
+     * 响应是否有正文:HEAD请求、1xx、204和304的响应没有正文
+     */
+    private static boolean hasResponseBody(int requestMethod, int responseCode) {
+        return requestMethod != Method.HEAD
+                && !(100 <= responseCode && responseCode < HttpURLConnection.HTTP_OK)
+                && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * 把HttpURLConnection的响应头部转换成列表,状态行(键为null)不算头部
+     */
+    static List<Header> convertHeaders(Map<String, List<String>> responseHeaders) {
+        List<Header> headerList = new ArrayList<>(responseHeaders.size());
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+            if (entry.getKey() == null) {
+                continue;
+            }
+            for (String value : entry.getValue()) {
+                headerList.add(new Header(entry.getKey(), value));
+            }
+        }
+        return headerList;
+    }
+
+    /**
+     * 响应正文的输入流,错误响应时是错误流.关闭时断开连接
+     */
+    static class UrlConnectionInputStream extends FilterInputStream {
+        private final HttpURLConnection mConnection;
+
+        UrlConnectionInputStream(HttpURLConnection connection) {
+            super(inputStreamFromConnection(connection));
+            mConnection = connection;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                mConnection.disconnect();
+            }
+        }
+
+        private static InputStream inputStreamFromConnection(HttpURLConnection connection) {
+            try {
+                return connection.getInputStream();
+            } catch (IOException e) {
+                return connection.getErrorStream();
+            }
+        }
+    }
+}
@@ -0,0 +1,815 @@
+package volley.android.com.toolbox;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import volley.android.com.Cache;
+import volley.android.com.VolleyLog;
+
+/**
+ * 日志结构的本地缓存实现，是{@link DiskBasedCache}之外的另一种{@link Cache}实现.
+ * <p>
+ * {@link DiskBasedCache}每个缓存项一个文件,几千个缓存项就是几千个inode,每次put/get/prune都伴随着文件的打开、关闭或删除.
+ * 这里把所有缓存项以追加的方式顺序写入少量的段文件(segment)中,内存里面维护一份 键->(段,偏移) 的索引:
+ * <ul>
+ *     <li>put变成一次顺序追加写</li>
+ *     <li>get变成一次定位读(positional read)</li>
+ *     <li>remove/淘汰只追加一条删除记录,被覆盖或删除的记录所占空间由后台线程压缩(compact)回收</li>
+ * </ul>
+ * </p>
+ *
+ * 段文件中每条记录的格式: [int 记录类型][int 头部长度][int 正文长度][头部][正文],
+ * 其中PUT记录的头部是{@link DiskBasedCache.CacheHeader}，REMOVE记录的头部只有缓存键
+ */
+public class LogStructuredCache implements Cache, Cache.AccessRecorder {
+
+    /**
+     * 默认缓存空间 5M
+     */
+    private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * 单个段文件的默认大小上限 1M,超过之后新开一个段文件
+     */
+    private static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    /**
+     * 缓存的高水位线百分比（到了这个值就说明缓存快要满了）
+     */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /**
+     * 已失效的字节数超过存活字节数的这个倍数时触发压缩
+     */
+    private static final float COMPACTION_GARBAGE_RATIO = 0.5f;
+
+    /**
+     * 段文件的后缀名
+     */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * 记录类型:新增或替换缓存项
+     */
+    private static final int RECORD_PUT = 0x4c534301;
+
+    /**
+     * 记录类型:删除缓存项
+     */
+    private static final int RECORD_REMOVE = 0x4c534302;
+
+    /**
+     * 记录的固定头部长度: 类型 + 头部长度 + 正文长度
+     */
+    private static final int RECORD_PREFIX_BYTES = 12;
+
+    /**
+     * 单条记录头部的最大长度,用来在恢复时识别损坏的记录
+     */
+    private static final int MAX_RECORD_HEADER_BYTES = 1024 * 1024;
+
+    /**
+     * 内存中的索引,按访问顺序排序,用于LRU淘汰
+     */
+    private final Map<String, Location> mEntries =
+            new LinkedHashMap<String, Location>(16, .75f, true);
+
+    /**
+     * 所有段文件,按段的编号从旧到新排序
+     */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /**
+     * 当前正在追加写入的段
+     */
+    private Segment mActiveSegment;
+
+    /**
+     * 存活记录的总大小(字节)
+     */
+    private long mTotalSize = 0;
+
+    /**
+     * 所有段文件的总大小(字节),包含已失效的记录
+     */
+    private long mDiskSize = 0;
+
+    /**
+     * 缓存文件的根目录
+     */
+    private final File mRootDirectory;
+
+    /**
+     * 缓存的最大空间(字节)
+     */
+    private final int mMaxCacheSizeInBytes;
+
+    /**
+     * 单个段文件的大小上限(字节)
+     */
+    private final int mMaxSegmentSizeInBytes;
+
+    /**
+     * 后台压缩线程
+     */
+    private final ExecutorService mCompactionExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Volley-LogCacheCompaction");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * 是否已经有压缩任务在排队,避免重复提交
+     */
+    private boolean mCompactionScheduled = false;
+
+    /**
+     * 每次{@link #clear()}加一.clear之后段编号从0重新开始,正在进行的压缩持有的旧段可能和新段同名,
+     * 压缩发现代数变了就放弃,不再删除任何段文件
+     */
+    private int mGeneration = 0;
+
+    /**
+     * 创建一个日志结构的本地缓存
+     * @param rootDirectory 段文件所在的根目录,不要与{@link DiskBasedCache}共用同一个目录
+     * @param maxCacheSizeInBytes 缓存的最大容量
+     * @param maxSegmentSizeInBytes 单个段文件的大小上限
+     */
+    public LogStructuredCache(File rootDirectory, int maxCacheSizeInBytes, int maxSegmentSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mMaxSegmentSizeInBytes = maxSegmentSizeInBytes;
+    }
+
+    /**
+     * 创建一个日志结构的本地缓存,段文件大小采用默认值(1M)
+     * @param rootDirectory 段文件所在的根目录
+     * @param maxCacheSizeInBytes 缓存的最大容量
+     */
+    public LogStructuredCache(File rootDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * 创建一个日志结构的本地缓存,采用默认容量(5M)
+     * @param rootDirectory 段文件所在的根目录
+     */
+    public LogStructuredCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    @Override
+    public synchronized void initialize() {
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            return;
+        }
+
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        //按段编号从旧到新回放,后写入的记录覆盖先写入的记录
+        TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+        for (File file : files) {
+            int id = parseSegmentId(file.getName());
+            if (id >= 0) {
+                segmentFiles.put(id, file);
+            }
+        }
+
+        for (Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+            try {
+                Segment segment = openSegment(segmentFile.getKey(), segmentFile.getValue());
+                replaySegment(segment);
+            } catch (IOException e) {
+                VolleyLog.d("Dropping unreadable segment %s: %s",
+                        segmentFile.getValue().getAbsolutePath(), e.toString());
+                segmentFile.getValue().delete();
+            }
+        }
+
+        if (!mSegments.isEmpty()) {
+            mActiveSegment = mSegments.lastEntry().getValue();
+        }
+        maybeScheduleCompaction();
+    }
+
+    @Override
+    public synchronized Entry get(String key) {
+        Location location = mEntries.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        try {
+            byte[] data = new byte[location.bodyLength];
+            readFully(location.segment.channel, ByteBuffer.wrap(data), location.bodyOffset);
+            return location.header.toCacheEntry(
+                    BodyCodec.decode(location.header.codec, data, location.header.dataLength));
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", location.segment.file.getAbsolutePath(), e.toString());
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized Entry getMetadata(String key) {
+        Location location = mEntries.get(key);
+        if (location == null) {
+            return null;
+        }
+        //元数据常驻内存,不需要任何磁盘读取
+        return location.header.toCacheEntry(null);
+    }
+
+    /**
+     * 按访问顺序排序的索引中查一次,把缓存项移到最近使用的一端
+     */
+    @Override
+    public synchronized void recordAccess(String key) {
+        mEntries.get(key);
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader(key, entry);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        if (!header.writeHeader(headerBytes)) {
+            VolleyLog.d("Failed to write header for %s", key);
+            return;
+        }
+
+        //按整条记录在段文件中占用的大小计算,只算正文会让存活记录超出上限
+        pruneIfNeeded(RECORD_PREFIX_BYTES + headerBytes.size() + entry.data.length);
+
+        try {
+            Location location = append(RECORD_PUT, headerBytes.toByteArray(), entry.data);
+            location.header = header;
+            header.size = location.recordLength;
+            putLocation(key, location);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append %s: %s", key, e.toString());
+        }
+        maybeScheduleCompaction();
+    }
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        Location location = mEntries.get(key);
+        if (location != null) {
+            Entry entry = location.header.toCacheEntry(null);
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            updateMetadata(key, entry);
+        }
+    }
+
+    /**
+     * 元数据段长度不变时直接改写段文件中这条记录的元数据,不追加新记录,也不产生需要压缩的垃圾
+     */
+    @Override
+    public synchronized void updateMetadata(String key, Entry entry) {
+        Location location = mEntries.get(key);
+        if (location == null) {
+            if (entry.data != null) {
+                put(key, entry);
+            }
+            return;
+        }
+
+        DiskBasedCache.CacheHeader updated = location.header.withMetadata(entry.etag, entry.serverDate,
+                entry.lastModified, entry.ttl, entry.softTtl);
+        if (location.header.hasSameMetadataLength(updated)) {
+            try {
+                long headerOffset = location.bodyOffset
+                        - (location.recordLength - RECORD_PREFIX_BYTES - location.bodyLength);
+                writeFully(location.segment.channel, ByteBuffer.wrap(updated.metadataBytes()),
+                        headerOffset + location.header.metadataOffset());
+                location.header = updated;
+                return;
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", location.segment.file.getAbsolutePath(), e.toString());
+            }
+        }
+
+        //etag长度变了,原记录放不下新的元数据,只能带着正文追加一条新记录
+        Entry current = get(key);
+        if (current != null) {
+            current.etag = entry.etag;
+            current.serverDate = entry.serverDate;
+            current.lastModified = entry.lastModified;
+            current.ttl = entry.ttl;
+            current.softTtl = entry.softTtl;
+            put(key, current);
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (!mEntries.containsKey(key)) {
+            return;
+        }
+        removeLocation(key);
+        appendTombstone(key);
+        maybeScheduleCompaction();
+    }
+
+    @Override
+    public synchronized void clear() {
+        mGeneration++;
+        for (Segment segment : mSegments.values()) {
+            closeQuietly(segment);
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mEntries.clear();
+        mActiveSegment = null;
+        mTotalSize = 0;
+        mDiskSize = 0;
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * 缓存压力大，按LRU顺序淘汰缓存项直到低于水位线.被淘汰的缓存项只追加删除记录,空间由压缩回收
+     * @param neededSpace 新记录在段文件中占用的大小,包括记录前缀和头部
+     */
+    private void pruneIfNeeded(int neededSpace) {
+        if (neededSpace + mTotalSize < mMaxCacheSizeInBytes) {
+            return;
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Pruning old cache entries.");
+        }
+
+        long before = mTotalSize;
+        int prunedEntries = 0;
+        long startTime = SystemClock.elapsedRealtime();
+
+        List<String> victims = new ArrayList<String>();
+        long remaining = mTotalSize;
+        for (Map.Entry<String, Location> entry : mEntries.entrySet()) {
+            victims.add(entry.getKey());
+            remaining -= entry.getValue().recordLength;
+            if ((remaining + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+
+        for (String key : victims) {
+            removeLocation(key);
+            appendTombstone(key);
+            prunedEntries++;
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("pruned %d entries, %d bytes, %d ms",
+                    prunedEntries, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * 更新内存中的索引,被覆盖的旧记录成为垃圾
+     */
+    private void putLocation(String key, Location location) {
+        Location old = mEntries.put(key, location);
+        if (old != null) {
+            mTotalSize -= old.recordLength;
+            old.segment.liveBytes -= old.recordLength;
+        }
+        mTotalSize += location.recordLength;
+        location.segment.liveBytes += location.recordLength;
+    }
+
+    /**
+     * 从内存索引中删除一个缓存项
+     */
+    private void removeLocation(String key) {
+        Location removed = mEntries.remove(key);
+        if (removed != null) {
+            mTotalSize -= removed.recordLength;
+            removed.segment.liveBytes -= removed.recordLength;
+        }
+    }
+
+    /**
+     * 追加一条删除记录,防止重启回放时被删除的缓存项复活
+     */
+    private void appendTombstone(String key) {
+        ByteArrayOutputStream keyBytes = new ByteArrayOutputStream();
+        try {
+            DiskBasedCache.writeString(keyBytes, key);
+            append(RECORD_REMOVE, keyBytes.toByteArray(), new byte[0]);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to append tombstone for %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * 往当前段的末尾顺序追加一条记录,当前段写满后切换到新段
+     * @return 新记录的位置,调用者负责设置{@link Location#header}
+     */
+    private Location append(int type, byte[] header, byte[] body) throws IOException {
+        int recordLength = RECORD_PREFIX_BYTES + header.length + body.length;
+        if (mActiveSegment == null
+                || (mActiveSegment.size > 0 && mActiveSegment.size + recordLength > mMaxSegmentSizeInBytes)) {
+            rollSegment();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(recordLength);
+        buffer.putInt(type).putInt(header.length).putInt(body.length).put(header).put(body);
+        buffer.flip();
+
+        Segment segment = mActiveSegment;
+        long recordOffset = segment.size;
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, recordOffset + buffer.position());
+        }
+        segment.size += recordLength;
+        mDiskSize += recordLength;
+
+        Location location = new Location();
+        location.segment = segment;
+        location.bodyOffset = recordOffset + RECORD_PREFIX_BYTES + header.length;
+        location.bodyLength = body.length;
+        location.recordLength = recordLength;
+        return location;
+    }
+
+    /**
+     * 封存当前段,新开一个段用于追加写
+     */
+    private void rollSegment() throws IOException {
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            throw new IOException("Unable to create cache dir " + mRootDirectory.getAbsolutePath());
+        }
+        int id = mSegments.isEmpty() ? 0 : mSegments.lastKey() + 1;
+        File file = new File(mRootDirectory, id + SEGMENT_SUFFIX);
+        mActiveSegment = openSegment(id, file);
+    }
+
+    private Segment openSegment(int id, File file) throws IOException {
+        Segment segment = new Segment();
+        segment.id = id;
+        segment.file = file;
+        segment.raf = new RandomAccessFile(file, "rw");
+        segment.channel = segment.raf.getChannel();
+        segment.size = segment.channel.size();
+        mSegments.put(id, segment);
+        mDiskSize += segment.size;
+        return segment;
+    }
+
+    /**
+     * 顺序读一遍段文件,重建内存索引.文件末尾不完整的记录(写到一半进程挂了)会被截掉
+     */
+    private void replaySegment(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        long offset = 0;
+        try {
+            while (offset < segment.size) {
+                int type;
+                int headerLength;
+                int bodyLength;
+                byte[] header;
+                try {
+                    type = in.readInt();
+                    headerLength = in.readInt();
+                    bodyLength = in.readInt();
+                    if ((type != RECORD_PUT && type != RECORD_REMOVE)
+                            || headerLength < 0 || headerLength > MAX_RECORD_HEADER_BYTES
+                            || bodyLength < 0
+                            || offset + RECORD_PREFIX_BYTES + headerLength + bodyLength > segment.size) {
+                        throw new IOException("Corrupt record at " + offset);
+                    }
+                    header = new byte[headerLength];
+                    in.readFully(header);
+                    skipFully(in, bodyLength);
+                } catch (EOFException e) {
+                    throw new IOException("Truncated record at " + offset);
+                }
+
+                int recordLength = RECORD_PREFIX_BYTES + headerLength + bodyLength;
+                DiskBasedCache.CountingInputStream cis = new DiskBasedCache.CountingInputStream(
+                        new ByteArrayInputStream(header), headerLength);
+                if (type == RECORD_PUT) {
+                    Location location = new Location();
+                    location.segment = segment;
+                    location.header = DiskBasedCache.CacheHeader.readHeader(cis);
+                    location.header.size = recordLength;
+                    location.bodyOffset = offset + RECORD_PREFIX_BYTES + headerLength;
+                    location.bodyLength = bodyLength;
+                    location.recordLength = recordLength;
+                    putLocation(location.header.key, location);
+                } else {
+                    removeLocation(DiskBasedCache.readString(cis));
+                }
+                offset += recordLength;
+            }
+        } catch (IOException e) {
+            //截掉损坏的尾部,保留之前完好的记录
+            VolleyLog.d("%s: %s, truncating to %d", segment.file.getAbsolutePath(), e.toString(), offset);
+            mDiskSize -= segment.size - offset;
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 等待已经提交的压缩执行完,测试使用
+     */
+    void awaitCompaction() throws InterruptedException, ExecutionException {
+        //压缩线程只有一个,排在后面的空任务执行时,之前提交的压缩都已经结束;压缩结束时可能又提交了下一次
+        boolean scheduled;
+        do {
+            mCompactionExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+            synchronized (this) {
+                scheduled = mCompactionScheduled;
+            }
+        } while (scheduled);
+    }
+
+    /**
+     * 垃圾比例过高时,提交一个后台压缩任务
+     */
+    private void maybeScheduleCompaction() {
+        if (mCompactionScheduled || !needsCompaction()) {
+            return;
+        }
+        mCompactionScheduled = true;
+        mCompactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * 垃圾比例过高,或者段文件总大小超过上限时需要压缩.只能压缩最旧的已封存段,这个段里没有垃圾时搬迁回收不了任何空间,
+     * 只会不停地重写段文件,这时不压缩.调用者必须持有锁
+     */
+    private boolean needsCompaction() {
+        if (mSegments.size() < 2) {
+            return false;
+        }
+        Segment oldest = mSegments.firstEntry().getValue();
+        long garbage = mDiskSize - mTotalSize;
+        if (oldest == mActiveSegment || oldest.liveBytes >= oldest.size || garbage <= 0) {
+            return false;
+        }
+        return garbage >= mTotalSize * COMPACTION_GARBAGE_RATIO || mDiskSize >= mMaxCacheSizeInBytes;
+    }
+
+    /**
+     * 后台压缩:每次只压缩最旧的已封存段,把其中仍然存活的记录搬到当前段,然后删除这个段文件.
+     * <p>
+     * 只压缩最旧的段是为了可以安全地丢弃其中的删除记录:不存在更旧的段会让被删除的缓存项在重启时复活
+     * </p>
+     */
+    private void compact() {
+        while (true) {
+            Segment oldest;
+            int generation;
+            List<String> liveKeys = new ArrayList<String>();
+            synchronized (this) {
+                if (!needsCompaction()) {
+                    mCompactionScheduled = false;
+                    return;
+                }
+                generation = mGeneration;
+                oldest = mSegments.firstEntry().getValue();
+                for (Map.Entry<String, Location> entry : mEntries.entrySet()) {
+                    if (entry.getValue().segment == oldest) {
+                        liveKeys.add(entry.getKey());
+                    }
+                }
+            }
+
+            long startTime = SystemClock.elapsedRealtime();
+            int moved = 0;
+            long movedBytes = 0;
+            for (String key : liveKeys) {
+                synchronized (this) {
+                    if (generation != mGeneration) {
+                        break;
+                    }
+                    int length = moveRecord(key, oldest);
+                    if (length < 0) {
+                        continue;
+                    }
+                    moved++;
+                    movedBytes += length;
+                }
+            }
+
+            synchronized (this) {
+                if (generation != mGeneration || mSegments.get(oldest.id) != oldest) {
+                    //压缩期间缓存被清空了,旧段已经关闭并删除,同编号的段是clear之后新写的,不能动
+                    mCompactionScheduled = false;
+                    return;
+                }
+                //搬迁期间若有失败的记录则放弃这个段,对应的缓存项一并删除
+                Iterator<Map.Entry<String, Location>> iterator = mEntries.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Location location = iterator.next().getValue();
+                    if (location.segment == oldest) {
+                        mTotalSize -= location.recordLength;
+                        iterator.remove();
+                    }
+                }
+                mSegments.remove(oldest.id);
+                mDiskSize -= oldest.size;
+                closeQuietly(oldest);
+                if (!oldest.file.delete()) {
+                    VolleyLog.d("Could not delete segment %s", oldest.file.getAbsolutePath());
+                }
+            }
+
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("compacted segment %d, moved %d entries, %d ms",
+                        oldest.id, moved, SystemClock.elapsedRealtime() - startTime);
+            }
+
+            if (oldest.size - movedBytes <= 0) {
+                //这一轮没有回收任何空间,继续下去也不会有进展
+                synchronized (this) {
+                    mCompactionScheduled = false;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把一个仍然存活在指定段中的缓存项搬迁到当前段,调用者必须持有锁
+     * @return 成功搬迁返回新记录的长度,否则返回-1
+     */
+    private int moveRecord(String key, Segment from) {
+        Location location = mEntries.get(key);
+        if (location == null || location.segment != from) {
+            //压缩期间被覆盖或删除了
+            return -1;
+        }
+        try {
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            if (!location.header.writeHeader(headerBytes)) {
+                return -1;
+            }
+            byte[] body = new byte[location.bodyLength];
+            readFully(from.channel, ByteBuffer.wrap(body), location.bodyOffset);
+            Location moved = append(RECORD_PUT, headerBytes.toByteArray(), body);
+            moved.header = location.header;
+            //搬迁不算访问,避免打乱LRU顺序,这里直接替换值而不调用get/put
+            location.segment.liveBytes -= location.recordLength;
+            location.segment = moved.segment;
+            location.bodyOffset = moved.bodyOffset;
+            location.recordLength = moved.recordLength;
+            location.segment.liveBytes += location.recordLength;
+            return location.recordLength;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to move %s: %s", key, e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * 从文件名解析出段编号,非段文件返回-1
+     */
+    private static int parseSegmentId(String name) {
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 从文件通道的指定位置读满缓冲区
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("position=" + position + ", remaining=" + buffer.remaining());
+            }
+        }
+    }
+
+    /**
+     * 把缓冲区写满到文件通道的指定位置
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.raf.close();
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", segment.file.getAbsolutePath(), e.toString());
+        }
+    }
+
+    /**
+     * 一个段文件
+     */
+    private static class Segment {
+        int id;
+        File file;
+        RandomAccessFile raf;
+        FileChannel channel;
+
+        /**
+         * 段文件当前的大小,也是下一条记录的写入位置
+         */
+        long size;
+
+        /**
+         * 段文件中仍然存活的记录大小
+         */
+        long liveBytes;
+    }
+
+    /**
+     * 缓存项在段文件中的位置
+     */
+    private static class Location {
+        Segment segment;
+
+        /**
+         * 正文在段文件中的偏移
+         */
+        long bodyOffset;
+
+        /**
+         * 正文的长度
+         */
+        int bodyLength;
+
+        /**
+         * 整条记录的长度,用于统计缓存大小
+         */
+        int recordLength;
+
+        /**
+         * 缓存项的元数据,常驻内存,get时不需要再读头部
+         */
+        DiskBasedCache.CacheHeader header;
+    }
+}
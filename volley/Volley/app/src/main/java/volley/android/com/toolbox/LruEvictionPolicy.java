@@ -0,0 +1,32 @@
+package volley.android.com.toolbox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 最近最少使用淘汰策略,{@link DiskBasedCache}的默认策略:优先级就是最近一次访问的逻辑时间,所有缓存项都接纳
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    /**
+     * 逻辑时钟,每次访问递增
+     */
+    private final AtomicLong mClock = new AtomicLong(0);
+
+    @Override
+    public void recordRequest(String key) {
+    }
+
+    @Override
+    public double onAccess(String key, long size, long networkTimeMs) {
+        return mClock.incrementAndGet();
+    }
+
+    @Override
+    public void onEvict(String key, double priority) {
+    }
+
+    @Override
+    public boolean admit(String candidateKey, String victimKey) {
+        return true;
+    }
+}
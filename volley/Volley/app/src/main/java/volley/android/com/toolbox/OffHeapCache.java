@@ -0,0 +1,355 @@
+package volley.android.com.toolbox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import volley.android.com.Cache;
+
+/**
+ * 在磁盘缓存(通常是{@link DiskBasedCache})前面加一层堆外内存的缓存.
+ * <p>
+ * 热点缓存项的正文放在堆外的直接内存(direct ByteBuffer)里,不占用Java堆,大量中等大小的正文常驻内存也不会拉长GC停顿.
+ * 堆外内存按固定大小的页管理:一次申请一大块(chunk)并切成页,缓存项的正文分散存放在若干页中,
+ * 淘汰时页直接回到空闲列表复用,整个运行期间不会反复申请和释放直接内存.
+ * </p>
+ * <ul>
+ *     <li>读取:先查堆外层,未命中再读磁盘缓存,并把读到的缓存项提升到堆外层</li>
+ *     <li>{@link #getMetadata(String)}命中堆外层时只返回元数据,不复制正文;只有{@link #get(String)}才把正文复制成byte[],
+ *     也就是交给parseNetworkResponse之前才物化正文</li>
+ *     <li>写入直接写磁盘缓存,堆外层中的旧正文作废,下次访问时再提升</li>
+ * </ul>
+ * 堆外层容量单独设置,超出时按LRU淘汰.这个类是线程安全的
+ */
+public class OffHeapCache implements Cache, Cache.AccessRecorder, Cache.SpooledBodySupport {
+
+    /**
+     * 页大小
+     */
+    private static final int PAGE_SIZE = 4 * 1024;
+
+    /**
+     * 每块直接内存包含的页数(1M)
+     */
+    private static final int PAGES_PER_CHUNK = 256;
+
+    /**
+     * 被包装的磁盘缓存
+     */
+    private final Cache mDiskCache;
+
+    /**
+     * 堆外层最多使用的页数
+     */
+    private final int mMaxPages;
+
+    /**
+     * 已经申请的直接内存块,按需申请,申请之后不再释放
+     */
+    private final List<ByteBuffer> mChunks = new ArrayList<>();
+
+    /**
+     * 空闲页的编号
+     */
+    private final int[] mFreePages;
+
+    private int mFreeCount = 0;
+
+    /**
+     * 已经从直接内存块中切出来的页数
+     */
+    private int mCarvedPages = 0;
+
+    /**
+     * 堆外层中的缓存项,按访问顺序排序
+     */
+    private final LinkedHashMap<String, Item> mItems = new LinkedHashMap<>(16, .75f, true);
+
+    private long mHitCount = 0;
+
+    private long mMissCount = 0;
+
+    /**
+     * 写操作的计数,每次put/remove/invalidate/updateMetadata/clear改动堆外层时加一.
+     * get在锁外读磁盘之前记下它,提升时它变了说明读出来的缓存项可能已经过时,不再提升
+     */
+    private long mGeneration = 0;
+
+    /**
+     * 堆外层中的一个缓存项,元数据在堆上,正文在堆外的页中
+     */
+    private static class Item {
+        /**
+         * 元数据,data为null
+         */
+        final Entry metadata;
+        final int[] pages;
+        final int length;
+
+        Item(Entry metadata, int[] pages, int length) {
+            this.metadata = metadata;
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param diskCache 被包装的磁盘缓存
+     * @param maxOffHeapBytes 堆外层的容量(字节)
+     */
+    public OffHeapCache(Cache diskCache, int maxOffHeapBytes) {
+        mDiskCache = diskCache;
+        mMaxPages = maxOffHeapBytes / PAGE_SIZE;
+        mFreePages = new int[mMaxPages];
+    }
+
+    @Override
+    public Entry get(String key) {
+        long generation;
+        synchronized (this) {
+            Item item = mItems.get(key);
+            if (item != null) {
+                mHitCount++;
+                Entry entry = copyMetadata(item.metadata);
+                entry.data = readBody(item);
+                return entry;
+            }
+            mMissCount++;
+            generation = mGeneration;
+        }
+
+        //读磁盘时不持有锁
+        Entry entry = mDiskCache.get(key);
+        if (entry != null) {
+            promote(key, entry, generation);
+        }
+        return entry;
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        synchronized (this) {
+            Item item = mItems.get(key);
+            if (item != null) {
+                return copyMetadata(item.metadata);
+            }
+        }
+        return mDiskCache.getMetadata(key);
+    }
+
+    /**
+     * 堆外层和磁盘缓存都记录这次访问,堆外层中的命中平时也不会读磁盘缓存
+     */
+    @Override
+    public void recordAccess(String key) {
+        synchronized (this) {
+            mItems.get(key);
+        }
+        if (mDiskCache instanceof AccessRecorder) {
+            ((AccessRecorder) mDiskCache).recordAccess(key);
+        }
+    }
+
+    /**
+     * 写入磁盘缓存,正文落地在文件中时磁盘缓存支持就直接交给它移动文件,不支持时先读回内存
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        SpooledEntries.put(mDiskCache, key, entry);
+        synchronized (this) {
+            mGeneration++;
+            removeItem(key);
+        }
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        mDiskCache.updateMetadata(key, entry);
+        synchronized (this) {
+            mGeneration++;
+            Item item = mItems.get(key);
+            if (item != null) {
+                Entry metadata = item.metadata;
+                metadata.etag = entry.etag;
+                metadata.serverDate = entry.serverDate;
+                metadata.lastModified = entry.lastModified;
+                metadata.ttl = entry.ttl;
+                metadata.softTtl = entry.softTtl;
+            }
+        }
+    }
+
+    @Override
+    public void initialize() {
+        mDiskCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mDiskCache.invalidate(key, fullExpire);
+        synchronized (this) {
+            mGeneration++;
+            Item item = mItems.get(key);
+            if (item != null) {
+                item.metadata.softTtl = 0;
+                if (fullExpire) {
+                    item.metadata.ttl = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        mDiskCache.remove(key);
+        synchronized (this) {
+            mGeneration++;
+            removeItem(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        mDiskCache.clear();
+        synchronized (this) {
+            mGeneration++;
+            for (Item item : mItems.values()) {
+                freePages(item.pages);
+            }
+            mItems.clear();
+        }
+    }
+
+    /**
+     * 返回堆外层的命中次数
+     * @return
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * 返回堆外层的未命中次数
+     * @return
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 返回堆外层当前存放的正文总大小(字节)
+     * @return
+     */
+    public synchronized long getSizeInBytes() {
+        long size = 0;
+        for (Item item : mItems.values()) {
+            size += item.length;
+        }
+        return size;
+    }
+
+    /**
+     * 把从磁盘读到的缓存项放到堆外层,空间不够时按LRU淘汰
+     * @param generation 读磁盘之前的{@link #mGeneration},读磁盘期间有写操作时不提升,
+     *                   否则会把写操作已经替换或删除的旧缓存项放回堆外层
+     */
+    private synchronized void promote(String key, Entry entry, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        byte[] data = entry.data;
+        int needed = (data.length + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (needed > mMaxPages) {
+            return;
+        }
+
+        removeItem(key);
+        Iterator<Map.Entry<String, Item>> iterator = mItems.entrySet().iterator();
+        while (availablePages() < needed && iterator.hasNext()) {
+            freePages(iterator.next().getValue().pages);
+            iterator.remove();
+        }
+
+        int[] pages = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            pages[i] = allocatePage();
+            int offset = i * PAGE_SIZE;
+            ByteBuffer chunk = positionAt(pages[i]);
+            chunk.put(data, offset, Math.min(PAGE_SIZE, data.length - offset));
+        }
+        mItems.put(key, new Item(copyMetadata(entry), pages, data.length));
+    }
+
+    /**
+     * 把堆外的正文复制成byte[],调用者必须持有锁
+     */
+    private byte[] readBody(Item item) {
+        byte[] data = new byte[item.length];
+        for (int i = 0; i < item.pages.length; i++) {
+            int offset = i * PAGE_SIZE;
+            positionAt(item.pages[i]).get(data, offset, Math.min(PAGE_SIZE, data.length - offset));
+        }
+        return data;
+    }
+
+    /**
+     * 返回页所在的直接内存块,并把它的position移到页的开头.调用者必须持有锁
+     */
+    private ByteBuffer positionAt(int page) {
+        ByteBuffer chunk = mChunks.get(page / PAGES_PER_CHUNK);
+        chunk.clear();
+        chunk.position((page % PAGES_PER_CHUNK) * PAGE_SIZE);
+        return chunk;
+    }
+
+    private int availablePages() {
+        return mFreeCount + (mMaxPages - mCarvedPages);
+    }
+
+    /**
+     * 取一个空闲页,没有时从直接内存块中切一个新页,当前块用完时申请下一块.调用者必须确认还有可用的页
+     */
+    private int allocatePage() {
+        if (mFreeCount > 0) {
+            return mFreePages[--mFreeCount];
+        }
+        if (mCarvedPages % PAGES_PER_CHUNK == 0) {
+            int pages = Math.min(PAGES_PER_CHUNK, mMaxPages - mCarvedPages);
+            mChunks.add(ByteBuffer.allocateDirect(pages * PAGE_SIZE));
+        }
+        return mCarvedPages++;
+    }
+
+    private void freePages(int[] pages) {
+        for (int page : pages) {
+            mFreePages[mFreeCount++] = page;
+        }
+    }
+
+    private void removeItem(String key) {
+        Item removed = mItems.remove(key);
+        if (removed != null) {
+            freePages(removed.pages);
+        }
+    }
+
+    /**
+     * 复制缓存项的元数据,不包括正文.返回的对象调用者可以随意修改
+     */
+    private static Entry copyMetadata(Entry entry) {
+        Entry copy = new Entry();
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        copy.allResponseHeaders = entry.allResponseHeaders;
+        copy.networkTimeMs = entry.networkTimeMs;
+        copy.tags = entry.tags;
+        return copy;
+    }
+}
@@ -0,0 +1,330 @@
+package volley.android.com.toolbox;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import volley.android.com.Cache;
+
+/**
+ * 分区缓存:把缓存键分到若干个有名字的分区中,每个分区是一个独立的{@link Cache},有自己的容量和淘汰策略.
+ * <p>
+ * 只用一个缓存时,大的图片/视频会把小而关键的接口响应挤出去.分区之后,例如"api"分区给20M,"media"分区给2G,
+ * 媒体文件再多也只在自己的分区内互相淘汰.
+ * </p>
+ * 缓存键按下面的顺序决定分区:
+ * <ol>
+ *     <li>请求指定了分区({@link volley.android.com.Request#setCachePartition(String)}),缓存键带有分区前缀,见{@link #partitionKey(String, String)}</li>
+ *     <li>{@link #setRouter(Router)}设置的路由规则</li>
+ *     <li>{@link #addPrefixRule(String, String)}添加的前缀规则,按添加顺序匹配第一个</li>
+ *     <li>默认分区</li>
+ * </ol>
+ * 每个分区单独统计命中率,见{@link #getStats()},可以根据线上数据调整各分区的容量.
+ * 分区和规则需要在缓存交给{@link volley.android.com.RequestQueue}之前配置好
+ */
+public class PartitionedCache implements Cache, Cache.AccessRecorder, Cache.SpooledBodySupport {
+
+    /**
+     * 按缓存键决定分区的路由规则
+     */
+    public interface Router {
+        /**
+         * @param key 缓存键
+         * @return 分区名,返回null或者不存在的分区时交给前缀规则和默认分区处理
+         */
+        String route(String key);
+    }
+
+    /**
+     * 一个分区的统计数据
+     */
+    public static class PartitionStats {
+        public final String name;
+
+        /**
+         * 查找次数中命中且没有完全过期的次数
+         */
+        public final long hitCount;
+
+        /**
+         * 查找次数中不存在或者已经完全过期的次数
+         */
+        public final long missCount;
+
+        /**
+         * 当前占用的空间,分区不是{@link DiskBasedCache}时为-1
+         */
+        public final long sizeInBytes;
+
+        /**
+         * 分区的容量,分区不是{@link DiskBasedCache}时为-1
+         */
+        public final long maxSizeInBytes;
+
+        PartitionStats(String name, long hitCount, long missCount, long sizeInBytes, long maxSizeInBytes) {
+            this.name = name;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.sizeInBytes = sizeInBytes;
+            this.maxSizeInBytes = maxSizeInBytes;
+        }
+
+        /**
+         * @return 命中率,没有查找过时为0
+         */
+        public double hitRate() {
+            long total = hitCount + missCount;
+            return total == 0 ? 0 : (double) hitCount / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: hits=%d misses=%d hitRate=%.3f size=%d/%d",
+                    name, hitCount, missCount, hitRate(), sizeInBytes, maxSizeInBytes);
+        }
+    }
+
+    private static class Partition {
+        final String name;
+        final Cache cache;
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        Partition(String name, Cache cache) {
+            this.name = name;
+            this.cache = cache;
+        }
+    }
+
+    private static class PrefixRule {
+        final String prefix;
+        final String partition;
+
+        PrefixRule(String prefix, String partition) {
+            this.prefix = prefix;
+            this.partition = partition;
+        }
+    }
+
+    /**
+     * 带分区前缀的缓存键的开头
+     */
+    private static final char PARTITION_KEY_START = '{';
+
+    private static final char PARTITION_KEY_END = '}';
+
+    /**
+     * 所有分区,按添加顺序
+     */
+    private final Map<String, Partition> mPartitions = Collections.synchronizedMap(
+            new LinkedHashMap<String, Partition>());
+
+    private final List<PrefixRule> mPrefixRules = new CopyOnWriteArrayList<>();
+
+    private final Partition mDefaultPartition;
+
+    private volatile Router mRouter;
+
+    /**
+     * @param defaultPartition 默认分区的名字
+     * @param defaultCache 默认分区,没有匹配任何规则的缓存键放在这里
+     */
+    public PartitionedCache(String defaultPartition, Cache defaultCache) {
+        mDefaultPartition = new Partition(defaultPartition, defaultCache);
+        mPartitions.put(defaultPartition, mDefaultPartition);
+    }
+
+    /**
+     * 添加一个分区
+     * @param name 分区名
+     * @param cache 分区使用的缓存,不要在分区之间共用
+     * @return
+     */
+    public PartitionedCache addPartition(String name, Cache cache) {
+        mPartitions.put(name, new Partition(name, cache));
+        return this;
+    }
+
+    /**
+     * 添加一个以{@link DiskBasedCache}存储的分区,缓存文件放在根目录下以分区名命名的子目录中
+     * @param name 分区名
+     * @param rootDirectory 缓存根目录
+     * @param maxSizeInBytes 分区的容量(字节)
+     * @param evictionPolicy 分区的淘汰策略
+     * @return
+     */
+    public PartitionedCache addPartition(String name, File rootDirectory, long maxSizeInBytes,
+                                         EvictionPolicy evictionPolicy) {
+        return addPartition(name, new DiskBasedCache(new File(rootDirectory, name), maxSizeInBytes, evictionPolicy));
+    }
+
+    /**
+     * 添加一条前缀规则:以prefix开头的缓存键放到指定分区
+     * @param prefix 缓存键(默认是URL)的前缀
+     * @param partition 分区名
+     * @return
+     */
+    public PartitionedCache addPrefixRule(String prefix, String partition) {
+        if (!mPartitions.containsKey(partition)) {
+            throw new IllegalArgumentException("Unknown partition " + partition);
+        }
+        mPrefixRules.add(new PrefixRule(prefix, partition));
+        return this;
+    }
+
+    /**
+     * 设置自定义的路由规则,优先于前缀规则
+     * @param router
+     * @return
+     */
+    public PartitionedCache setRouter(Router router) {
+        mRouter = router;
+        return this;
+    }
+
+    /**
+     * 返回带分区前缀的缓存键,{@link PartitionedCache}会把它放到指定的分区.
+     * 没有使用分区缓存时它只是一个普通的缓存键
+     * @param partition 分区名
+     * @param key 原来的缓存键
+     * @return
+     */
+    public static String partitionKey(String partition, String key) {
+        return PARTITION_KEY_START + partition + PARTITION_KEY_END + key;
+    }
+
+    /**
+     * 返回指定分区的缓存,不存在时返回null
+     * @param name 分区名
+     * @return
+     */
+    public Cache getPartition(String name) {
+        Partition partition = mPartitions.get(name);
+        return partition == null ? null : partition.cache;
+    }
+
+    /**
+     * 返回每个分区的命中统计和空间占用
+     * @return
+     */
+    public List<PartitionStats> getStats() {
+        List<PartitionStats> stats = new ArrayList<>();
+        for (Partition partition : partitions()) {
+            long size = -1;
+            long maxSize = -1;
+            if (partition.cache instanceof DiskBasedCache) {
+                size = ((DiskBasedCache) partition.cache).getTotalSize();
+                maxSize = ((DiskBasedCache) partition.cache).getMaxSizeInBytes();
+            }
+            stats.add(new PartitionStats(partition.name, partition.hits.get(), partition.misses.get(), size, maxSize));
+        }
+        return stats;
+    }
+
+    /**
+     * 找出缓存键所在的分区
+     */
+    private Partition route(String key) {
+        if (key.length() > 0 && key.charAt(0) == PARTITION_KEY_START) {
+            int end = key.indexOf(PARTITION_KEY_END);
+            if (end > 0) {
+                Partition partition = mPartitions.get(key.substring(1, end));
+                if (partition != null) {
+                    return partition;
+                }
+            }
+        }
+
+        Router router = mRouter;
+        if (router != null) {
+            String name = router.route(key);
+            Partition partition = name == null ? null : mPartitions.get(name);
+            if (partition != null) {
+                return partition;
+            }
+        }
+
+        for (PrefixRule rule : mPrefixRules) {
+            if (key.startsWith(rule.prefix)) {
+                return mPartitions.get(rule.partition);
+            }
+        }
+        return mDefaultPartition;
+    }
+
+    private List<Partition> partitions() {
+        synchronized (mPartitions) {
+            return new ArrayList<>(mPartitions.values());
+        }
+    }
+
+    @Override
+    public Entry get(String key) {
+        return route(key).cache.get(key);
+    }
+
+    /**
+     * {@link volley.android.com.CacheDispatcher}处理每个请求时先调用且只调用一次这个方法,命中统计在这里做
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        Partition partition = route(key);
+        Entry entry = partition.cache.getMetadata(key);
+        if (entry == null || entry.isExpired()) {
+            partition.misses.incrementAndGet();
+        } else {
+            partition.hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        Cache cache = route(key).cache;
+        if (cache instanceof AccessRecorder) {
+            ((AccessRecorder) cache).recordAccess(key);
+        }
+    }
+
+    /**
+     * 正文落地在文件中时,分区的缓存支持就直接交给它移动文件,不支持时先读回内存
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        SpooledEntries.put(route(key).cache, key, entry);
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        route(key).cache.updateMetadata(key, entry);
+    }
+
+    @Override
+    public void initialize() {
+        for (Partition partition : partitions()) {
+            partition.cache.initialize();
+        }
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        route(key).cache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        route(key).cache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (Partition partition : partitions()) {
+            partition.cache.clear();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package volley.android.com.toolbox;
+
+import java.io.IOException;
+
+import volley.android.com.Cache;
+import volley.android.com.VolleyLog;
+
+/**
+ * 包装别的缓存、自己实现了{@link Cache.SpooledBodySupport}的缓存共用的方法:
+ * 被包装的缓存支持落地的正文时直接转交,不支持时先把正文读回内存
+ */
+final class SpooledEntries {
+
+    private SpooledEntries() {
+    }
+
+    /**
+     * 缓存项的正文是否落地在文件中,见{@link Cache.Entry#body}
+     * @param entry
+     * @return
+     */
+    static boolean isSpooled(Cache.Entry entry) {
+        return entry.data == null && entry.body != null;
+    }
+
+    /**
+     * 把缓存项写入cache,正文落地在文件中而cache不支持时先把正文读回内存
+     * @param cache 被包装的缓存
+     * @param key 缓存项的键
+     * @param entry 缓存项
+     */
+    static void put(Cache cache, String key, Cache.Entry entry) {
+        if (isSpooled(entry) && !(cache instanceof Cache.SpooledBodySupport) && !readIntoMemory(key, entry)) {
+            return;
+        }
+        cache.put(key, entry);
+    }
+
+    /**
+     * 把落地的正文读进{@link Cache.Entry#data},body置为null
+     * @param key 缓存项的键,只用于日志
+     * @param entry 正文落地在文件中的缓存项
+     * @return 读取失败(临时文件已经被删除)时返回false,缓存项不变
+     */
+    static boolean readIntoMemory(String key, Cache.Entry entry) {
+        try {
+            entry.data = entry.body.toByteArray();
+            entry.body = null;
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to read spooled body for %s: %s", key, e.toString());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package volley.android.com.toolbox;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 交给{@link volley.android.com.Request#parseNetworkResponse(volley.android.com.NetworkResponse, InputStream)}的响应正文输入流.
+ * <p>
+ * 读缓冲区从{@link ByteArrayPool}申请,{@link #release()}时归还;一次读取的长度不小于缓冲区时直接读进调用者的数组,不经过缓冲区.
+ * 需要缓存时,读出的每一个字节同时写入一个{@link PoolingByteArrayOutputStream},解析完后用它生成缓存项的正文
+ * </p>
+ * <p>
+ * 解析器调用{@link #close()}只是不能再读,连接和读缓冲区留给网络层:网络层先用{@link #drain()}读完剩下的正文,
+ * 再调用{@link #release()}释放.两者都可以重复调用
+ * </p>
+ * 这个类不是线程安全的,只在网络线程中使用
+ */
+class TeeInputStream extends FilterInputStream {
+
+    private final ByteArrayPool mPool;
+
+    /**
+     * 读出的字节同时写到这里,为null表示不需要缓存
+     */
+    private final PoolingByteArrayOutputStream mTee;
+
+    private byte[] mBuffer;
+
+    /**
+     * mBuffer中下一个要读出的位置
+     */
+    private int mPosition = 0;
+
+    /**
+     * mBuffer中有效字节的结束位置
+     */
+    private int mLimit = 0;
+
+    /**
+     * 解析器是否已经关闭了输入流,关闭之后不能再读
+     */
+    private boolean mClosed = false;
+
+    /**
+     * 是否已经归还读缓冲区并关闭原始输入流
+     */
+    private boolean mReleased = false;
+
+    /**
+     * 创建一个正文输入流
+     * @param in 连接上的原始输入流,关闭时一起关闭
+     * @param pool 申请读缓冲区的分配器
+     * @param bufferSize 读缓冲区的大小
+     * @param tee 读出的字节同时写到这里,为null表示不需要缓存
+     */
+    TeeInputStream(InputStream in, ByteArrayPool pool, int bufferSize, PoolingByteArrayOutputStream tee) {
+        super(in);
+        mPool = pool;
+        mTee = tee;
+        mBuffer = pool.getBuf(bufferSize);
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (mPosition == mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (len == 0) {
+            return 0;
+        }
+        if (mPosition < mLimit) {
+            int n = Math.min(len, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, b, off, n);
+            mPosition += n;
+            return n;
+        }
+        if (len >= mBuffer.length) {
+            //大块读取直接读进调用者的数组
+            int n = in.read(b, off, len);
+            if (n > 0 && mTee != null) {
+                mTee.write(b, off, n);
+            }
+            return n;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        return read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        //跳过的字节也要写进缓存,不能直接交给原始输入流
+        long skipped = 0;
+        while (skipped < n) {
+            if (mPosition == mLimit && !fill()) {
+                break;
+            }
+            int step = (int) Math.min(n - skipped, mLimit - mPosition);
+            mPosition += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        return (mLimit - mPosition) + in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * 读完剩下的正文.解析器没有读到末尾时调用,保证写入缓存的是完整的正文.解析器关闭了输入流之后也可以调用
+     * @throws IOException 读取出错,或者已经{@link #release()}
+     */
+    void drain() throws IOException {
+        if (mReleased) {
+            throw new IOException("Stream released");
+        }
+        mPosition = mLimit;
+        while (fill()) {
+            mPosition = mLimit;
+        }
+    }
+
+    /**
+     * 解析器关闭输入流,之后的读取抛出IOException.连接和读缓冲区由网络层在{@link #release()}中释放
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * 归还读缓冲区并关闭原始输入流,由网络层在处理完响应后调用,重复调用没有影响
+     * @throws IOException 关闭原始输入流出错
+     */
+    void release() throws IOException {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        mClosed = true;
+        mPool.returnBuf(mBuffer);
+        mBuffer = null;
+        super.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * 从原始输入流读一批数据到缓冲区
+     * @return 已经读到末尾时返回false
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) {
+            mPosition = mLimit = 0;
+            return false;
+        }
+        if (mTee != null) {
+            mTee.write(mBuffer, 0, n);
+        }
+        mPosition = 0;
+        mLimit = n;
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package volley.android.com.toolbox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * 带频率准入过滤的LRU淘汰策略(W-TinyLFU风格).
+ * <p>
+ * 用一个{@link FrequencySketch}近似统计每个缓存键最近被请求的次数.缓存满了以后,新的缓存键只有在请求次数
+ * 不少于即将被淘汰的缓存项时才会被接纳,一次性扫描大量很少复用的URL只会在不常用的缓存项之间轮换,冲不掉热点数据.
+ * 请求次数相同时接纳新缓存键,相当于让冷数据之间仍按LRU轮换,起到W-TinyLFU中窗口区的作用.
+ * 统计值会周期性减半,过去的热点不会永远占着缓存.频率统计会随缓存一起保存,重启后不用重新积累
+ * </p>
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy, EvictionPolicy.Persistable {
+
+    /**
+     * 默认预计的缓存键数量
+     */
+    private static final int DEFAULT_EXPECTED_ENTRIES = 4096;
+
+    private final FrequencySketch mSketch;
+
+    private final LruEvictionPolicy mRecency = new LruEvictionPolicy();
+
+    public TinyLfuEvictionPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param expectedEntries 预计的缓存键数量,决定频率统计的精度和内存占用(每个缓存键约1字节)
+     */
+    public TinyLfuEvictionPolicy(int expectedEntries) {
+        mSketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void recordRequest(String key) {
+        mSketch.increment(key.hashCode());
+    }
+
+    @Override
+    public double onAccess(String key, long size, long networkTimeMs) {
+        return mRecency.onAccess(key, size, networkTimeMs);
+    }
+
+    @Override
+    public void onEvict(String key, double priority) {
+    }
+
+    @Override
+    public boolean admit(String candidateKey, String victimKey) {
+        return mSketch.frequency(candidateKey.hashCode()) >= mSketch.frequency(victimKey.hashCode());
+    }
+
+    @Override
+    public void writeState(DataOutputStream out) throws IOException {
+        mSketch.writeTo(out);
+    }
+
+    @Override
+    public void readState(DataInputStream in) throws IOException {
+        mSketch.readFrom(in);
+    }
+}
@@ -0,0 +1,418 @@
+package volley.android.com.toolbox;
+
+import android.os.Process;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import volley.android.com.Cache;
+import volley.android.com.VolleyLog;
+
+/**
+ * 异步写入(write-behind)的缓存包装.
+ * <p>
+ * {@link volley.android.com.NetworkDispatcher}在派发响应之前同步调用{@link Cache#put(String, Entry)},
+ * 网络线程要等磁盘写完(以及写入触发的淘汰删除完)才能把结果交给用户.包装之后put只把缓存项放进待写队列就返回,
+ * 由一个专门的写线程按顺序落盘:
+ * </p>
+ * <ul>
+ *     <li>同一个键在落盘之前的多次写入/删除只保留最后一次</li>
+ *     <li>待写队列按正文字节数限长,超过上限时put阻塞到写线程追上为止,写线程落后时不会无限占用内存</li>
+ *     <li>读取时先看待写队列和正在写的缓存项,保证读到的总是最后一次写入的结果</li>
+ * </ul>
+ * 用法: new RequestQueue(new WriteBehindCache(new DiskBasedCache(dir)), network)
+ */
+public class WriteBehindCache implements Cache, Cache.AccessRecorder, Cache.SpooledBodySupport {
+
+    /**
+     * 默认的待写队列上限(字节)
+     */
+    private static final int DEFAULT_MAX_PENDING_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * 待写队列中表示删除的标记
+     */
+    private static final Entry REMOVED = new Entry();
+
+    /**
+     * 被包装的缓存
+     */
+    private final Cache mCache;
+
+    /**
+     * 待写队列的上限(字节)
+     */
+    private final int mMaxPendingBytes;
+
+    /**
+     * 待写队列,按第一次写入的顺序落盘,同一个键只保留最后一次写入
+     */
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<>();
+
+    /**
+     * 待写队列中正文的总字节数
+     */
+    private long mPendingBytes = 0;
+
+    /**
+     * 写线程正在落盘的键和缓存项,落盘完成之前读取也要能看到它
+     */
+    private String mInFlightKey;
+
+    private Entry mInFlightEntry;
+
+    /**
+     * 写线程落盘时持有这把锁,{@link #clear()}持有它保证清空时没有正在进行的写入
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * 被合并掉的写入次数
+     */
+    private long mCoalescedCount = 0;
+
+    private boolean mQuit = false;
+
+    private final WriterThread mWriter;
+
+    /**
+     * @param cache 被包装的缓存
+     */
+    public WriteBehindCache(Cache cache) {
+        this(cache, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param cache 被包装的缓存
+     * @param maxPendingBytes 待写队列的上限(字节)
+     */
+    public WriteBehindCache(Cache cache, int maxPendingBytes) {
+        mCache = cache;
+        mMaxPendingBytes = maxPendingBytes;
+        mWriter = new WriterThread();
+        mWriter.start();
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (this) {
+            Entry pending = findPending(key);
+            if (pending != null) {
+                return pending == REMOVED ? null : pending;
+            }
+        }
+        return mCache.get(key);
+    }
+
+    /**
+     * 还没落盘的缓存项返回一份不带正文的副本,和被包装的缓存一样只有元数据
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        synchronized (this) {
+            Entry pending = findPending(key);
+            if (pending != null) {
+                if (pending == REMOVED) {
+                    return null;
+                }
+                Entry metadata = copyOf(pending);
+                metadata.data = null;
+                return metadata;
+            }
+        }
+        return mCache.getMetadata(key);
+    }
+
+    /**
+     * 还在待写队列中的缓存项写入时自然会被记为最近访问,只需要转告已经写下去的
+     */
+    @Override
+    public void recordAccess(String key) {
+        synchronized (this) {
+            if (findPending(key) != null) {
+                return;
+            }
+        }
+        if (mCache instanceof AccessRecorder) {
+            ((AccessRecorder) mCache).recordAccess(key);
+        }
+    }
+
+    /**
+     * 正文落地在文件中时,临时文件在请求处理完之后就会被删除,不能留给写线程:
+     * 被包装的缓存支持落地的正文时同步写入,让它在返回之前移走文件;不支持时读回内存照常排队
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        boolean spooled = SpooledEntries.isSpooled(entry);
+        if (spooled && !(mCache instanceof SpooledBodySupport)) {
+            if (!SpooledEntries.readIntoMemory(key, entry)) {
+                return;
+            }
+            spooled = false;
+        }
+
+        synchronized (this) {
+            if (!spooled) {
+                int size = entry.data.length;
+                boolean interrupted = false;
+                try {
+                    while (!mQuit && mPendingBytes > 0 && mPendingBytes + size > mMaxPendingBytes) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    //被中断时不再等待,改为同步写入
+                    Thread.currentThread().interrupt();
+                    interrupted = true;
+                }
+                if (!mQuit && !interrupted) {
+                    enqueue(key, entry);
+                    return;
+                }
+            }
+            //同步写入之前丢掉这个键还没落盘的旧写入,免得写线程随后用旧值覆盖
+            dropPending(key);
+        }
+        synchronized (mWriteLock) {
+            mCache.put(key, entry);
+        }
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        synchronized (this) {
+            Entry pending = findPending(key);
+            if (pending == REMOVED) {
+                return;
+            }
+            if (pending != null) {
+                Entry updated = copyOf(pending);
+                updated.etag = entry.etag;
+                updated.serverDate = entry.serverDate;
+                updated.lastModified = entry.lastModified;
+                updated.ttl = entry.ttl;
+                updated.softTtl = entry.softTtl;
+                updated.responseHeaders = entry.responseHeaders;
+                updated.allResponseHeaders = entry.allResponseHeaders;
+                updated.networkTimeMs = entry.networkTimeMs;
+                enqueue(key, updated);
+                return;
+            }
+        }
+        mCache.updateMetadata(key, entry);
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (this) {
+            Entry pending = findPending(key);
+            if (pending == REMOVED) {
+                return;
+            }
+            if (pending != null) {
+                Entry updated = copyOf(pending);
+                updated.softTtl = 0;
+                if (fullExpire) {
+                    updated.ttl = 0;
+                }
+                enqueue(key, updated);
+                return;
+            }
+        }
+        mCache.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        synchronized (this) {
+            if (!mQuit) {
+                enqueue(key, REMOVED);
+                return;
+            }
+            dropPending(key);
+        }
+        synchronized (mWriteLock) {
+            mCache.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (this) {
+                mPending.clear();
+                mPendingBytes = 0;
+                notifyAll();
+            }
+            mCache.clear();
+        }
+    }
+
+    /**
+     * 阻塞到当前所有待写的缓存项都落盘为止
+     * @throws InterruptedException
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty() || mInFlightKey != null) {
+            wait();
+        }
+    }
+
+    /**
+     * 写完队列中剩下的缓存项之后退出写线程,之后的写入都改为同步进行
+     */
+    public void quit() {
+        synchronized (this) {
+            mQuit = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * 返回被合并掉(没有落盘就被后来的写入覆盖)的写入次数
+     * @return
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * 返回当前待写队列中正文的总字节数
+     * @return
+     */
+    public synchronized long getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * 查找待写队列和正在写的缓存项,调用者必须持有锁
+     * @return 没有待写入的内容时返回null,待删除时返回{@link #REMOVED}
+     */
+    private Entry findPending(String key) {
+        Entry pending = mPending.get(key);
+        if (pending != null) {
+            return pending;
+        }
+        if (key.equals(mInFlightKey)) {
+            return mInFlightEntry;
+        }
+        return null;
+    }
+
+    /**
+     * 把写入放进待写队列,同一个键之前的写入被覆盖.调用者必须持有锁
+     */
+    private void enqueue(String key, Entry entry) {
+        Entry previous = mPending.put(key, entry);
+        if (previous != null) {
+            mPendingBytes -= sizeOf(previous);
+            mCoalescedCount++;
+        }
+        mPendingBytes += sizeOf(entry);
+        notifyAll();
+    }
+
+    /**
+     * 从待写队列中去掉一个键,调用者必须持有锁
+     */
+    private void dropPending(String key) {
+        Entry previous = mPending.remove(key);
+        if (previous != null) {
+            mPendingBytes -= sizeOf(previous);
+            notifyAll();
+        }
+    }
+
+    private static long sizeOf(Entry entry) {
+        return entry == REMOVED ? 0 : entry.data.length;
+    }
+
+    /**
+     * 浅复制一个缓存项,正文共用
+     */
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        copy.allResponseHeaders = entry.allResponseHeaders;
+        copy.networkTimeMs = entry.networkTimeMs;
+        copy.tags = entry.tags;
+        return copy;
+    }
+
+    /**
+     * 按顺序把待写队列落盘的线程
+     */
+    private class WriterThread extends Thread {
+
+        WriterThread() {
+            super("volley-cache-writer");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                synchronized (WriteBehindCache.this) {
+                    try {
+                        while (mPending.isEmpty() && !mQuit) {
+                            WriteBehindCache.this.wait();
+                        }
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                    if (mPending.isEmpty()) {
+                        return;
+                    }
+                }
+
+                synchronized (mWriteLock) {
+                    String key;
+                    Entry entry;
+                    synchronized (WriteBehindCache.this) {
+                        Iterator<Map.Entry<String, Entry>> iterator = mPending.entrySet().iterator();
+                        if (!iterator.hasNext()) {
+                            //刚刚被clear()清空了
+                            continue;
+                        }
+                        Map.Entry<String, Entry> next = iterator.next();
+                        iterator.remove();
+                        key = next.getKey();
+                        entry = next.getValue();
+                        mPendingBytes -= sizeOf(entry);
+                        mInFlightKey = key;
+                        mInFlightEntry = entry;
+                    }
+
+                    try {
+                        if (entry == REMOVED) {
+                            mCache.remove(key);
+                        } else {
+                            mCache.put(key, entry);
+                        }
+                    } catch (RuntimeException e) {
+                        VolleyLog.e(e, "Write-behind failed for %s", key);
+                    } finally {
+                        synchronized (WriteBehindCache.this) {
+                            mInFlightKey = null;
+                            mInFlightEntry = null;
+                            WriteBehindCache.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package volley.android.com;
+
+import org.junit.Test;
+
+import volley.android.com.toolbox.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ParsedResponseCache}:只有元数据和请求类型都与保存时一致才命中,
+ * 缓存项变了之后结果作废;容量按正文字节数计算,超出时按LRU淘汰
+ */
+public class ParsedResponseCacheTest {
+
+    private static final String URL = "http://example.com/item";
+
+    @Test
+    public void matchingMetadata_returnsSameResultWithoutParsing() {
+        ParsedResponseCache cache = new ParsedResponseCache(1024);
+        Cache.Entry entry = newEntry(100);
+        Object result = new Object();
+        cache.put(new TestRequest(URL), Response.success(result, entry), entry);
+
+        //CacheDispatcher传进来的是单独读出的元数据,不是同一个对象
+        Cache.Entry metadata = metadataOf(entry);
+        Response<?> hit = cache.get(new TestRequest(URL), metadata);
+        assertNotNull(hit);
+        assertTrue(hit.isSuccess());
+        assertSame(result, hit.result);
+        assertSame(metadata, hit.cacheEntry);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void changedMetadata_invalidatesResult() {
+        for (int field = 0; field < 5; field++) {
+            ParsedResponseCache cache = new ParsedResponseCache(1024);
+            Cache.Entry entry = newEntry(100);
+            cache.put(new TestRequest(URL), Response.success(new Object(), entry), entry);
+
+            //缓存项被替换、作废或者经过304刷新之后,元数据中总有一个字段不同
+            Cache.Entry metadata = metadataOf(entry);
+            switch (field) {
+                case 0: metadata.etag = "other"; break;
+                case 1: metadata.serverDate++; break;
+                case 2: metadata.lastModified++; break;
+                case 3: metadata.ttl++; break;
+                default: metadata.softTtl = 0; break;
+            }
+            assertNull("field " + field, cache.get(new TestRequest(URL), metadata));
+            assertEquals(1, cache.getMissCount());
+            assertEquals(0, cache.size());
+            //作废之后即使元数据又对上了也不会再命中
+            assertNull(cache.get(new TestRequest(URL), metadataOf(entry)));
+        }
+    }
+
+    @Test
+    public void nullEtag_matchesOnlyNullEtag() {
+        ParsedResponseCache cache = new ParsedResponseCache(1024);
+        Cache.Entry entry = newEntry(100);
+        entry.etag = null;
+        cache.put(new TestRequest(URL), Response.success(new Object(), entry), entry);
+
+        assertNotNull(cache.get(new TestRequest(URL), metadataOf(entry)));
+        Cache.Entry metadata = metadataOf(entry);
+        metadata.etag = "etag";
+        assertNull(cache.get(new TestRequest(URL), metadata));
+    }
+
+    @Test
+    public void differentRequestClass_isMiss() {
+        ParsedResponseCache cache = new ParsedResponseCache(1024);
+        Cache.Entry entry = newEntry(100);
+        cache.put(new TestRequest(URL), Response.success(new Object(), entry), entry);
+
+        //同一个缓存键被另一种请求解析出来的结果类型不同,不能混用
+        assertNull(cache.get(new OtherRequest(URL), metadataOf(entry)));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void errorResponse_isNotStored() {
+        ParsedResponseCache cache = new ParsedResponseCache(1024);
+        Cache.Entry entry = newEntry(100);
+        cache.put(new TestRequest(URL), Response.error(new VolleyError("parse error")), entry);
+
+        assertEquals(0, cache.size());
+        assertNull(cache.get(new TestRequest(URL), metadataOf(entry)));
+    }
+
+    @Test
+    public void overCapacity_evictsLeastRecentlyUsed() {
+        ParsedResponseCache cache = new ParsedResponseCache(300);
+        Cache.Entry entry = newEntry(100);
+        for (int i = 0; i < 3; i++) {
+            cache.put(new TestRequest(URL + i), Response.success(new Object(), entry), entry);
+        }
+        assertEquals(300, cache.size());
+
+        //访问过的item0变成最近使用,写入item3时淘汰item1
+        assertNotNull(cache.get(new TestRequest(URL + 0), metadataOf(entry)));
+        cache.put(new TestRequest(URL + 3), Response.success(new Object(), entry), entry);
+        assertEquals(300, cache.size());
+        assertNotNull(cache.get(new TestRequest(URL + 0), metadataOf(entry)));
+        assertNull(cache.get(new TestRequest(URL + 1), metadataOf(entry)));
+        assertNotNull(cache.get(new TestRequest(URL + 2), metadataOf(entry)));
+        assertNotNull(cache.get(new TestRequest(URL + 3), metadataOf(entry)));
+
+        //同一个键重新保存时容量不会重复计算
+        Cache.Entry larger = newEntry(150);
+        cache.put(new TestRequest(URL + 3), Response.success(new Object(), larger), larger);
+        assertTrue(cache.size() <= 300);
+        assertNotNull(cache.get(new TestRequest(URL + 3), metadataOf(larger)));
+    }
+
+    @Test
+    public void resultLargerThanCapacity_isNotStored() {
+        ParsedResponseCache cache = new ParsedResponseCache(300);
+        Cache.Entry small = newEntry(100);
+        cache.put(new TestRequest(URL), Response.success(new Object(), small), small);
+        Cache.Entry huge = newEntry(301);
+        cache.put(new TestRequest(URL + "huge"), Response.success(new Object(), huge), huge);
+
+        //放不下的结果不会把已有的结果挤掉
+        assertEquals(100, cache.size());
+        assertNotNull(cache.get(new TestRequest(URL), metadataOf(small)));
+        assertNull(cache.get(new TestRequest(URL + "huge"), metadataOf(huge)));
+    }
+
+    @Test
+    public void removeAndClear_dropResultsButKeepStats() {
+        ParsedResponseCache cache = new ParsedResponseCache(1024);
+        Cache.Entry entry = newEntry(100);
+        cache.put(new TestRequest(URL + 1), Response.success(new Object(), entry), entry);
+        cache.put(new TestRequest(URL + 2), Response.success(new Object(), entry), entry);
+        assertNotNull(cache.get(new TestRequest(URL + 1), metadataOf(entry)));
+
+        cache.remove(URL + 1);
+        assertEquals(100, cache.size());
+        assertNull(cache.get(new TestRequest(URL + 1), metadataOf(entry)));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(new TestRequest(URL + 2), metadataOf(entry)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    private static Cache.Entry newEntry(int dataLength) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[dataLength];
+        long now = System.currentTimeMillis();
+        entry.etag = "etag";
+        entry.serverDate = now - 1000;
+        entry.lastModified = now - 5000;
+        entry.ttl = now + 3600000;
+        entry.softTtl = now + 1800000;
+        return entry;
+    }
+
+    /**
+     * 像{@link Cache#getMetadata(String)}那样返回一份不带正文的副本
+     */
+    private static Cache.Entry metadataOf(Cache.Entry entry) {
+        Cache.Entry metadata = new Cache.Entry();
+        metadata.etag = entry.etag;
+        metadata.serverDate = entry.serverDate;
+        metadata.lastModified = entry.lastModified;
+        metadata.ttl = entry.ttl;
+        metadata.softTtl = entry.softTtl;
+        return metadata;
+    }
+
+    private static class TestRequest extends Request<Object> {
+        TestRequest(String url) {
+            super(Method.GET, url, null);
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+    }
+
+    private static class OtherRequest extends TestRequest {
+        OtherRequest(String url) {
+            super(url);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link BodyCodec}的编解码,以及{@link DiskBasedCache}开启压缩后的读写
+ */
+public class BodyCodecTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void isCompressible_byContentType() {
+        assertTrue(BodyCodec.isCompressible("application/json; charset=utf-8"));
+        assertTrue(BodyCodec.isCompressible("text/html"));
+        assertTrue(BodyCodec.isCompressible("application/vnd.api+json"));
+        assertTrue(BodyCodec.isCompressible("Application/XML"));
+        assertFalse(BodyCodec.isCompressible("image/jpeg"));
+        assertFalse(BodyCodec.isCompressible("application/zip"));
+        assertFalse(BodyCodec.isCompressible("application/octet-stream"));
+        assertFalse(BodyCodec.isCompressible(null));
+    }
+
+    @Test
+    public void chooseCodec_skipsSmallEncodedAndBinaryBodies() {
+        assertEquals(BodyCodec.DEFLATE, BodyCodec.chooseCodec(newEntry(json(4096), "application/json", null)));
+        assertEquals(BodyCodec.NONE, BodyCodec.chooseCodec(newEntry(json(4096), "image/png", null)));
+        assertEquals(BodyCodec.NONE, BodyCodec.chooseCodec(newEntry(json(100), "application/json", null)));
+        assertEquals(BodyCodec.NONE, BodyCodec.chooseCodec(newEntry(json(4096), "application/json", "gzip")));
+        assertEquals(BodyCodec.DEFLATE,
+                BodyCodec.chooseCodec(newEntry(json(4096), "application/json", "identity")));
+    }
+
+    @Test
+    public void encodeDecode_roundTrips() throws IOException {
+        for (int length : new int[] {256, 1000, 4096, 65536, 300000}) {
+            byte[] data = json(length);
+            byte[] encoded = BodyCodec.encode(BodyCodec.DEFLATE, data);
+            assertNotNull(encoded);
+            assertTrue(encoded.length < data.length);
+            assertArrayEquals(data, BodyCodec.decode(BodyCodec.DEFLATE, encoded, data.length));
+        }
+    }
+
+    @Test
+    public void encode_incompressibleData_returnsNull() {
+        byte[] data = new byte[8192];
+        new Random(1).nextBytes(data);
+        assertNull(BodyCodec.encode(BodyCodec.DEFLATE, data));
+    }
+
+    @Test
+    public void decode_wrongLengthOrCorruptData_throws() {
+        byte[] data = json(4096);
+        byte[] encoded = BodyCodec.encode(BodyCodec.DEFLATE, data);
+        assertDecodeFails(encoded, data.length - 1);
+        assertDecodeFails(encoded, data.length + 1);
+        assertDecodeFails(Arrays.copyOf(encoded, encoded.length / 2), data.length);
+        byte[] corrupt = encoded.clone();
+        corrupt[corrupt.length / 2] ^= 0x55;
+        assertDecodeFails(corrupt, data.length);
+    }
+
+    @Test
+    public void diskBasedCache_compressesTextAndReadsItBack() throws Exception {
+        File root = mFolder.newFolder("cache");
+        DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+        cache.setCompressionEnabled(true);
+        cache.initialize();
+
+        byte[] text = json(32 * 1024);
+        byte[] binary = new byte[32 * 1024];
+        new Random(2).nextBytes(binary);
+        cache.put("text", newEntry(text, "application/json", null));
+        cache.put("binary", newEntry(binary, "image/jpeg", null));
+
+        //文本压缩后存储,二进制原样存储
+        assertTrue(cache.getFileForKey("text").length() < text.length / 2);
+        assertTrue(cache.getFileForKey("binary").length() > binary.length);
+        assertArrayEquals(text, cache.get("text").data);
+        assertArrayEquals(binary, cache.get("binary").data);
+        cache.awaitMaintenance();
+
+        //关闭压缩之后仍然能读出压缩存储的缓存项
+        DiskBasedCache reopened = new DiskBasedCache(root, 1024 * 1024);
+        reopened.initialize();
+        assertArrayEquals(text, reopened.get("text").data);
+        assertArrayEquals(binary, reopened.get("binary").data);
+        reopened.awaitMaintenance();
+    }
+
+    private static void assertDecodeFails(byte[] encoded, long dataLength) {
+        try {
+            BodyCodec.decode(BodyCodec.DEFLATE, encoded, dataLength);
+            fail("decoded with length " + dataLength);
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * 生成指定长度的类似JSON接口返回的文本
+     */
+    private static byte[] json(int length) {
+        Random random = new Random(length);
+        StringBuilder sb = new StringBuilder(length + 64);
+        sb.append('[');
+        while (sb.length() < length) {
+            sb.append("{\"id\":").append(random.nextInt(100000))
+                    .append(",\"name\":\"item").append(random.nextInt(1000))
+                    .append("\",\"enabled\":").append(random.nextBoolean()).append("},");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(UTF_8), length);
+    }
+
+    private static Cache.Entry newEntry(byte[] data, String contentType, String contentEncoding) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", contentType));
+        if (contentEncoding != null) {
+            entry.allResponseHeaders.add(new Header("Content-Encoding", contentEncoding));
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,330 @@
+package volley.android.com.toolbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link Cache}接口的行为约定,每个实现写一个子类提供缓存实例,所有实现跑同一组用例
+ */
+public abstract class CacheContractTest {
+
+    /**
+     * 约定测试使用的缓存容量
+     */
+    protected static final int MAX_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    protected File mRoot;
+
+    protected Cache mCache;
+
+    /**
+     * 在指定目录上创建一个还没有初始化的缓存实例
+     * @param root 缓存目录
+     * @param maxSizeInBytes 缓存容量
+     * @return
+     */
+    protected abstract Cache createCache(File root, int maxSizeInBytes);
+
+    /**
+     * 等待缓存的后台工作(淘汰、压缩等)完成,没有后台工作的实现什么都不用做
+     * @param cache
+     * @throws Exception
+     */
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mFolder.newFolder("cache");
+        mCache = createCache(mRoot, MAX_SIZE);
+        mCache.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        awaitBackgroundWork(mCache);
+    }
+
+    @Test
+    public void get_missingKey_returnsNull() {
+        assertNull(mCache.get("missing"));
+        assertNull(mCache.getMetadata("missing"));
+    }
+
+    @Test
+    public void put_thenGet_returnsSameEntry() {
+        Cache.Entry entry = newEntry(1024, 1);
+        mCache.put("key", entry);
+
+        assertEntryEquals(entry, mCache.get("key"), true);
+    }
+
+    @Test
+    public void put_emptyBody_roundTrips() {
+        Cache.Entry entry = newEntry(0, 2);
+        mCache.put("key", entry);
+
+        Cache.Entry read = mCache.get("key");
+        assertNotNull(read);
+        assertEquals(0, read.data.length);
+    }
+
+    @Test
+    public void put_sameKey_replacesEntry() {
+        mCache.put("key", newEntry(2048, 3));
+        Cache.Entry second = newEntry(100, 4);
+        second.etag = "second";
+        mCache.put("key", second);
+
+        assertEntryEquals(second, mCache.get("key"), true);
+    }
+
+    @Test
+    public void getMetadata_returnsMetadataWithoutBody() {
+        Cache.Entry entry = newEntry(4096, 5);
+        mCache.put("key", entry);
+
+        Cache.Entry metadata = mCache.getMetadata("key");
+        assertNotNull(metadata);
+        assertNull(metadata.data);
+        assertEntryEquals(entry, metadata, false);
+    }
+
+    @Test
+    public void remove_dropsEntry() {
+        mCache.put("key", newEntry(512, 6));
+        mCache.put("other", newEntry(512, 7));
+        mCache.remove("key");
+
+        assertNull(mCache.get("key"));
+        assertNull(mCache.getMetadata("key"));
+        assertNotNull(mCache.get("other"));
+    }
+
+    @Test
+    public void remove_missingKey_isNoop() {
+        mCache.remove("missing");
+        assertNull(mCache.get("missing"));
+    }
+
+    @Test
+    public void clear_dropsAllEntries() {
+        for (int i = 0; i < 10; i++) {
+            mCache.put("key" + i, newEntry(512, i));
+        }
+        mCache.clear();
+
+        for (int i = 0; i < 10; i++) {
+            assertNull(mCache.get("key" + i));
+        }
+        mCache.put("after", newEntry(512, 11));
+        assertNotNull(mCache.get("after"));
+    }
+
+    @Test
+    public void invalidate_soft_onlyRequiresRefresh() {
+        mCache.put("key", newEntry(256, 12));
+        mCache.invalidate("key", false);
+
+        Cache.Entry read = mCache.get("key");
+        assertNotNull(read);
+        assertTrue(read.refreshNeeded());
+        assertFalse(read.isExpired());
+    }
+
+    @Test
+    public void invalidate_full_expiresEntry() {
+        Cache.Entry entry = newEntry(256, 13);
+        mCache.put("key", entry);
+        mCache.invalidate("key", true);
+
+        Cache.Entry read = mCache.get("key");
+        //过期的缓存项可以被删除,也可以保留下来用于条件请求,但一定不能再是新鲜的
+        if (read != null) {
+            assertTrue(read.isExpired());
+            assertTrue(read.refreshNeeded());
+            assertArrayEquals(entry.data, read.data);
+        }
+    }
+
+    @Test
+    public void updateMetadata_keepsBody() {
+        Cache.Entry entry = newEntry(8192, 14);
+        mCache.put("key", entry);
+
+        Cache.Entry updated = newEntry(0, 15);
+        updated.data = null;
+        updated.etag = "updated";
+        updated.ttl = entry.ttl + 60000;
+        updated.softTtl = entry.softTtl + 60000;
+        mCache.updateMetadata("key", updated);
+
+        Cache.Entry read = mCache.get("key");
+        assertNotNull(read);
+        assertArrayEquals(entry.data, read.data);
+        assertEquals("updated", read.etag);
+        assertEquals(updated.ttl, read.ttl);
+        assertEquals(updated.softTtl, read.softTtl);
+    }
+
+    @Test
+    public void updateMetadata_missingKeyWithData_putsEntry() {
+        Cache.Entry entry = newEntry(128, 16);
+        mCache.updateMetadata("key", entry);
+
+        assertEntryEquals(entry, mCache.get("key"), true);
+    }
+
+    @Test
+    public void updateMetadata_missingKeyWithoutData_isNoop() {
+        Cache.Entry entry = newEntry(0, 17);
+        entry.data = null;
+        mCache.updateMetadata("key", entry);
+
+        assertNull(mCache.get("key"));
+    }
+
+    @Test
+    public void entries_surviveReinitialize() throws Exception {
+        Map<String, Cache.Entry> expected = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            Cache.Entry entry = newEntry(100 * i, 100 + i);
+            expected.put("key" + i, entry);
+            mCache.put("key" + i, entry);
+        }
+        mCache.remove("key3");
+        expected.remove("key3");
+        awaitBackgroundWork(mCache);
+
+        Cache reopened = createCache(mRoot, MAX_SIZE);
+        reopened.initialize();
+        try {
+            assertNull(reopened.get("key3"));
+            for (Map.Entry<String, Cache.Entry> e : expected.entrySet()) {
+                assertEntryEquals(e.getValue(), reopened.get(e.getKey()), true);
+            }
+        } finally {
+            awaitBackgroundWork(reopened);
+        }
+    }
+
+    @Test
+    public void writesBeyondCapacity_keepDiskUsageBounded() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            mCache.put("key" + i, newEntry(8 * 1024, i));
+        }
+        awaitBackgroundWork(mCache);
+
+        //最近写入的缓存项应该还在
+        assertNotNull(mCache.get("key199"));
+        //索引、日志和段头部等额外开销不计入容量,给出一些余量
+        long used = directorySize(mRoot);
+        assertTrue("disk usage " + used, used <= MAX_SIZE * 3 / 2);
+    }
+
+    /**
+     * 构造一个所有字段都有值的缓存项
+     * @param dataLength 正文长度
+     * @param seed 生成正文和元数据的种子
+     * @return
+     */
+    protected static Cache.Entry newEntry(int dataLength, int seed) {
+        byte[] data = new byte[dataLength];
+        new Random(seed).nextBytes(data);
+        return newEntry(0, seed, data);
+    }
+
+    /**
+     * 构造一个所有字段都有值、正文为指定内容的缓存项
+     * @param ttlOffset 在默认过期时间上增加的毫秒数,可以为负
+     * @param seed 生成元数据的种子
+     * @param data 正文
+     * @return
+     */
+    protected static Cache.Entry newEntry(long ttlOffset, int seed, byte[] data) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        long now = System.currentTimeMillis();
+        entry.etag = "etag-" + seed;
+        entry.serverDate = now - 1000;
+        entry.lastModified = now - 5000;
+        entry.ttl = now + 3600000 + ttlOffset;
+        entry.softTtl = now + 1800000 + ttlOffset;
+        entry.allResponseHeaders = new ArrayList<>(Arrays.asList(
+                new Header("Content-Type", "application/octet-stream"),
+                new Header("X-Seed", String.valueOf(seed)),
+                new Header("Set-Cookie", "a=1"),
+                new Header("Set-Cookie", "b=2")));
+        //和网络层一样,同名的响应头在Map中只保留最后一个
+        entry.responseHeaders = new HashMap<>();
+        for (Header header : entry.allResponseHeaders) {
+            entry.responseHeaders.put(header.getName(), header.getValue());
+        }
+        return entry;
+    }
+
+    /**
+     * 比较两个缓存项的内容
+     * @param expected
+     * @param actual
+     * @param compareData 是否比较正文
+     */
+    protected static void assertEntryEquals(Cache.Entry expected, Cache.Entry actual, boolean compareData) {
+        assertNotNull(actual);
+        if (compareData) {
+            assertArrayEquals(expected.data, actual.data);
+        }
+        assertEquals(expected.etag, actual.etag);
+        assertEquals(expected.serverDate, actual.serverDate);
+        assertEquals(expected.lastModified, actual.lastModified);
+        assertEquals(expected.ttl, actual.ttl);
+        assertEquals(expected.softTtl, actual.softTtl);
+        assertEquals(expected.responseHeaders, actual.responseHeaders);
+        assertHeadersEqual(expected.allResponseHeaders, actual.allResponseHeaders);
+    }
+
+    /**
+     * 逐个比较响应头的名字和值,不依赖Header#equals(它用到了TextUtils,在本地单元测试中不可用)
+     */
+    private static void assertHeadersEqual(List<Header> expected, List<Header> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    /**
+     * 返回目录下所有文件的总大小
+     */
+    protected static long directorySize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            size += file.isDirectory() ? directorySize(file) : file.length();
+        }
+        return size;
+    }
+}
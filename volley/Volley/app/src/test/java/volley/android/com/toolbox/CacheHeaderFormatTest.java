@@ -0,0 +1,286 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 缓存文件头部的格式:第四版格式的序列化、解析和元数据段校验,以及旧版本(第一、二、三版)写下的缓存文件仍然可以迁移、读取和改写
+ */
+public class CacheHeaderFormatTest {
+
+    /**
+     * 第一版格式的magic number,与DiskBasedCache.CACHE_MAGIC相同
+     */
+    static final int CACHE_MAGIC_V1 = 0x20150306;
+
+    /**
+     * 第二版格式的magic number,与DiskBasedCache.CACHE_MAGIC_V2相同
+     */
+    static final int CACHE_MAGIC_V2 = 0x20180516;
+
+    /**
+     * 第三版格式的magic number,与DiskBasedCache.CACHE_MAGIC_V3相同
+     */
+    static final int CACHE_MAGIC_V3 = 0x20180701;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void v3_roundTripsAllFields() throws IOException {
+        Cache.Entry entry = newEntry("etag-中文", new byte[1234]);
+        entry.tags = new HashSet<>(Arrays.asList("feed", "user:42"));
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader("http://example.com/a?b=c", entry);
+        header.codec = BodyCodec.DEFLATE;
+        header.blobHash = "0123456789abcdef";
+        header.checksum = 0xfedcba98L;
+
+        DiskBasedCache.CacheHeader read = read(header.toBytes());
+        assertHeaderEquals(header, read);
+        assertEquals(BodyCodec.DEFLATE, read.codec);
+        assertEquals(1234, read.dataLength);
+        assertEquals(header.tags, read.tags);
+        assertEquals("0123456789abcdef", read.blobHash);
+        assertEquals(0xfedcba98L, read.checksum);
+    }
+
+    @Test
+    public void v3_roundTripsWithoutOptionalSections() throws IOException {
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader("key", newEntry("", new byte[0]));
+
+        DiskBasedCache.CacheHeader read = read(header.toBytes());
+        assertHeaderEquals(header, read);
+        assertEquals(Collections.<String>emptySet(), read.tags);
+        assertNull(read.blobHash);
+        assertEquals(DiskBasedCache.NO_CHECKSUM, read.checksum);
+    }
+
+    @Test
+    public void v3_truncatedHeader_throws() {
+        byte[] bytes = new DiskBasedCache.CacheHeader("key", newEntry("etag", new byte[10])).toBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            assertReadFails(Arrays.copyOf(bytes, length));
+        }
+    }
+
+    @Test
+    public void v4_corruptMetadataSegment_throws() throws IOException {
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader("key", newEntry("etag", new byte[10]));
+        byte[] bytes = header.toBytes();
+        int start = (int) header.metadataOffset();
+        int end = start + header.metadataBytes().length;
+        //元数据段(包括它的CRC32)中任何一个字节被改写了一半都能被发现
+        for (int i = start; i < end; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            assertReadFails(corrupt);
+        }
+        assertHeaderEquals(header, read(bytes));
+    }
+
+    @Test
+    public void v3Files_areReadAndRewrittenAsV4() throws Exception {
+        Cache.Entry entry = newEntry("v3-etag", "version three body".getBytes("UTF-8"));
+        DiskBasedCache.CacheHeader header = new DiskBasedCache.CacheHeader("v3", entry);
+        byte[] v3 = toV3(header);
+        DiskBasedCache.CacheHeader read = read(v3);
+        assertHeaderEquals(header, read);
+        assertEquals(CACHE_MAGIC_V3, read.magic);
+
+        //没有索引,initialize()扫描目录读出第三版的头部
+        File root = mFolder.newFolder("cache");
+        DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+        File file = cache.getFileForKey("v3");
+        file.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(v3);
+            fos.write(entry.data);
+        } finally {
+            fos.close();
+        }
+        cache.initialize();
+        assertLegacyEntry(entry, cache.get("v3"));
+
+        //第三版的元数据段没有CRC32,不原地改写,整个重写成第四版
+        Cache.Entry refreshed = newEntry("v3-etag", null);
+        refreshed.ttl = entry.ttl + 60000;
+        refreshed.softTtl = entry.softTtl + 60000;
+        cache.updateMetadata("v3", refreshed);
+        Cache.Entry updated = cache.get("v3");
+        assertEquals(refreshed.ttl, updated.ttl);
+        assertArrayEquals(entry.data, updated.data);
+        byte[] magic = new byte[4];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(magic);
+        } finally {
+            raf.close();
+        }
+        assertArrayEquals(Arrays.copyOf(header.toBytes(), 4), magic);
+        cache.awaitMaintenance();
+    }
+
+    @Test
+    public void legacyFiles_areReadAndCanBeInvalidated() throws Exception {
+        File root = mFolder.newFolder("cache");
+        DiskBasedCache cache = new DiskBasedCache(root, 1024 * 1024);
+        byte[] v1Body = "version one body".getBytes("UTF-8");
+        byte[] v2Body = new byte[4096];
+        Arrays.fill(v2Body, (byte) 'x');
+        Cache.Entry v1 = newEntry("v1-etag", v1Body);
+        Cache.Entry v2 = newEntry("v2-etag", v2Body);
+        //第一版的文件还在旧的命名规则下:根目录中,以缓存键左右两半的String.hashCode()拼接命名
+        String legacyName = String.valueOf("v".hashCode()) + String.valueOf("1".hashCode());
+        writeLegacyFile(new File(root, legacyName), CACHE_MAGIC_V1, "v1", v1, BodyCodec.NONE, v1Body);
+        writeLegacyFile(cache.getFileForKey("v2"), CACHE_MAGIC_V2, "v2", v2, BodyCodec.DEFLATE,
+                BodyCodec.encode(BodyCodec.DEFLATE, v2Body));
+
+        //没有索引,initialize()扫描目录读出旧格式的头部,旧命名规则的文件被搬到新的位置
+        cache.initialize();
+        assertFalse(new File(root, legacyName).exists());
+        assertTrue(cache.getFileForKey("v1").exists());
+        assertLegacyEntry(v1, cache.get("v1"));
+        assertLegacyEntry(v2, cache.get("v2"));
+
+        //旧格式的元数据段没有CRC32,作废时整个重写,正文不受影响
+        cache.invalidate("v1", false);
+        cache.invalidate("v2", true);
+        Cache.Entry read = cache.get("v1");
+        assertTrue(read.refreshNeeded());
+        assertArrayEquals(v1Body, read.data);
+        read = cache.get("v2");
+        if (read != null) {
+            assertTrue(read.isExpired());
+            assertArrayEquals(v2Body, read.data);
+        }
+        cache.awaitMaintenance();
+    }
+
+    private static DiskBasedCache.CacheHeader read(byte[] bytes) throws IOException {
+        return DiskBasedCache.CacheHeader.readHeader(
+                new DiskBasedCache.CountingInputStream(new ByteArrayInputStream(bytes), bytes.length));
+    }
+
+    private static void assertReadFails(byte[] bytes) {
+        try {
+            read(bytes);
+            fail("parsed " + bytes.length + " bytes");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * 把第四版格式的头部改成第三版:去掉元数据段的CRC32,换掉magic和头部长度
+     */
+    private static byte[] toV3(DiskBasedCache.CacheHeader header) throws IOException {
+        byte[] v4 = header.toBytes();
+        int crcOffset = (int) header.metadataOffset() + header.metadataBytes().length - 4;
+        ByteBuffer v3 = ByteBuffer.allocate(v4.length - 4).order(ByteOrder.LITTLE_ENDIAN);
+        v3.put(v4, 0, crcOffset);
+        v3.put(v4, crcOffset + 4, v4.length - crcOffset - 4);
+        v3.putInt(0, CACHE_MAGIC_V3);
+        v3.putInt(4, v4.length - 4 - 8);
+        return v3.array();
+    }
+
+    /**
+     * 按第一、二版格式写一个缓存文件:所有字段逐个写出,字符串是long长度加UTF-8编码
+     */
+    static void writeLegacyFile(File file, int magic, String key, Cache.Entry entry, int codec, byte[] body)
+            throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            DiskBasedCache.writeInt(os, magic);
+            if (magic == CACHE_MAGIC_V2) {
+                DiskBasedCache.writeInt(os, codec);
+                DiskBasedCache.writeLong(os, entry.data.length);
+            }
+            DiskBasedCache.writeString(os, key);
+            DiskBasedCache.writeString(os, entry.etag);
+            DiskBasedCache.writeLong(os, entry.serverDate);
+            DiskBasedCache.writeLong(os, entry.lastModified);
+            DiskBasedCache.writeLong(os, entry.ttl);
+            DiskBasedCache.writeLong(os, entry.softTtl);
+            DiskBasedCache.writeInt(os, entry.allResponseHeaders.size());
+            for (Header header : entry.allResponseHeaders) {
+                DiskBasedCache.writeString(os, header.getName());
+                DiskBasedCache.writeString(os, header.getValue());
+            }
+            os.write(body);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void assertLegacyEntry(Cache.Entry expected, Cache.Entry actual) {
+        assertNotNull(actual);
+        assertArrayEquals(expected.data, actual.data);
+        assertEquals(expected.etag, actual.etag);
+        assertEquals(expected.ttl, actual.ttl);
+        assertEquals(expected.softTtl, actual.softTtl);
+        assertHeadersEqual(expected.allResponseHeaders, actual.allResponseHeaders);
+    }
+
+    private static void assertHeaderEquals(DiskBasedCache.CacheHeader expected, DiskBasedCache.CacheHeader actual) {
+        assertEquals(expected.key, actual.key);
+        assertEquals(expected.etag, actual.etag);
+        assertEquals(expected.serverDate, actual.serverDate);
+        assertEquals(expected.lastModified, actual.lastModified);
+        assertEquals(expected.ttl, actual.ttl);
+        assertEquals(expected.softTtl, actual.softTtl);
+        assertHeadersEqual(expected.allResponseHeaders, actual.allResponseHeaders);
+    }
+
+    private static void assertHeadersEqual(List<Header> expected, List<Header> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getName(), actual.get(i).getName());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+    }
+
+    /**
+     * 构造一个缓存项,响应头部中既有共享字典中的名字,也有字典之外的名字和非ASCII的值
+     */
+    private static Cache.Entry newEntry(String etag, byte[] data) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.etag = etag;
+        long now = System.currentTimeMillis();
+        entry.serverDate = now - 1000;
+        entry.lastModified = now - 60000;
+        entry.ttl = now + 3600000;
+        entry.softTtl = now + 60000;
+        entry.allResponseHeaders = new ArrayList<>(Arrays.asList(
+                new Header("Content-Type", "application/json; charset=utf-8"),
+                new Header("Cache-Control", "max-age=3600"),
+                new Header("ETag", etag),
+                new Header("X-Request-Id", "7f2cé"),
+                new Header("content-type", "lower-case names are not in the dictionary"),
+                new Header("Set-Cookie", "a=1"),
+                new Header("Set-Cookie", "b=2")));
+        return entry;
+    }
+}
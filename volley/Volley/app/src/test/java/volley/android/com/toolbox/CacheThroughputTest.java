@@ -0,0 +1,90 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在同样的负载下比较{@link DiskBasedCache}和{@link LogStructuredCache}的吞吐量,结果打印到标准输出.
+ * 本地单元测试的机器和手机差别很大,这里只检查读出的数据正确,不对速度做断言
+ */
+public class CacheThroughputTest {
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int ENTRY_COUNT = 400;
+
+    private static final int ENTRY_SIZE = 4 * 1024;
+
+    private static final int READ_COUNT = 4000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void compareThroughput() throws Exception {
+        DiskBasedCache disk = new DiskBasedCache(mFolder.newFolder("disk"), MAX_SIZE);
+        LogStructuredCache log = new LogStructuredCache(mFolder.newFolder("log"), MAX_SIZE);
+
+        //先各跑一遍预热JIT,再计时
+        run(disk, false);
+        run(log, false);
+        disk.clear();
+        log.clear();
+        run(disk, true);
+        run(log, true);
+
+        disk.awaitMaintenance();
+        log.awaitCompaction();
+    }
+
+    private static void run(Cache cache, boolean report) {
+        cache.initialize();
+        byte[][] bodies = new byte[ENTRY_COUNT][];
+        Random random = new Random(42);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            bodies[i] = new byte[ENTRY_SIZE];
+            random.nextBytes(bodies[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.put("key" + i, CacheContractTest.newEntry(0, i, bodies[i]));
+        }
+        long putNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < READ_COUNT; i++) {
+            int index = random.nextInt(ENTRY_COUNT);
+            Cache.Entry entry = cache.get("key" + index);
+            assertNotNull(entry);
+            assertArrayEquals(bodies[index], entry.data);
+        }
+        long getNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < READ_COUNT; i++) {
+            assertNotNull(cache.getMetadata("key" + random.nextInt(ENTRY_COUNT)));
+        }
+        long metadataNanos = System.nanoTime() - start;
+
+        if (report) {
+            System.out.println(String.format("%s: put %.0f ops/s, get %.0f ops/s, getMetadata %.0f ops/s",
+                    cache.getClass().getSimpleName(),
+                    opsPerSecond(ENTRY_COUNT, putNanos),
+                    opsPerSecond(READ_COUNT, getNanos),
+                    opsPerSecond(READ_COUNT, metadataNanos)));
+        }
+    }
+
+    private static double opsPerSecond(int ops, long nanos) {
+        return ops * 1e9 / Math.max(nanos, 1);
+    }
+}
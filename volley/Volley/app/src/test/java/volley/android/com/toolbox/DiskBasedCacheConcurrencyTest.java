@@ -0,0 +1,172 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 多个线程同时读写{@link DiskBasedCache},结束后检查缓存的总大小、磁盘上的文件和每个缓存项的内容仍然一致
+ */
+public class DiskBasedCacheConcurrencyTest {
+
+    private static final int MAX_SIZE = 512 * 1024;
+
+    private static final int KEY_COUNT = 200;
+
+    private static final int MAX_BODY_SIZE = 8 * 1024;
+
+    private static final int THREADS = 8;
+
+    private static final int OPERATIONS_PER_THREAD = 1500;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void concurrentReadersAndWriters_keepSizeAndEntriesConsistent() throws Exception {
+        File root = mFolder.newFolder("cache");
+        final DiskBasedCache cache = new DiskBasedCache(root, MAX_SIZE);
+        cache.initialize();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    runOperations(cache, new Random(seed));
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results) {
+            //线程中的断言失败会在这里抛出
+            result.get();
+        }
+        executor.shutdown();
+        cache.awaitMaintenance();
+
+        //每个还在缓存中的缓存项都必须是某一次完整的写入,所有缓存文件的大小之和必须等于记录的总大小
+        int hits = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            Cache.Entry entry = cache.get(key(i));
+            if (entry != null) {
+                assertConsistent(key(i), entry);
+                hits++;
+            }
+        }
+        List<File> files = cacheFiles(root);
+        long fileBytes = 0;
+        for (File file : files) {
+            fileBytes += file.length();
+        }
+        assertEquals(hits, files.size());
+        assertEquals(fileBytes, cache.getTotalSize());
+        assertTrue("total size " + cache.getTotalSize(), cache.getTotalSize() <= MAX_SIZE);
+
+        //重新加载后得到同样的结果
+        DiskBasedCache reopened = new DiskBasedCache(root, MAX_SIZE);
+        reopened.initialize();
+        assertEquals(fileBytes, reopened.getTotalSize());
+        reopened.awaitMaintenance();
+    }
+
+    private static void runOperations(DiskBasedCache cache, Random random) {
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            String key = key(random.nextInt(KEY_COUNT));
+            int op = random.nextInt(10);
+            if (op < 4) {
+                cache.put(key, newEntry(key, random.nextInt(), random.nextInt(MAX_BODY_SIZE)));
+            } else if (op < 7) {
+                Cache.Entry entry = cache.get(key);
+                if (entry != null) {
+                    assertConsistent(key, entry);
+                }
+            } else if (op < 8) {
+                Cache.Entry metadata = cache.getMetadata(key);
+                if (metadata != null) {
+                    assertTrue(metadata.etag.startsWith(key + "/"));
+                }
+            } else if (op < 9) {
+                cache.invalidate(key, random.nextBoolean());
+            } else {
+                cache.remove(key);
+            }
+        }
+    }
+
+    private static String key(int i) {
+        return "http://example.com/" + i;
+    }
+
+    /**
+     * 构造一个缓存项,etag记录了缓存键、生成正文的种子和正文长度,读出来时可以据此检查正文
+     */
+    private static Cache.Entry newEntry(String key, int seed, int length) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = body(seed, length);
+        entry.etag = key + "/" + seed + "/" + length;
+        entry.ttl = System.currentTimeMillis() + 3600000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        return entry;
+    }
+
+    private static byte[] body(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static void assertConsistent(String key, Cache.Entry entry) {
+        String[] parts = entry.etag.split("/");
+        assertTrue(entry.etag, entry.etag.startsWith(key + "/"));
+        int seed = Integer.parseInt(parts[parts.length - 2]);
+        int length = Integer.parseInt(parts[parts.length - 1]);
+        assertTrue(entry.etag, Arrays.equals(body(seed, length), entry.data));
+    }
+
+    /**
+     * 返回分片目录下的所有缓存文件
+     */
+    private static List<File> cacheFiles(File root) {
+        List<File> result = new ArrayList<>();
+        File[] shards = root.listFiles();
+        assertNotNull(shards);
+        for (File shard : shards) {
+            if (!shard.isDirectory() || shard.getName().length() != 1) {
+                continue;
+            }
+            File[] subShards = shard.listFiles();
+            if (subShards == null) {
+                continue;
+            }
+            for (File subShard : subShards) {
+                File[] files = subShard.listFiles();
+                if (files != null) {
+                    result.addAll(Arrays.asList(files));
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,206 @@
+package volley.android.com.toolbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DiskBasedCache#setDeduplicationEnabled(boolean)}:内容相同的正文只存一份正文块,
+ * 正文块按引用计数,最后一个引用它的缓存项被删除或替换时才删除,重新打开之后引用计数重新累计
+ */
+public class DiskBasedCacheDeduplicationTest {
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int BODY_SIZE = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private DiskBasedCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mFolder.newFolder("cache");
+        mCache = newCache();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.awaitMaintenance();
+    }
+
+    @Test
+    public void identicalBodies_shareOneBlob() {
+        byte[] body = random(BODY_SIZE, 1);
+        mCache.put("a", newEntry(body));
+        long sizeAfterFirst = mCache.getTotalSize();
+        mCache.put("b", newEntry(body));
+
+        assertEquals(1, blobFiles().size());
+        //第二个缓存项只多了一个只有头部的缓存文件
+        assertTrue(mCache.getTotalSize() - sizeAfterFirst < 1024);
+        assertTrue(mCache.getFileForKey("b").length() < 1024);
+        assertArrayEquals(body, mCache.get("a").data);
+        assertArrayEquals(body, mCache.get("b").data);
+    }
+
+    @Test
+    public void blob_isDeletedWithItsLastReference() {
+        byte[] body = random(BODY_SIZE, 1);
+        mCache.put("a", newEntry(body));
+        mCache.put("b", newEntry(body));
+        mCache.put("c", newEntry(body));
+        File blob = blobFiles().get(0);
+
+        mCache.remove("a");
+        assertTrue(blob.exists());
+        //替换成别的正文也放掉一次引用
+        byte[] other = random(BODY_SIZE, 2);
+        mCache.put("b", newEntry(other));
+        assertTrue(blob.exists());
+        assertEquals(2, blobFiles().size());
+        assertArrayEquals(body, mCache.get("c").data);
+
+        mCache.remove("c");
+        assertFalse(blob.exists());
+        assertEquals(1, blobFiles().size());
+        assertArrayEquals(other, mCache.get("b").data);
+
+        mCache.remove("b");
+        assertEquals(0, blobFiles().size());
+        assertEquals(0, mCache.getTotalSize());
+    }
+
+    @Test
+    public void refCounts_areRebuiltOnReopen() throws Exception {
+        byte[] body = random(BODY_SIZE, 1);
+        mCache.put("a", newEntry(body));
+        mCache.put("b", newEntry(body));
+        long totalSize = mCache.getTotalSize();
+        mCache.awaitMaintenance();
+
+        DiskBasedCache reopened = newCache();
+        try {
+            //正文块只计入一次容量
+            assertEquals(totalSize, reopened.getTotalSize());
+            reopened.remove("a");
+            assertEquals(1, blobFiles().size());
+            assertArrayEquals(body, reopened.get("b").data);
+            reopened.remove("b");
+            assertEquals(0, blobFiles().size());
+            assertEquals(0, reopened.getTotalSize());
+        } finally {
+            reopened.awaitMaintenance();
+        }
+    }
+
+    @Test
+    public void smallBodiesAndDisabledCache_doNotUseBlobs() throws Exception {
+        //小于1KB的正文不去重
+        byte[] small = random(512, 1);
+        mCache.put("a", newEntry(small));
+        mCache.put("b", newEntry(small));
+        assertEquals(0, blobFiles().size());
+
+        //关闭之后新写入的正文不再去重,已经写入的正文块不受影响
+        byte[] body = random(BODY_SIZE, 2);
+        mCache.put("blob", newEntry(body));
+        mCache.setDeduplicationEnabled(false);
+        mCache.put("c", newEntry(body));
+        mCache.put("d", newEntry(body));
+        assertEquals(1, blobFiles().size());
+        assertTrue(mCache.getFileForKey("c").length() > BODY_SIZE);
+        assertArrayEquals(body, mCache.get("blob").data);
+        assertArrayEquals(body, mCache.get("d").data);
+    }
+
+    @Test
+    public void orphanBlobs_areDeletedAfterInitialize() throws Exception {
+        byte[] body = random(BODY_SIZE, 1);
+        mCache.put("a", newEntry(body));
+        mCache.awaitMaintenance();
+        File blob = blobFiles().get(0);
+
+        //进程在写完正文块、写缓存文件之前被杀掉,留下没有引用的正文块和写了一半的临时文件
+        File orphan = new File(blob.getParentFile(), blob.getName().substring(0, 2) + "orphan");
+        File temp = new File(blob.getPath() + ".tmp");
+        write(orphan, random(BODY_SIZE, 2));
+        write(temp, random(100, 3));
+
+        DiskBasedCache reopened = newCache();
+        reopened.awaitMaintenance();
+        assertFalse(orphan.exists());
+        assertFalse(temp.exists());
+        assertTrue(blob.exists());
+        assertArrayEquals(body, reopened.get("a").data);
+    }
+
+    private DiskBasedCache newCache() {
+        DiskBasedCache cache = new DiskBasedCache(mRoot, MAX_SIZE);
+        cache.setDeduplicationEnabled(true);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * 返回blobs目录下所有的正文块文件
+     */
+    private List<File> blobFiles() {
+        List<File> blobs = new ArrayList<>();
+        File[] dirs = new File(mRoot, "blobs").listFiles();
+        if (dirs == null) {
+            return blobs;
+        }
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    blobs.add(file);
+                }
+            }
+        }
+        return blobs;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static byte[] random(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static Cache.Entry newEntry(byte[] data) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.etag = "etag";
+        entry.ttl = System.currentTimeMillis() + 3600000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", "application/octet-stream"));
+        return entry;
+    }
+}
@@ -0,0 +1,215 @@
+package volley.android.com.toolbox;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DiskBasedCache}命中时的读取:正文在第一次定位读取的边界前后、头部比第一次读取还长、压缩存储、
+ * 旧格式的文件,以及正文损坏时按未命中处理
+ */
+public class DiskBasedCacheReadPathTest {
+
+    /**
+     * 与DiskBasedCache.HEAD_READ_SIZE相同
+     */
+    private static final int HEAD_READ_SIZE = 4 * 1024;
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private DiskBasedCache mCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mFolder.newFolder("cache");
+        mCache = new DiskBasedCache(mRoot, MAX_SIZE);
+        mCache.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mCache.awaitMaintenance();
+    }
+
+    @Test
+    public void bodiesAroundFirstReadBoundary_areReadBack() throws IOException {
+        int headerLength = headerLength("key", "application/octet-stream");
+        int fits = HEAD_READ_SIZE - headerLength;
+        for (int length : new int[] {fits - 1, fits, fits + 1}) {
+            byte[] body = random(length, length);
+            mCache.put("key", newEntry(body, "application/octet-stream"));
+            //正文的最后一个字节正好在第一次读取的边界前、边界上和边界后
+            assertEquals(HEAD_READ_SIZE + length - fits, mCache.getFileForKey("key").length());
+            assertArrayEquals("length " + length, body, mCache.get("key").data);
+        }
+        for (int length : new int[] {0, 1, HEAD_READ_SIZE, 3 * HEAD_READ_SIZE + 5, 100 * 1024}) {
+            byte[] body = random(length, length);
+            mCache.put("key", newEntry(body, "application/octet-stream"));
+            assertArrayEquals("length " + length, body, mCache.get("key").data);
+        }
+    }
+
+    @Test
+    public void headerLongerThanFirstRead_isReadBack() {
+        char[] value = new char[2 * HEAD_READ_SIZE];
+        Arrays.fill(value, 'v');
+        for (int length : new int[] {0, 1, 2 * HEAD_READ_SIZE}) {
+            Cache.Entry entry = newEntry(random(length, length), "application/octet-stream");
+            entry.allResponseHeaders.add(new Header("X-Long", new String(value)));
+            mCache.put("key", entry);
+
+            Cache.Entry read = mCache.get("key");
+            assertArrayEquals(entry.data, read.data);
+            assertEquals(new String(value), read.responseHeaders.get("X-Long"));
+        }
+    }
+
+    @Test
+    public void compressedBodiesAroundFirstReadBoundary_areReadBack() {
+        mCache.setCompressionEnabled(true);
+        for (int length : new int[] {1024, HEAD_READ_SIZE - 1, HEAD_READ_SIZE, HEAD_READ_SIZE + 1,
+                4 * HEAD_READ_SIZE, 200 * 1024}) {
+            byte[] body = text(length);
+            mCache.put("key", newEntry(body, "application/json"));
+            assertTrue(mCache.getFileForKey("key").length() < length);
+            assertArrayEquals("length " + length, body, mCache.get("key").data);
+        }
+    }
+
+    @Test
+    public void legacyFiles_areReadThroughTheStreamPath() throws Exception {
+        //没有索引的目录,启动时扫描目录才能读到这些文件
+        File root = mFolder.newFolder("legacy");
+        DiskBasedCache cache = new DiskBasedCache(root, MAX_SIZE);
+        byte[] small = random(100, 1);
+        byte[] large = text(3 * HEAD_READ_SIZE);
+        Cache.Entry v1 = newEntry(small, "application/octet-stream");
+        Cache.Entry v2 = newEntry(large, "application/json");
+        CacheHeaderFormatTest.writeLegacyFile(cache.getFileForKey("v1"), CacheHeaderFormatTest.CACHE_MAGIC_V1,
+                "v1", v1, BodyCodec.NONE, small);
+        CacheHeaderFormatTest.writeLegacyFile(cache.getFileForKey("v2"), CacheHeaderFormatTest.CACHE_MAGIC_V2,
+                "v2", v2, BodyCodec.DEFLATE, BodyCodec.encode(BodyCodec.DEFLATE, large));
+
+        cache.initialize();
+        try {
+            assertArrayEquals(small, cache.get("v1").data);
+            assertArrayEquals(large, cache.get("v2").data);
+        } finally {
+            cache.awaitMaintenance();
+        }
+    }
+
+    @Test
+    public void corruptBody_isAMissAndIsRemoved() throws IOException {
+        mCache.setCompressionEnabled(true);
+        int headerLength = headerLength("key", "application/octet-stream");
+        //在第一次读取范围内的正文、第一次读取之后的正文和压缩存储的正文
+        corruptAndAssertMiss("small", newEntry(random(100, 1), "application/octet-stream"), headerLength + 50);
+        corruptAndAssertMiss("large", newEntry(random(5 * HEAD_READ_SIZE, 2), "application/octet-stream"), -1);
+        corruptAndAssertMiss("compressed", newEntry(text(5 * HEAD_READ_SIZE), "application/json"), -1);
+    }
+
+    @Test
+    public void truncatedFile_isAMissAndIsRemoved() throws IOException {
+        mCache.put("key", newEntry(random(2 * HEAD_READ_SIZE, 1), "application/octet-stream"));
+        File file = mCache.getFileForKey("key");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(mCache.get("key"));
+        assertNull(mCache.getMetadata("key"));
+        assertFalse(file.exists());
+        assertEquals(0, mCache.getTotalSize());
+    }
+
+    /**
+     * 改掉缓存文件中的一个字节,之后的读取按未命中处理,缓存项连同文件被删除
+     * @param position 要改的字节在文件中的位置,负数表示从文件末尾算起
+     */
+    private void corruptAndAssertMiss(String key, Cache.Entry entry, long position) throws IOException {
+        mCache.put(key, entry);
+        long before = mCache.getTotalSize();
+        File file = mCache.getFileForKey(key);
+        long fileLength = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long offset = position >= 0 ? position : raf.length() + position;
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x55);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(key, mCache.get(key));
+        assertNull(key, mCache.getMetadata(key));
+        assertFalse(key, file.exists());
+        assertEquals(key, before - fileLength, mCache.getTotalSize());
+    }
+
+    /**
+     * 返回同样的缓存键和头部下,一两KB的正文在文件中的偏移.头部中的正文长度是变长编码,偏移随正文长度的量级变化
+     */
+    private int headerLength(String key, String contentType) {
+        int bodyLength = HEAD_READ_SIZE / 2;
+        mCache.put(key, newEntry(new byte[bodyLength], contentType));
+        int length = (int) mCache.getFileForKey(key).length() - bodyLength;
+        mCache.remove(key);
+        return length;
+    }
+
+    private static byte[] random(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 生成指定长度、可以压缩的文本
+     */
+    private static byte[] text(int length) {
+        Random random = new Random(length);
+        StringBuilder sb = new StringBuilder(length + 32);
+        while (sb.length() < length) {
+            sb.append("{\"id\":").append(random.nextInt(1000)).append(",\"ok\":true},");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(UTF_8), length);
+    }
+
+    private static Cache.Entry newEntry(byte[] data, String contentType) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.etag = "etag";
+        entry.ttl = System.currentTimeMillis() + 3600000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        entry.allResponseHeaders.add(new Header("Content-Type", contentType));
+        return entry;
+    }
+}
@@ -0,0 +1,327 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在{@link DiskBasedCache}上运行{@link CacheContractTest}
+ */
+public class DiskBasedCacheTest extends CacheContractTest {
+
+    @Override
+    protected Cache createCache(File root, int maxSizeInBytes) {
+        return new DiskBasedCache(root, maxSizeInBytes);
+    }
+
+    @Override
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+        ((DiskBasedCache) cache).awaitMaintenance();
+    }
+
+    @Test
+    public void remove_beforeWarmUpLoadsKey_isNotUndone() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        cache.put("removed", newEntry(512, 1));
+        long removedSize = cache.getTotalSize();
+        cache.put("kept", newEntry(512, 2));
+        long keptSize = cache.getTotalSize() - removedSize;
+        awaitBackgroundWork(cache);
+
+        //initialize()还没执行,相当于异步预热还没加载到这两个缓存键
+        DiskBasedCache warmingUp = new DiskBasedCache(mRoot, MAX_SIZE);
+        warmingUp.remove("removed");
+        warmingUp.initialize();
+        //删除的缓存项不应该被加载回来,也不应该再占用容量
+        assertEquals(keptSize, warmingUp.getTotalSize());
+        assertNull(warmingUp.get("removed"));
+        assertNull(warmingUp.getMetadata("removed"));
+        assertNotNull(warmingUp.get("kept"));
+        awaitBackgroundWork(warmingUp);
+
+        DiskBasedCache reopened = new DiskBasedCache(mRoot, MAX_SIZE);
+        reopened.initialize();
+        assertEquals(keptSize, reopened.getTotalSize());
+        assertNull(reopened.get("removed"));
+        assertNotNull(reopened.get("kept"));
+        awaitBackgroundWork(reopened);
+    }
+
+    @Test
+    public void invalidate_beforeWarmUpLoadsKey_isNotUndone() throws Exception {
+        mCache.put("key", newEntry(512, 3));
+        awaitBackgroundWork(mCache);
+
+        DiskBasedCache warmingUp = new DiskBasedCache(mRoot, MAX_SIZE);
+        warmingUp.invalidate("key", false);
+        warmingUp.initialize();
+        Cache.Entry read = warmingUp.get("key");
+        assertNotNull(read);
+        assertTrue(read.refreshNeeded());
+        awaitBackgroundWork(warmingUp);
+    }
+
+    @Test
+    public void recordAccess_keepsEntryHotWithoutReadingIt() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, newEntry(8 * 1024, i));
+        }
+        //key0是最久未访问的,只记录访问、不读取它,它也应该变成最近访问的
+        cache.recordAccess("key0");
+        for (int i = 20; i < 40; i++) {
+            cache.put("key" + i, newEntry(8 * 1024, i));
+            awaitBackgroundWork(cache);
+        }
+
+        assertNull(cache.getMetadata("key1"));
+        assertNotNull(cache.getMetadata("key0"));
+    }
+
+    @Test
+    public void updateMetadata_rewritesOnlyTheMetadataSegment() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        Cache.Entry entry = newEntry(16 * 1024, 1);
+        cache.put("key", entry);
+        File file = cache.getFileForKey("key");
+        byte[] before = readFile(file);
+        DiskBasedCache.CacheHeader onDisk = readHeader(file);
+        long start = onDisk.metadataOffset();
+        long end = start + onDisk.metadataBytes().length;
+
+        cache.updateMetadata("key", refreshed(entry));
+        byte[] after = readFile(file);
+        assertEquals(before.length, after.length);
+        for (int i = 0; i < before.length; i++) {
+            if (i < start || i >= end) {
+                assertEquals("offset " + i, before[i], after[i]);
+            }
+        }
+        Cache.Entry read = cache.get("key");
+        assertEquals(entry.ttl + 60000, read.ttl);
+        assertEquals(entry.softTtl + 60000, read.softTtl);
+        assertArrayEquals(entry.data, read.data);
+    }
+
+    @Test
+    public void updateMetadata_tornWrite_isDetectedOnRead() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        Cache.Entry entry = newEntry(16 * 1024, 1);
+        cache.put("key", entry);
+        File file = cache.getFileForKey("key");
+
+        //改写元数据段时进程被杀掉:新的ttl已经写下,后面的softTtl和CRC还是旧的
+        DiskBasedCache.CacheHeader onDisk = readHeader(file);
+        Cache.Entry refreshed = refreshed(entry);
+        byte[] metadata = onDisk.withMetadata(refreshed.etag, refreshed.serverDate, refreshed.lastModified,
+                refreshed.ttl, refreshed.softTtl).metadataBytes();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(onDisk.metadataOffset());
+            raf.write(metadata, 0, metadata.length - 12);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get("key"));
+        assertNull(cache.getMetadata("key"));
+        assertFalse(file.exists());
+        assertEquals(0, cache.getTotalSize());
+    }
+
+    @Test
+    public void putsPastMaxSize_neverEvictOnTheWriterThread() throws Exception {
+        SlowEvictionPolicy policy = new SlowEvictionPolicy();
+        DiskBasedCache cache = new DiskBasedCache(mFolder.newFolder("backpressure"), MAX_SIZE, policy);
+        cache.initialize();
+
+        //写入三倍容量,淘汰都在维护线程上做,写入线程只等待
+        for (int i = 0; i < 96; i++) {
+            cache.put("key" + i, newEntry(8 * 1024, i));
+        }
+        awaitBackgroundWork(cache);
+        assertTrue(cache.getTotalSize() <= MAX_SIZE);
+        assertEquals(Collections.singleton("volley-cache-maintenance"), policy.evictingThreads);
+
+        //维护线程等待时间内腾不出空间,写入被放弃而不是超过最大容量
+        policy.delayMs = 200;
+        String dropped = null;
+        for (int i = 96; i < 140 && dropped == null; i++) {
+            cache.put("key" + i, newEntry(8 * 1024, i));
+            if (cache.getMetadata("key" + i) == null) {
+                dropped = "key" + i;
+            }
+            assertTrue(cache.getTotalSize() <= MAX_SIZE);
+        }
+        assertNotNull(dropped);
+        policy.delayMs = 0;
+        awaitBackgroundWork(cache);
+        assertEquals(Collections.singleton("volley-cache-maintenance"), policy.evictingThreads);
+    }
+
+    @Test
+    public void removeByPrefix_removesOnlyMatchingKeys() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        String[] keys = {"http://a.com/x/1", "http://a.com/x/2", "http://a.com/x", "http://a.com/xy", "http://b.com/x/1"};
+        for (int i = 0; i < keys.length; i++) {
+            cache.put(keys[i], newEntry(512, i));
+        }
+        File removedFile = cache.getFileForKey(keys[0]);
+
+        assertEquals(2, cache.removeByPrefix("http://a.com/x/"));
+        assertEquals(0, cache.removeByPrefix("http://c.com/"));
+        //缓存项马上从内存中移除,文件在后台删除
+        assertNull(cache.get(keys[0]));
+        assertNull(cache.getMetadata(keys[1]));
+        for (int i = 2; i < keys.length; i++) {
+            assertNotNull(keys[i], cache.get(keys[i]));
+        }
+        awaitBackgroundWork(cache);
+        assertFalse(removedFile.exists());
+        assertFalse(new File(mRoot, "volley.trash").exists());
+
+        DiskBasedCache reopened = new DiskBasedCache(mRoot, MAX_SIZE);
+        reopened.initialize();
+        assertNull(reopened.get(keys[0]));
+        assertNull(reopened.get(keys[1]));
+        assertNotNull(reopened.get(keys[2]));
+        awaitBackgroundWork(reopened);
+    }
+
+    @Test
+    public void removeByTag_followsTagsAcrossReplacementAndReopen() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        cache.put("user1", tagged(newEntry(512, 1), "user", "profile"));
+        cache.put("user2", tagged(newEntry(512, 2), "user"));
+        cache.put("feed", tagged(newEntry(512, 3), "feed"));
+        //替换成不带标签的缓存项之后不再属于这个标签
+        cache.put("replaced", tagged(newEntry(512, 4), "user"));
+        cache.put("replaced", newEntry(512, 5));
+        awaitBackgroundWork(cache);
+
+        //标签保存在缓存文件中,重新打开之后仍然可以按标签删除
+        DiskBasedCache reopened = new DiskBasedCache(mRoot, MAX_SIZE);
+        reopened.initialize();
+        assertEquals(2, reopened.removeByTag("user"));
+        assertEquals(0, reopened.removeByTag("user"));
+        assertNull(reopened.get("user1"));
+        assertNull(reopened.get("user2"));
+        assertNotNull(reopened.get("feed"));
+        assertNotNull(reopened.get("replaced"));
+        //user1的另一个标签也随之清理
+        assertEquals(0, reopened.removeByTag("profile"));
+        awaitBackgroundWork(reopened);
+        assertFalse(reopened.getFileForKey("user1").exists());
+    }
+
+    @Test
+    public void pendingDeletes_fromKilledProcess_areResumedOnInitialize() throws Exception {
+        DiskBasedCache cache = (DiskBasedCache) mCache;
+        for (String key : new String[] {"a1", "a2", "b"}) {
+            cache.put(key, newEntry(512, key.hashCode()));
+        }
+        awaitBackgroundWork(cache);
+
+        //进程在批量删除写完删除记录和待删除列表之后、删掉文件之前被杀掉.
+        //b在待删除列表中,但之后又被写入过(索引中没有它的删除记录),它的文件是新的
+        List<String> removed = Arrays.asList("a1", "a2");
+        DiskCacheIndex index = new DiskCacheIndex(mRoot);
+        index.recordRemoves(removed);
+        index.recordPendingDeletes(Arrays.asList("a1", "a2", "b"),
+                Arrays.asList(relativePath(cache, "a1"), relativePath(cache, "a2"), relativePath(cache, "b")));
+        File trash = new File(mRoot, "volley.trash");
+        assertTrue(trash.exists());
+        assertTrue(cache.getFileForKey("a1").exists());
+
+        DiskBasedCache reopened = new DiskBasedCache(mRoot, MAX_SIZE);
+        reopened.initialize();
+        assertNull(reopened.get("a1"));
+        assertNull(reopened.get("a2"));
+        awaitBackgroundWork(reopened);
+        assertFalse(reopened.getFileForKey("a1").exists());
+        assertFalse(reopened.getFileForKey("a2").exists());
+        assertTrue(reopened.getFileForKey("b").exists());
+        assertArrayEquals(newEntry(512, "b".hashCode()).data, reopened.get("b").data);
+        assertFalse(trash.exists());
+    }
+
+    /**
+     * 记录在哪些线程上淘汰,可以让每次淘汰变慢的LRU策略
+     */
+    private static class SlowEvictionPolicy extends LruEvictionPolicy {
+        final Set<String> evictingThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        volatile long delayMs;
+
+        @Override
+        public void onEvict(String key, double priority) {
+            evictingThreads.add(Thread.currentThread().getName());
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.onEvict(key, priority);
+        }
+    }
+
+    private static Cache.Entry tagged(Cache.Entry entry, String... tags) {
+        entry.tags = new HashSet<>(Arrays.asList(tags));
+        return entry;
+    }
+
+    /**
+     * 缓存键对应的文件相对于缓存根目录的路径,和待删除列表中记录的一样
+     */
+    private static String relativePath(DiskBasedCache cache, String key) {
+        File file = cache.getFileForKey(key);
+        return file.getParentFile().getParentFile().getName() + File.separator
+                + file.getParentFile().getName() + File.separator + file.getName();
+    }
+
+    /**
+     * 与entry的etag相同,过期时间推后一分钟的元数据
+     */
+    private static Cache.Entry refreshed(Cache.Entry entry) {
+        Cache.Entry refreshed = newEntry(0, 1, null);
+        refreshed.etag = entry.etag;
+        refreshed.ttl = entry.ttl + 60000;
+        refreshed.softTtl = entry.softTtl + 60000;
+        return refreshed;
+    }
+
+    private static DiskBasedCache.CacheHeader readHeader(File file) throws IOException {
+        DiskBasedCache.CountingInputStream cis = new DiskBasedCache.CountingInputStream(
+                new FileInputStream(file), file.length());
+        try {
+            return DiskBasedCache.CacheHeader.readHeader(cis);
+        } finally {
+            cis.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
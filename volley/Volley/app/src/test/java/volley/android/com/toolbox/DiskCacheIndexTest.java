@@ -0,0 +1,229 @@
+package volley.android.com.toolbox;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 进程在写{@link DiskCacheIndex}的中途被杀掉之后重启:重放索引得到的缓存项、总大小和新近度必须与磁盘上的文件一致
+ */
+public class DiskCacheIndexTest {
+
+    private static final int MAX_SIZE = 256 * 1024;
+
+    private static final int BODY_SIZE = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private File mIndexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mFolder.newFolder("cache");
+        mIndexFile = new File(mRoot, DiskCacheIndex.INDEX_FILE_NAME);
+    }
+
+    @Test
+    public void tornLastPut_isDroppedAndLaterAppendsSurvive() throws Exception {
+        DiskBasedCache cache = open();
+        for (int i = 0; i < 5; i++) {
+            cache.put(key(i), newEntry(i));
+        }
+        cache.awaitMaintenance();
+
+        //key4的记录只写了一部分,先记索引再提交文件,所以它的缓存文件也还没有提交
+        truncateIndex(5);
+        assertTrue(cache.getFileForKey(key(4)).delete());
+
+        DiskBasedCache reopened = open();
+        assertCached(reopened, 0, 1, 2, 3);
+        assertNull(reopened.get(key(4)));
+        assertEquals(fileSize(reopened, 0, 1, 2, 3), reopened.getTotalSize());
+
+        //截掉的记录后面追加的记录在下次启动时能读出来
+        reopened.put(key(5), newEntry(5));
+        reopened.awaitMaintenance();
+        DiskBasedCache again = open();
+        assertCached(again, 0, 1, 2, 3, 5);
+        assertEquals(fileSize(again, 0, 1, 2, 3, 5), again.getTotalSize());
+        again.awaitMaintenance();
+    }
+
+    @Test
+    public void garbageAfterLastRecord_isTruncated() throws Exception {
+        DiskBasedCache cache = open();
+        for (int i = 0; i < 3; i++) {
+            cache.put(key(i), newEntry(i));
+        }
+        cache.awaitMaintenance();
+
+        byte[] garbage = new byte[37];
+        new Random(1).nextBytes(garbage);
+        FileOutputStream fos = new FileOutputStream(mIndexFile, true);
+        try {
+            fos.write(garbage);
+        } finally {
+            fos.close();
+        }
+
+        DiskBasedCache reopened = open();
+        assertCached(reopened, 0, 1, 2);
+        assertEquals(fileSize(reopened, 0, 1, 2), reopened.getTotalSize());
+        reopened.put(key(3), newEntry(3));
+        reopened.awaitMaintenance();
+
+        DiskBasedCache again = open();
+        assertCached(again, 0, 1, 2, 3);
+        again.awaitMaintenance();
+    }
+
+    @Test
+    public void corruptRecordInTheMiddle_fallsBackToDirectoryScan() throws Exception {
+        DiskBasedCache cache = open();
+        for (int i = 0; i < 4; i++) {
+            cache.put(key(i), newEntry(i));
+        }
+        cache.awaitMaintenance();
+
+        RandomAccessFile raf = new RandomAccessFile(mIndexFile, "rw");
+        try {
+            long middle = raf.length() / 2;
+            raf.seek(middle);
+            int b = raf.read();
+            raf.seek(middle);
+            raf.write(b ^ 0x55);
+        } finally {
+            raf.close();
+        }
+
+        DiskBasedCache reopened = open();
+        assertCached(reopened, 0, 1, 2, 3);
+        assertEquals(fileSize(reopened, 0, 1, 2, 3), reopened.getTotalSize());
+        reopened.awaitMaintenance();
+    }
+
+    @Test
+    public void tornRemove_missingFileIsNotServed() throws Exception {
+        DiskBasedCache cache = open();
+        cache.put(key(0), newEntry(0));
+        cache.put(key(1), newEntry(1));
+        //删除时先删文件再记索引,REMOVE记录没有写完时文件已经不在了
+        cache.remove(key(1));
+        cache.awaitMaintenance();
+        truncateIndex(5);
+
+        DiskBasedCache reopened = open();
+        assertNull(reopened.get(key(1)));
+        assertNull(reopened.getMetadata(key(1)));
+        assertCached(reopened, 0);
+        assertEquals(fileSize(reopened, 0), reopened.getTotalSize());
+        reopened.awaitMaintenance();
+    }
+
+    @Test
+    public void removeDuringWarmUp_survivesRestartBeforeWarmUpFinishes() throws Exception {
+        DiskBasedCache cache = open();
+        cache.put(key(0), newEntry(0));
+        cache.put(key(1), newEntry(1));
+        cache.awaitMaintenance();
+
+        //预热还没开始就删除,进程在预热完成前被杀掉
+        DiskBasedCache warmingUp = new DiskBasedCache(mRoot, MAX_SIZE);
+        warmingUp.remove(key(1));
+
+        DiskBasedCache reopened = open();
+        assertNull(reopened.get(key(1)));
+        assertCached(reopened, 0);
+        assertEquals(fileSize(reopened, 0), reopened.getTotalSize());
+        reopened.awaitMaintenance();
+    }
+
+    @Test
+    public void savedRecency_evictsColdAndKeepsHotAfterRestart() throws Exception {
+        DiskBasedCache cache = open();
+        int count = 20;
+        for (int i = 0; i < count; i++) {
+            cache.put(key(i), newEntry(i));
+        }
+        //key0写得最早,但是最近被访问过
+        assertNotNull(cache.get(key(0)));
+        cache.saveAccessState();
+        cache.awaitMaintenance();
+
+        DiskBasedCache reopened = open();
+        for (int i = count; i < 2 * count; i++) {
+            reopened.put(key(i), newEntry(i));
+            reopened.awaitMaintenance();
+        }
+        assertNotNull(reopened.getMetadata(key(0)));
+        assertNull(reopened.getMetadata(key(1)));
+        reopened.awaitMaintenance();
+    }
+
+    /**
+     * 打开缓存并等启动时的第一次定期清理做完.清理会重写索引,等它做完,之后截掉的才是测试写下的最后一条记录
+     */
+    private DiskBasedCache open() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mRoot, MAX_SIZE);
+        cache.initialize();
+        cache.awaitMaintenance();
+        return cache;
+    }
+
+    /**
+     * 截掉索引文件末尾的几个字节,相当于最后一条记录追加到一半时进程被杀掉
+     */
+    private void truncateIndex(int bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mIndexFile, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertCached(DiskBasedCache cache, int... indexes) {
+        for (int i : indexes) {
+            Cache.Entry entry = cache.get(key(i));
+            assertNotNull(key(i), entry);
+            assertArrayEquals(newEntry(i).data, entry.data);
+        }
+    }
+
+    private static long fileSize(DiskBasedCache cache, int... indexes) {
+        long size = 0;
+        for (int i : indexes) {
+            size += cache.getFileForKey(key(i)).length();
+        }
+        return size;
+    }
+
+    private static String key(int i) {
+        return "http://example.com/" + i;
+    }
+
+    private static Cache.Entry newEntry(int seed) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[BODY_SIZE];
+        new Random(seed).nextBytes(entry.data);
+        entry.ttl = System.currentTimeMillis() + 3600000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        return entry;
+    }
+}
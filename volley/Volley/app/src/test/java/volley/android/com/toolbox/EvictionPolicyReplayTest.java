@@ -0,0 +1,131 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在{@link DiskBasedCache}上回放同一段访问序列,比较不同{@link EvictionPolicy}的命中率和重新获取的代价.
+ * <p>
+ * 访问序列由一组按Zipf(0.9)分布访问的热点URL和周期性出现的一批只访问一次的URL(例如一次列表滚动)组成,
+ * 每个URL有固定的正文大小和获取时间.未命中时按网络请求处理:计入重新获取的字节数和时间,再写回缓存
+ * </p>
+ */
+public class EvictionPolicyReplayTest {
+
+    private static final int MAX_SIZE = 384 * 1024;
+
+    private static final int HOT_KEYS = 300;
+
+    private static final int REQUESTS = 8000;
+
+    private static final int SCAN_INTERVAL = 2000;
+
+    private static final int SCAN_LENGTH = 400;
+
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 一次回放的结果
+     */
+    private static class Result {
+        int hits;
+        long refetchedBytes;
+        long refetchMs;
+
+        double hitRate() {
+            return (double) hits / REQUESTS;
+        }
+    }
+
+    @Test
+    public void replayedTrace_policiesBeatLru() throws Exception {
+        List<String> trace = buildTrace();
+        Result lru = replay(trace, new LruEvictionPolicy());
+        Result tinyLfu = replay(trace, new TinyLfuEvictionPolicy());
+        Result gds = replay(trace, new GreedyDualSizeEvictionPolicy());
+
+        //一批只访问一次的URL不应该把热点挤出去
+        assertTrue("LRU " + lru.hitRate() + ", TinyLFU " + tinyLfu.hitRate(),
+                tinyLfu.hitRate() > lru.hitRate());
+        assertTrue(tinyLfu.refetchedBytes < lru.refetchedBytes);
+        //按获取时间和大小之比淘汰,重新获取花费的总时间应该更少
+        assertTrue("LRU " + lru.refetchMs + " ms, GDS " + gds.refetchMs + " ms",
+                gds.refetchMs < lru.refetchMs);
+    }
+
+    private Result replay(List<String> trace, EvictionPolicy policy) throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mFolder.newFolder(), MAX_SIZE, policy);
+        cache.initialize();
+        Result result = new Result();
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                result.hits++;
+                continue;
+            }
+            Cache.Entry entry = newEntry(key);
+            result.refetchedBytes += entry.data.length;
+            result.refetchMs += entry.networkTimeMs;
+            cache.put(key, entry);
+            //每次写入之后等淘汰做完,回放的结果不受后台线程调度的影响
+            cache.awaitMaintenance();
+        }
+        System.out.println(String.format("%s: hit %.1f%%, re-fetched %d KB, %d ms",
+                policy.getClass().getSimpleName(), 100 * result.hitRate(),
+                result.refetchedBytes / 1024, result.refetchMs));
+        return result;
+    }
+
+    private static List<String> buildTrace() {
+        Random random = new Random(7);
+        double[] cumulative = new double[HOT_KEYS];
+        double sum = 0;
+        for (int i = 0; i < HOT_KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+
+        List<String> trace = new ArrayList<>(REQUESTS);
+        int scanned = 0;
+        while (trace.size() < REQUESTS) {
+            if (trace.size() > 0 && trace.size() % SCAN_INTERVAL == 0) {
+                for (int i = 0; i < SCAN_LENGTH && trace.size() < REQUESTS; i++) {
+                    trace.add("http://example.com/once/" + scanned++);
+                }
+                continue;
+            }
+            double target = random.nextDouble() * sum;
+            int index = 0;
+            while (cumulative[index] < target) {
+                index++;
+            }
+            trace.add("http://example.com/hot/" + index);
+        }
+        return trace;
+    }
+
+    /**
+     * 每个URL的正文大小(1-4KB)和获取时间(20-500ms)由URL决定,重复获取时保持不变
+     */
+    private static Cache.Entry newEntry(String key) {
+        Random random = new Random(key.hashCode());
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[1024 + random.nextInt(3 * 1024)];
+        entry.networkTimeMs = 20 + random.nextInt(480);
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.allResponseHeaders = new ArrayList<>();
+        return entry;
+    }
+}
@@ -0,0 +1,287 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import volley.android.com.NetworkResponse;
+import volley.android.com.Request;
+import volley.android.com.RetryPolicy;
+import volley.android.com.VolleyError;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link FileDownloadRequest}经过{@link BasicNetwork}下载:中途断开后重试时带上Range和If-Range从断点续传,
+ * 服务端不支持断点、文件变了或者Content-Range对不上时从头下载,完成后临时文件重命名成目标文件
+ */
+public class FileDownloadRequestTest {
+
+    private static final int FILE_SIZE = 200 * 1024;
+
+    private static final int CUT_AT = 70 * 1024;
+
+    private static final String URL = "http://example.com/file.bin";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void interruptedDownload_resumesWithRangeAndIfRange() throws Exception {
+        byte[] content = random(FILE_SIZE, 1);
+        FakeServer server = new FakeServer(content, "\"v1\"", null);
+        server.cutAt = CUT_AT;
+        FileDownloadRequest request = newRequest();
+        final List<long[]> progress = new ArrayList<>();
+        request.setProgressListener(new FileDownloadRequest.ProgressListener() {
+            @Override
+            public void onProgress(long downloadedBytes, long totalBytes) {
+                progress.add(new long[] {downloadedBytes, totalBytes});
+            }
+        });
+
+        NetworkResponse response = new BasicNetwork(server).performRequest(request);
+
+        assertEquals(2, server.requests.size());
+        assertNull(server.requests.get(0).get("Range"));
+        assertEquals("bytes=" + CUT_AT + "-", server.requests.get(1).get("Range"));
+        assertEquals("\"v1\"", server.requests.get(1).get("If-Range"));
+        assertEquals(206, response.statusCode);
+        assertNull(response.data);
+        assertDownloaded(content, request);
+        //进度从断点处继续,最后一次等于文件大小
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(FILE_SIZE, last[0]);
+        assertEquals(FILE_SIZE, last[1]);
+        for (long[] p : progress) {
+            assertEquals(FILE_SIZE, p[1]);
+        }
+    }
+
+    @Test
+    public void lastModified_isUsedWhenThereIsNoETag() throws Exception {
+        byte[] content = random(FILE_SIZE, 2);
+        String lastModified = "Tue, 16 Oct 2018 08:00:00 GMT";
+        FakeServer server = new FakeServer(content, null, lastModified);
+        server.cutAt = CUT_AT;
+        FileDownloadRequest request = newRequest();
+
+        new BasicNetwork(server).performRequest(request);
+
+        assertEquals(lastModified, server.requests.get(1).get("If-Range"));
+        assertDownloaded(content, request);
+    }
+
+    @Test
+    public void serverIgnoringRange_restartsFromScratch() throws Exception {
+        byte[] content = random(FILE_SIZE, 3);
+        FakeServer server = new FakeServer(content, "\"v1\"", null);
+        server.cutAt = CUT_AT;
+        server.supportsRange = false;
+        FileDownloadRequest request = newRequest();
+
+        NetworkResponse response = new BasicNetwork(server).performRequest(request);
+
+        //请求带了Range,服务端返回完整的200,临时文件从头写,不会把两段拼在一起
+        assertNotNull(server.requests.get(1).get("Range"));
+        assertEquals(200, response.statusCode);
+        assertDownloaded(content, request);
+    }
+
+    @Test
+    public void fileChangedBetweenAttempts_downloadsNewVersion() throws Exception {
+        byte[] original = random(FILE_SIZE, 4);
+        byte[] changed = random(FILE_SIZE + 100, 5);
+        FakeServer server = new FakeServer(original, "\"v1\"", null);
+        server.cutAt = CUT_AT;
+        server.next = new FakeServer(changed, "\"v2\"", null);
+        FileDownloadRequest request = newRequest();
+
+        new BasicNetwork(server).performRequest(request);
+
+        //If-Range对不上,服务端返回新文件的完整200响应
+        assertEquals("\"v1\"", server.requests.get(1).get("If-Range"));
+        assertDownloaded(changed, request);
+    }
+
+    @Test
+    public void mismatchedContentRange_dropsPartialFileAndRestarts() throws Exception {
+        byte[] content = random(FILE_SIZE, 6);
+        FakeServer server = new FakeServer(content, "\"v1\"", null);
+        server.cutAt = CUT_AT;
+        server.rangeSkew = 1;
+        FileDownloadRequest request = newRequest();
+
+        new BasicNetwork(server).performRequest(request);
+
+        //第二次的206从错误的位置开始,丢弃之后第三次不带Range从头下载
+        assertEquals(3, server.requests.size());
+        assertNotNull(server.requests.get(1).get("Range"));
+        assertNull(server.requests.get(2).get("Range"));
+        assertNull(server.requests.get(2).get("If-Range"));
+        assertDownloaded(content, request);
+    }
+
+    @Test
+    public void responseWithoutValidator_isNotResumed() throws Exception {
+        byte[] content = random(FILE_SIZE, 7);
+        FakeServer server = new FakeServer(content, null, null);
+        server.cutAt = CUT_AT;
+        FileDownloadRequest request = newRequest();
+
+        new BasicNetwork(server).performRequest(request);
+
+        //没有校验字段就没法保证两次是同一个文件,不发Range
+        assertNull(server.requests.get(1).get("Range"));
+        assertDownloaded(content, request);
+    }
+
+    @Test
+    public void existingPartialFileWithoutValidator_isDiscarded() throws Exception {
+        byte[] content = random(FILE_SIZE, 8);
+        FakeServer server = new FakeServer(content, "\"v1\"", null);
+        FileDownloadRequest request = newRequest();
+        //上次进程留下的临时文件,这次请求不知道它对应哪个版本
+        RandomAccessFile stale = new RandomAccessFile(request.getPartialFile(), "rw");
+        try {
+            stale.write(random(CUT_AT, 9));
+        } finally {
+            stale.close();
+        }
+
+        new BasicNetwork(server).performRequest(request);
+
+        assertEquals(1, server.requests.size());
+        assertNull(server.requests.get(0).get("Range"));
+        assertDownloaded(content, request);
+    }
+
+    private FileDownloadRequest newRequest() throws IOException {
+        File target = new File(mFolder.newFolder("downloads"), "file.bin");
+        FileDownloadRequest request = new FileDownloadRequest(URL, target, null, null);
+        request.setRetryPolicy(new CountingRetryPolicy(3));
+        return request;
+    }
+
+    private static void assertDownloaded(byte[] expected, FileDownloadRequest request) throws IOException {
+        assertFalse(request.getPartialFile().exists());
+        RandomAccessFile file = new RandomAccessFile(request.getTargetFile(), "r");
+        try {
+            byte[] actual = new byte[(int) file.length()];
+            file.readFully(actual);
+            assertArrayEquals(expected, actual);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] random(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 最多重试指定次数的重试策略
+     */
+    private static class CountingRetryPolicy implements RetryPolicy {
+        private final int mMaxRetries;
+        private int mRetryCount;
+
+        CountingRetryPolicy(int maxRetries) {
+            mMaxRetries = maxRetries;
+        }
+
+        @Override
+        public int getCurrentTimeout() {
+            return 1000;
+        }
+
+        @Override
+        public int getCurrentRetryCount() {
+            return mRetryCount;
+        }
+
+        @Override
+        public void retry(VolleyError error) throws VolleyError {
+            if (++mRetryCount > mMaxRetries) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * 模拟一个支持Range/If-Range的文件服务器,记录每次请求的额外头部
+     */
+    private static class FakeServer extends BaseHttpStack {
+        private final byte[] mContent;
+        private final String mETag;
+        private final String mLastModified;
+
+        final List<Map<String, String>> requests = new ArrayList<>();
+
+        /**
+         * 第一次响应只发送这么多字节就断开,-1表示不断开
+         */
+        int cutAt = -1;
+
+        boolean supportsRange = true;
+
+        /**
+         * 206响应的起始位置比请求的多出的字节数,模拟有问题的服务端或者代理
+         */
+        int rangeSkew = 0;
+
+        /**
+         * 第一次响应之后文件被替换成这个版本
+         */
+        FakeServer next;
+
+        FakeServer(byte[] content, String eTag, String lastModified) {
+            mContent = content;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) {
+            requests.add(additionalHeaders);
+            FakeServer current = requests.size() > 1 && next != null ? next : this;
+            String range = additionalHeaders.get("Range");
+            String ifRange = additionalHeaders.get("If-Range");
+            boolean partial = range != null && supportsRange
+                    && ifRange != null && (ifRange.equals(current.mETag) || ifRange.equals(current.mLastModified));
+
+            List<Header> headers = new ArrayList<>();
+            if (current.mETag != null) {
+                headers.add(new Header("ETag", current.mETag));
+            }
+            if (current.mLastModified != null) {
+                headers.add(new Header("Last-Modified", current.mLastModified));
+            }
+            byte[] content = current.mContent;
+            int start = 0;
+            int statusCode = 200;
+            if (partial) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1)) + rangeSkew;
+                statusCode = 206;
+                headers.add(new Header("Content-Range",
+                        "bytes " + start + "-" + (content.length - 1) + "/" + content.length));
+            }
+            //第一次响应声明完整的长度,但只发送一部分就断开
+            int end = requests.size() == 1 && cutAt >= 0 ? cutAt : content.length;
+            return new HttpResponse(statusCode, headers, content.length - start,
+                    new ByteArrayInputStream(Arrays.copyOfRange(content, start, end)));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import volley.android.com.RequestBody;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link FormUrlEncoder}的三种输出与原来逐个用{@link URLEncoder}编码再拼接的结果逐字节相同:
+ * 随机的参数表,覆盖保留字符、非ASCII字符、增补平面字符和落单的代理项,以及多种字符集
+ */
+public class FormUrlEncoderTest {
+
+    private static final String[] CHARSETS = {"UTF-8", "ISO-8859-1", "GBK", "Shift_JIS", "US-ASCII"};
+
+    /**
+     * 需要转义和不需要转义的ASCII字符、汉字、拉丁字母和只在部分字符集中存在的字符
+     */
+    private static final String CHARS = "abcXYZ019 .-*_~&=+%/?#中文éü€";
+
+    @Test
+    public void randomParams_matchUrlEncoderInEveryCharset() throws IOException {
+        Random random = new Random(7);
+        for (String charset : CHARSETS) {
+            for (int i = 0; i < 500; i++) {
+                Map<String, String> params = params(random, 1 + random.nextInt(5), random.nextInt(40));
+                assertEquivalent(params, charset);
+            }
+        }
+    }
+
+    @Test
+    public void emptyParamsAndEmptyValues_matchUrlEncoder() throws IOException {
+        assertEquivalent(new LinkedHashMap<String, String>(), "UTF-8");
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("", "");
+        params.put("a", "");
+        params.put("", "b");
+        assertEquivalent(params, "UTF-8");
+    }
+
+    @Test
+    public void longValues_crossTheStreamBufferManyTimes() throws IOException {
+        Map<String, String> params = params(new Random(11), 3, 100000);
+        for (String charset : new String[] {"UTF-8", "GBK"}) {
+            assertEquivalent(params, charset);
+        }
+    }
+
+    @Test
+    public void unpairedSurrogates_matchUrlEncoder() throws IOException {
+        //落单的高代理项在末尾、落单的低代理项在开头、高代理项后面不是低代理项、顺序颠倒的代理对
+        String[] values = {"a\uD83D", "\uDE00a", "\uD83Dx\uDE00", "\uDE00\uD83D", "\uD83D\uD83D\uDE00"};
+        for (String charset : new String[] {"UTF-8", "GBK"}) {
+            for (String value : values) {
+                Map<String, String> params = new LinkedHashMap<>();
+                params.put("k" + value, value);
+                assertEquivalent(params, charset);
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unsupportedCharset_throws() {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("a", "b");
+        FormUrlEncoder.encode(params, "no-such-charset");
+    }
+
+    private static void assertEquivalent(Map<String, String> params, String charset) throws IOException {
+        byte[] expected = urlEncoder(params, charset);
+        String message = charset + " " + params;
+        assertArrayEquals(message, expected, FormUrlEncoder.encode(params, charset));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FormUrlEncoder.writeTo(params, charset, out);
+        assertArrayEquals(message, expected, out.toByteArray());
+
+        RequestBody body = FormUrlEncoder.createBody(params, charset);
+        assertEquals(message, expected.length, body.contentLength());
+        out.reset();
+        body.writeTo(out);
+        assertArrayEquals(message, expected, out.toByteArray());
+    }
+
+    /**
+     * 原来{@link volley.android.com.Request#getBody()}的编码方式
+     */
+    private static byte[] urlEncoder(Map<String, String> params, String charset) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            sb.append(URLEncoder.encode(entry.getKey(), charset))
+                    .append('=')
+                    .append(URLEncoder.encode(entry.getValue(), charset))
+                    .append('&');
+        }
+        return sb.toString().getBytes(charset);
+    }
+
+    private static Map<String, String> params(Random random, int count, int valueLength) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            params.put("k" + i + randomString(random, 3), randomString(random, valueLength));
+        }
+        return params;
+    }
+
+    /**
+     * 生成随机字符串,大约每12个字符中有一个增补平面字符(代理对)、一个落单的高代理项和一个落单的低代理项
+     */
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(12);
+            if (kind < 9) {
+                sb.append(CHARS.charAt(random.nextInt(CHARS.length())));
+            } else if (kind == 9) {
+                sb.appendCodePoint(0x1F600 + random.nextInt(50));
+            } else if (kind == 10) {
+                sb.append((char) (0xD800 + random.nextInt(0x400)));
+            } else {
+                sb.append((char) (0xDC00 + random.nextInt(0x400)));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,279 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import volley.android.com.AuthFailureError;
+import volley.android.com.NetworkResponse;
+import volley.android.com.Request;
+import volley.android.com.RequestBody;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HurlStack}通过{@link BaseHttpStack#addBodyIfExists(HttpURLConnection, Request)}发送正文:
+ * 长度已知时用固定长度模式,未知时用chunked模式,写到连接上的字节与正文相同
+ */
+public class HurlStackTest {
+
+    private static final String URL = "http://example.com/upload";
+
+    @Test
+    public void knownLength_usesFixedLengthMode() throws Exception {
+        byte[] data = random(10000);
+        FakeConnection connection = new FakeConnection(200);
+        TestRequest request = new TestRequest(Request.Method.POST, RequestBody.create(data));
+        new FakeHurlStack(connection).executeRequest(request, Collections.<String, String>emptyMap());
+
+        assertEquals("POST", connection.getRequestMethod());
+        assertTrue(connection.getDoOutput());
+        assertEquals(data.length, connection.fixedLength());
+        assertEquals(-1, connection.chunkLength());
+        assertArrayEquals(data, connection.written.toByteArray());
+        assertTrue(connection.outputClosed);
+        assertEquals(request.getBodyContentType(), connection.getRequestProperty("Content-Type"));
+    }
+
+    @Test
+    public void unknownLength_usesChunkedMode() throws Exception {
+        final byte[] data = random(10000);
+        RequestBody body = new RequestBody() {
+            @Override
+            public long contentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                //分几次写出,模拟边编码边发送
+                for (int i = 0; i < data.length; i += 3000) {
+                    out.write(data, i, Math.min(3000, data.length - i));
+                }
+            }
+        };
+        FakeConnection connection = new FakeConnection(200);
+        new FakeHurlStack(connection).executeRequest(new TestRequest(Request.Method.PUT, body),
+                Collections.<String, String>emptyMap());
+
+        assertEquals("PUT", connection.getRequestMethod());
+        assertEquals(-1, connection.fixedLength());
+        assertTrue(connection.chunkLength() >= 0);
+        assertArrayEquals(data, connection.written.toByteArray());
+    }
+
+    @Test
+    public void deprecatedGetOrPost_sendsPostBodyWithFixedLength() throws Exception {
+        final byte[] data = "a=1&b=2".getBytes("UTF-8");
+        TestRequest request = new TestRequest(Request.Method.DEPRECATED_GET_OR_POST, null) {
+            @Override
+            public byte[] getPostBody() {
+                return data;
+            }
+        };
+        FakeConnection connection = new FakeConnection(200);
+        new FakeHurlStack(connection).executeRequest(request, Collections.<String, String>emptyMap());
+
+        assertEquals("POST", connection.getRequestMethod());
+        assertEquals(data.length, connection.fixedLength());
+        assertArrayEquals(data, connection.written.toByteArray());
+    }
+
+    @Test
+    public void requestWithoutBody_doesNotOpenOutput() throws Exception {
+        FakeConnection connection = new FakeConnection(200);
+        new FakeHurlStack(connection).executeRequest(new TestRequest(Request.Method.POST, null),
+                Collections.<String, String>emptyMap());
+
+        assertFalse(connection.getDoOutput());
+        assertEquals(-1, connection.fixedLength());
+        assertEquals(-1, connection.chunkLength());
+        assertEquals(0, connection.written.size());
+    }
+
+    @Test
+    public void response_returnsStatusHeadersAndContent() throws Exception {
+        byte[] content = random(100);
+        FakeConnection connection = new FakeConnection(200);
+        connection.content = content;
+        connection.headers.put(null, Collections.singletonList("HTTP/1.1 200 OK"));
+        connection.headers.put("ETag", Collections.singletonList("abc"));
+        connection.headers.put("Set-Cookie", Arrays.asList("a=1", "b=2"));
+        Map<String, String> additionalHeaders = new LinkedHashMap<>();
+        additionalHeaders.put("If-None-Match", "old");
+
+        HttpResponse response = new FakeHurlStack(connection)
+                .executeRequest(new TestRequest(Request.Method.GET, null), additionalHeaders);
+
+        assertEquals("old", connection.getRequestProperty("If-None-Match"));
+        assertEquals(200, response.getStatusCode());
+        //状态行(键为null)不算头部,多值的头部拆成多个
+        List<Header> headers = response.getHeaders();
+        assertEquals(3, headers.size());
+        assertHeader("ETag", "abc", headers.get(0));
+        assertHeader("Set-Cookie", "a=1", headers.get(1));
+        assertHeader("Set-Cookie", "b=2", headers.get(2));
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        InputStream in = response.getContent();
+        int b;
+        while ((b = in.read()) != -1) {
+            read.write(b);
+        }
+        assertArrayEquals(content, read.toByteArray());
+        //读完关闭正文时才断开连接
+        assertFalse(connection.disconnected);
+        in.close();
+        assertTrue(connection.disconnected);
+    }
+
+    @Test
+    public void notModified_hasNoContentAndDisconnects() throws Exception {
+        FakeConnection connection = new FakeConnection(304);
+        HttpResponse response = new FakeHurlStack(connection)
+                .executeRequest(new TestRequest(Request.Method.GET, null), Collections.<String, String>emptyMap());
+
+        assertEquals(304, response.getStatusCode());
+        assertNull(response.getContent());
+        assertTrue(connection.disconnected);
+    }
+
+    private static void assertHeader(String name, String value, Header header) {
+        assertEquals(name, header.getName());
+        assertEquals(value, header.getValue());
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 总是返回同一个假连接的{@link HurlStack}
+     */
+    private static class FakeHurlStack extends HurlStack {
+        private final HttpURLConnection mConnection;
+
+        FakeHurlStack(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        protected HttpURLConnection createConnection(URL url) {
+            return mConnection;
+        }
+    }
+
+    /**
+     * 记录流模式和写出字节的假连接,不会真的连网
+     */
+    private static class FakeConnection extends HttpURLConnection {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final Map<String, List<String>> headers = new LinkedHashMap<>();
+        final int code;
+        byte[] content = new byte[0];
+        boolean outputClosed;
+        boolean disconnected;
+
+        FakeConnection(int code) throws IOException {
+            super(new URL(URL));
+            this.code = code;
+        }
+
+        long fixedLength() {
+            return fixedContentLengthLong != -1 ? fixedContentLengthLong : fixedContentLength;
+        }
+
+        int chunkLength() {
+            return chunkLength;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) {
+                    written.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    written.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    outputClosed = true;
+                }
+            };
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return headers;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    /**
+     * 正文由构造函数指定的请求
+     */
+    private static class TestRequest extends Request<byte[]> {
+        private final RequestBody mBody;
+
+        TestRequest(int method, RequestBody body) {
+            super(method, URL, null);
+            mBody = body;
+        }
+
+        @Override
+        public RequestBody getRequestBody() throws AuthFailureError {
+            return mBody;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+        }
+    }
+}
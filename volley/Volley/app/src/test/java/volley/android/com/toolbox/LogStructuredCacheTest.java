@@ -0,0 +1,26 @@
+package volley.android.com.toolbox;
+
+import java.io.File;
+
+import volley.android.com.Cache;
+
+/**
+ * 在{@link LogStructuredCache}上运行{@link CacheContractTest}
+ */
+public class LogStructuredCacheTest extends CacheContractTest {
+
+    /**
+     * 段文件取得比较小,让约定测试中的写入跨越多个段并触发压缩
+     */
+    private static final int SEGMENT_SIZE = 32 * 1024;
+
+    @Override
+    protected Cache createCache(File root, int maxSizeInBytes) {
+        return new LogStructuredCache(root, maxSizeInBytes, SEGMENT_SIZE);
+    }
+
+    @Override
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+        ((LogStructuredCache) cache).awaitCompaction();
+    }
+}
@@ -0,0 +1,229 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在包装了{@link DiskBasedCache}的{@link OffHeapCache}上运行{@link CacheContractTest},
+ * 再检查堆外层自己的提升、淘汰和作废
+ */
+public class OffHeapCacheTest extends CacheContractTest {
+
+    /**
+     * 堆外层的容量,比约定测试中的磁盘缓存小,约定测试也会经过堆外层的淘汰
+     */
+    private static final int OFF_HEAP_SIZE = 64 * 1024;
+
+    /**
+     * 与堆外层的页大小相同
+     */
+    private static final int PAGE_SIZE = 4 * 1024;
+
+    private final Map<Cache, DiskBasedCache> mDiskCaches = new IdentityHashMap<>();
+
+    @Override
+    protected Cache createCache(File root, int maxSizeInBytes) {
+        DiskBasedCache diskCache = new DiskBasedCache(root, maxSizeInBytes);
+        OffHeapCache cache = new OffHeapCache(diskCache, OFF_HEAP_SIZE);
+        mDiskCaches.put(cache, diskCache);
+        return cache;
+    }
+
+    @Override
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+        mDiskCaches.get(cache).awaitMaintenance();
+    }
+
+    @Test
+    public void get_promotesAndServesFromOffHeap() {
+        OffHeapCache cache = (OffHeapCache) mCache;
+        //空正文、正好一页、跨页和不满一页的正文
+        int[] lengths = {0, 1, PAGE_SIZE - 1, PAGE_SIZE, PAGE_SIZE + 1, 3 * PAGE_SIZE + 17};
+        for (int i = 0; i < lengths.length; i++) {
+            cache.put("key" + i, newEntry(lengths[i], i));
+        }
+
+        for (int i = 0; i < lengths.length; i++) {
+            Cache.Entry fromDisk = cache.get("key" + i);
+            long hits = cache.getHitCount();
+            Cache.Entry fromOffHeap = cache.get("key" + i);
+            assertEquals(hits + 1, cache.getHitCount());
+            assertEntryEquals(fromDisk, fromOffHeap, true);
+            assertArrayEquals(newEntry(lengths[i], i).data, fromOffHeap.data);
+        }
+    }
+
+    @Test
+    public void getMetadata_fromOffHeap_hasNoBody() {
+        OffHeapCache cache = (OffHeapCache) mCache;
+        Cache.Entry entry = newEntry(2 * PAGE_SIZE, 1);
+        cache.put("key", entry);
+        cache.get("key");
+
+        Cache.Entry metadata = cache.getMetadata("key");
+        assertNull(metadata.data);
+        assertEntryEquals(entry, metadata, false);
+    }
+
+    @Test
+    public void offHeapTier_staysWithinBudgetInLruOrder() {
+        OffHeapCache cache = (OffHeapCache) mCache;
+        int count = OFF_HEAP_SIZE / (2 * PAGE_SIZE) + 4;
+        for (int i = 0; i < count; i++) {
+            cache.put("key" + i, newEntry(2 * PAGE_SIZE, i));
+            cache.get("key" + i);
+            assertTrue(cache.getSizeInBytes() <= OFF_HEAP_SIZE);
+        }
+
+        //最早提升的已经被挤出堆外层,从磁盘读出并重新提升;最近提升的直接命中
+        long misses = cache.getMissCount();
+        assertArrayEquals(newEntry(2 * PAGE_SIZE, 0).data, cache.get("key0").data);
+        assertEquals(misses + 1, cache.getMissCount());
+        long hits = cache.getHitCount();
+        assertArrayEquals(newEntry(2 * PAGE_SIZE, count - 1).data, cache.get("key" + (count - 1)).data);
+        assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void bodyLargerThanOffHeapTier_isServedFromDisk() {
+        OffHeapCache cache = (OffHeapCache) mCache;
+        Cache.Entry entry = newEntry(OFF_HEAP_SIZE + 1, 1);
+        cache.put("key", entry);
+        cache.get("key");
+
+        assertEquals(0, cache.getSizeInBytes());
+        assertArrayEquals(entry.data, cache.get("key").data);
+    }
+
+    @Test
+    public void writes_dropStaleOffHeapCopies() {
+        OffHeapCache cache = (OffHeapCache) mCache;
+        cache.put("key", newEntry(PAGE_SIZE, 1));
+        cache.get("key");
+
+        Cache.Entry replacement = newEntry(3 * PAGE_SIZE, 2);
+        cache.put("key", replacement);
+        assertArrayEquals(replacement.data, cache.get("key").data);
+
+        cache.invalidate("key", false);
+        assertTrue(cache.get("key").refreshNeeded());
+
+        cache.remove("key");
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void writesDuringDiskRead_areNotUndoneByPromotion() throws Exception {
+        PausingDiskCache diskCache = new PausingDiskCache(mFolder.newFolder("paused"), MAX_SIZE);
+        final OffHeapCache cache = new OffHeapCache(diskCache, OFF_HEAP_SIZE);
+        cache.initialize();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            //读磁盘和提升之间被替换:之后读到的必须是新的正文
+            cache.put("key", newEntry(PAGE_SIZE, 1));
+            Future<Cache.Entry> read = getPaused(executor, cache, diskCache, "key");
+            Cache.Entry replacement = newEntry(2 * PAGE_SIZE, 2);
+            cache.put("key", replacement);
+            diskCache.resume();
+            assertArrayEquals(newEntry(PAGE_SIZE, 1).data, read.get(5, TimeUnit.SECONDS).data);
+            assertArrayEquals(replacement.data, cache.get("key").data);
+            assertArrayEquals(replacement.data, cache.get("key").data);
+
+            //读磁盘和提升之间被删除:之后不能再从堆外层读到它.重新写入让下一次get从磁盘读
+            cache.put("key", newEntry(PAGE_SIZE, 3));
+            read = getPaused(executor, cache, diskCache, "key");
+            cache.remove("key");
+            diskCache.resume();
+            assertNotNull(read.get(5, TimeUnit.SECONDS));
+            assertNull(cache.get("key"));
+            assertNull(cache.getMetadata("key"));
+            assertEquals(0, cache.getSizeInBytes());
+
+            //读磁盘和提升之间被作废:堆外层中的元数据也必须是作废之后的
+            cache.put("key", newEntry(PAGE_SIZE, 4));
+            read = getPaused(executor, cache, diskCache, "key");
+            cache.invalidate("key", false);
+            diskCache.resume();
+            read.get(5, TimeUnit.SECONDS);
+            assertTrue(cache.getMetadata("key").refreshNeeded());
+            assertTrue(cache.get("key").refreshNeeded());
+        } finally {
+            diskCache.resume();
+            executor.shutdown();
+            diskCache.awaitMaintenance();
+        }
+    }
+
+    /**
+     * 在另一个线程中调用get,等它从磁盘读完、还没有提升时返回
+     */
+    private static Future<Cache.Entry> getPaused(ExecutorService executor, final OffHeapCache cache,
+                                                 PausingDiskCache diskCache, final String key)
+            throws InterruptedException {
+        diskCache.pauseNextGet();
+        Future<Cache.Entry> future = executor.submit(new Callable<Cache.Entry>() {
+            @Override
+            public Cache.Entry call() {
+                return cache.get(key);
+            }
+        });
+        assertTrue(diskCache.awaitPaused());
+        return future;
+    }
+
+    /**
+     * 下一次get从磁盘读完之后停住,直到{@link #resume()}
+     */
+    private static class PausingDiskCache extends DiskBasedCache {
+        private volatile CountDownLatch mPaused;
+        private volatile CountDownLatch mResume;
+
+        PausingDiskCache(File root, int maxCacheSizeInBytes) {
+            super(root, maxCacheSizeInBytes);
+        }
+
+        void pauseNextGet() {
+            mPaused = new CountDownLatch(1);
+            mResume = new CountDownLatch(1);
+        }
+
+        boolean awaitPaused() throws InterruptedException {
+            return mPaused.await(5, TimeUnit.SECONDS);
+        }
+
+        void resume() {
+            if (mResume != null) {
+                mResume.countDown();
+            }
+        }
+
+        @Override
+        public Entry get(String key) {
+            Entry entry = super.get(key);
+            CountDownLatch paused = mPaused;
+            if (paused != null && paused.getCount() > 0) {
+                paused.countDown();
+                try {
+                    mResume.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在两个{@link DiskBasedCache}分区组成的{@link PartitionedCache}上运行{@link CacheContractTest},
+ * 再检查分区的路由顺序和每个分区的统计
+ */
+public class PartitionedCacheTest extends CacheContractTest {
+
+    @Override
+    protected Cache createCache(File root, int maxSizeInBytes) {
+        //约定测试中以key1开头的缓存键落在另一个分区,两个分区的容量加起来等于约定的容量
+        return new PartitionedCache("api", new DiskBasedCache(new File(root, "api"), maxSizeInBytes / 2))
+                .addPartition("media", root, maxSizeInBytes / 2, new LruEvictionPolicy())
+                .addPrefixRule("key1", "media");
+    }
+
+    @Override
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+        PartitionedCache partitioned = (PartitionedCache) cache;
+        ((DiskBasedCache) partitioned.getPartition("api")).awaitMaintenance();
+        ((DiskBasedCache) partitioned.getPartition("media")).awaitMaintenance();
+    }
+
+    @Test
+    public void route_explicitPartitionThenRouterThenPrefixRulesThenDefault() throws Exception {
+        PartitionedCache cache = new PartitionedCache("api", newPartition("api"))
+                .addPartition("media", newPartition("media"))
+                .addPartition("image", newPartition("image"))
+                .addPrefixRule("http://cdn.com/img/", "image")
+                .addPrefixRule("http://cdn.com/", "media")
+                .setRouter(new PartitionedCache.Router() {
+                    @Override
+                    public String route(String key) {
+                        if (key.endsWith(".mp4")) {
+                            return "media";
+                        }
+                        //不存在的分区交给前缀规则
+                        return key.endsWith(".gif") ? "nope" : null;
+                    }
+                });
+        cache.initialize();
+
+        assertRoutedTo(cache, "api", "http://api.com/user");
+        //前缀规则按添加顺序匹配第一个
+        assertRoutedTo(cache, "image", "http://cdn.com/img/a.png");
+        assertRoutedTo(cache, "media", "http://cdn.com/css/a.css");
+        //路由规则优先于前缀规则,返回不存在的分区时继续匹配
+        assertRoutedTo(cache, "media", "http://cdn.com/img/a.mp4");
+        assertRoutedTo(cache, "image", "http://cdn.com/img/a.gif");
+        //请求指定的分区优先于一切规则
+        assertRoutedTo(cache, "api", PartitionedCache.partitionKey("api", "http://cdn.com/img/a.mp4"));
+        //不存在的分区按普通缓存键处理:带着分区前缀匹配不上URL前缀规则,落到默认分区
+        assertRoutedTo(cache, "api", PartitionedCache.partitionKey("nope", "http://cdn.com/a.js"));
+        assertRoutedTo(cache, "media", PartitionedCache.partitionKey("nope", "http://cdn.com/a.mp4"));
+
+        awaitPartitions(cache, "api", "media", "image");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addPrefixRule_unknownPartition_throws() {
+        new PartitionedCache("api", new LogStructuredCache(mRoot, MAX_SIZE)).addPrefixRule("http://", "media");
+    }
+
+    @Test
+    public void getStats_countsHitsAndMissesPerPartition() throws Exception {
+        PartitionedCache cache = new PartitionedCache("api", newPartition("api"))
+                .addPartition("log", new LogStructuredCache(mFolder.newFolder("log"), MAX_SIZE))
+                .addPrefixRule("log/", "log");
+        cache.initialize();
+        cache.put("fresh", newEntry(1000, 1));
+        cache.put("expired", newEntry(-7200000, 2, new byte[1000]));
+        cache.put("log/a", newEntry(1000, 3));
+
+        assertNotNull(cache.getMetadata("fresh"));
+        assertNotNull(cache.getMetadata("fresh"));
+        //完全过期的缓存项算作未命中
+        assertTrue(cache.getMetadata("expired").isExpired());
+        assertNull(cache.getMetadata("missing"));
+        assertNotNull(cache.getMetadata("log/a"));
+        //get不参与统计
+        cache.get("fresh");
+        cache.get("log/missing");
+
+        List<PartitionedCache.PartitionStats> stats = cache.getStats();
+        assertEquals(2, stats.size());
+        PartitionedCache.PartitionStats api = stats.get(0);
+        assertEquals("api", api.name);
+        assertEquals(2, api.hitCount);
+        assertEquals(2, api.missCount);
+        assertEquals(0.5, api.hitRate(), 0);
+        DiskBasedCache apiCache = (DiskBasedCache) cache.getPartition("api");
+        assertEquals(apiCache.getTotalSize(), api.sizeInBytes);
+        assertTrue(api.sizeInBytes > 2000);
+        assertEquals(MAX_SIZE, api.maxSizeInBytes);
+
+        //不是DiskBasedCache的分区没有空间统计
+        PartitionedCache.PartitionStats log = stats.get(1);
+        assertEquals("log", log.name);
+        assertEquals(1, log.hitCount);
+        assertEquals(0, log.missCount);
+        assertEquals(-1, log.sizeInBytes);
+        assertEquals(-1, log.maxSizeInBytes);
+
+        apiCache.awaitMaintenance();
+    }
+
+    @Test
+    public void writesToOnePartition_doNotEvictAnother() throws Exception {
+        PartitionedCache cache = new PartitionedCache("api", newPartition("api"))
+                .addPartition("media", newPartition("media"))
+                .addPrefixRule("media/", "media");
+        cache.initialize();
+        cache.put("api/config", newEntry(8 * 1024, 1));
+
+        //媒体文件写入四倍于分区容量,只在媒体分区内淘汰
+        for (int i = 0; i < 4 * MAX_SIZE / (8 * 1024); i++) {
+            cache.put("media/" + i, newEntry(8 * 1024, i));
+        }
+        awaitPartitions(cache, "api", "media");
+        assertArrayEquals(newEntry(8 * 1024, 1).data, cache.get("api/config").data);
+        assertTrue(((DiskBasedCache) cache.getPartition("media")).getTotalSize() <= MAX_SIZE);
+        assertNull(cache.get("media/0"));
+    }
+
+    @Test
+    public void removeAndClear_reachEveryPartition() throws Exception {
+        PartitionedCache cache = new PartitionedCache("api", newPartition("api"))
+                .addPartition("media", newPartition("media"))
+                .addPrefixRule("media/", "media");
+        cache.initialize();
+        cache.put("api/a", newEntry(100, 1));
+        cache.put("media/a", newEntry(100, 2));
+        cache.put("media/b", newEntry(100, 3));
+
+        cache.remove("media/a");
+        assertNull(cache.getPartition("media").get("media/a"));
+        cache.invalidate("media/b", true);
+        assertTrue(cache.getPartition("media").get("media/b").isExpired());
+
+        cache.clear();
+        assertNull(cache.getPartition("api").get("api/a"));
+        assertNull(cache.getPartition("media").get("media/b"));
+        awaitPartitions(cache, "api", "media");
+    }
+
+    private DiskBasedCache newPartition(String name) throws Exception {
+        return new DiskBasedCache(mFolder.newFolder(name), MAX_SIZE);
+    }
+
+    /**
+     * 写入一个缓存项,确认它只出现在指定的分区中
+     */
+    private static void assertRoutedTo(PartitionedCache cache, String partition, String key) {
+        cache.put(key, newEntry(100, key.hashCode()));
+        for (PartitionedCache.PartitionStats stats : cache.getStats()) {
+            Cache.Entry entry = cache.getPartition(stats.name).get(key);
+            if (stats.name.equals(partition)) {
+                assertNotNull(key + " not in " + partition, entry);
+            } else {
+                assertNull(key + " also in " + stats.name, entry);
+            }
+        }
+        assertNotNull(cache.get(key));
+    }
+
+    private static void awaitPartitions(PartitionedCache cache, String... names) throws Exception {
+        for (String name : names) {
+            ((DiskBasedCache) cache.getPartition(name)).awaitMaintenance();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package volley.android.com.toolbox;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import volley.android.com.Cache;
+import volley.android.com.NetworkResponse;
+import volley.android.com.Request;
+import volley.android.com.ResponseBody;
+import volley.android.com.RetryPolicy;
+import volley.android.com.VolleyError;
+
+import static org.junit.Assert.*;
+
+/**
+ * 响应正文落地:{@link BasicNetwork}超过阈值时把正文写到临时文件,同时算好校验和与内容哈希,出错时不留下临时文件;
+ * {@link ResponseBody#moveTo(File)}转移文件的所有权.
+ * 落地的正文写入缓存时,{@link DiskBasedCache}以及包装它的{@link PartitionedCache}、{@link OffHeapCache}、
+ * {@link WriteBehindCache}直接把文件移进缓存目录;被包装的缓存不支持时读回内存,请求结束删除临时文件之后仍然能读到
+ */
+public class SpooledBodyTest {
+
+    private static final int MAX_SIZE = 4 * 1024 * 1024;
+
+    private static final int BODY_SIZE = 64 * 1024;
+
+    private static final int SPOOL_THRESHOLD = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void diskBasedCache_movesSpooledFile() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mFolder.newFolder("cache"), MAX_SIZE);
+        cache.initialize();
+        assertMovedIntoCache(cache);
+        cache.awaitMaintenance();
+    }
+
+    @Test
+    public void partitionedCache_forwardsSpooledBodyToPartition() throws Exception {
+        DiskBasedCache api = new DiskBasedCache(mFolder.newFolder("api"), MAX_SIZE);
+        DiskBasedCache media = new DiskBasedCache(mFolder.newFolder("media"), MAX_SIZE);
+        PartitionedCache cache = new PartitionedCache("api", api)
+                .addPartition("media", media)
+                .addPrefixRule("http://example.com/media/", "media");
+        cache.initialize();
+        assertMovedIntoCache(cache);
+        assertNotNull(media.getMetadata("http://example.com/media/key"));
+        assertNull(api.getMetadata("http://example.com/media/key"));
+        api.awaitMaintenance();
+        media.awaitMaintenance();
+    }
+
+    @Test
+    public void offHeapCache_forwardsSpooledBodyToDiskCache() throws Exception {
+        DiskBasedCache diskCache = new DiskBasedCache(mFolder.newFolder("cache"), MAX_SIZE);
+        OffHeapCache cache = new OffHeapCache(diskCache, 256 * 1024);
+        cache.initialize();
+        assertMovedIntoCache(cache);
+        diskCache.awaitMaintenance();
+    }
+
+    @Test
+    public void writeBehindCache_writesSpooledBodySynchronously() throws Exception {
+        DiskBasedCache diskCache = new DiskBasedCache(mFolder.newFolder("cache"), MAX_SIZE);
+        WriteBehindCache cache = new WriteBehindCache(diskCache);
+        cache.initialize();
+        //put返回时文件已经移走,不会等写线程排到它时临时文件已经被删掉
+        assertMovedIntoCache(cache);
+        cache.quit();
+        diskCache.awaitMaintenance();
+    }
+
+    @Test
+    public void writeBehindCache_overByteArrayCache_readsBodyBackBeforeQueueing() throws Exception {
+        LogStructuredCache logCache = new LogStructuredCache(mFolder.newFolder("log"), MAX_SIZE);
+        WriteBehindCache cache = new WriteBehindCache(logCache);
+        cache.initialize();
+        byte[] data = random(BODY_SIZE, 1);
+        ResponseBody body = spool(data);
+        File spooled = body.getFile();
+        cache.put("key", newSpooledEntry(body));
+
+        //请求结束,临时文件被删除之后写线程才落盘
+        body.release();
+        assertFalse(spooled.exists());
+        cache.flush();
+        assertArrayEquals(data, logCache.get("key").data);
+        cache.quit();
+    }
+
+    @Test
+    public void network_bodiesOverThreshold_areSpooledWithChecksumAndHash() throws Exception {
+        File spoolDir = mFolder.newFolder("spool");
+        byte[] data = random(BODY_SIZE, 3);
+        //长度已知时直接落地;长度未知时先读进内存,超过阈值时把读出的部分连同剩下的一起写进文件
+        for (int contentLength : new int[] {data.length, -1}) {
+            NetworkResponse response = spoolingNetwork(spoolDir, data, contentLength)
+                    .performRequest(new SpoolingRequest(true));
+            assertNull(response.data);
+            ResponseBody body = response.body;
+            assertTrue(body.isSpooled());
+            assertEquals(spoolDir, body.getFile().getParentFile());
+            assertEquals(data.length, body.length());
+            assertArrayEquals(data, body.toByteArray());
+            assertEquals(DiskBasedCache.checksum(data), body.getChecksum());
+            assertEquals(DiskBasedCache.toHex(MessageDigest.getInstance("SHA-1").digest(data)),
+                    body.getContentHash());
+            body.release();
+            assertEquals(0, spoolDir.list().length);
+        }
+    }
+
+    @Test
+    public void network_smallBodiesAndRequestsNotOptingIn_stayInMemory() throws Exception {
+        File spoolDir = mFolder.newFolder("spool");
+        byte[] small = random(SPOOL_THRESHOLD, 4);
+        for (int contentLength : new int[] {small.length, -1}) {
+            NetworkResponse response = spoolingNetwork(spoolDir, small, contentLength)
+                    .performRequest(new SpoolingRequest(true));
+            assertArrayEquals(small, response.data);
+            assertNull(response.body);
+        }
+
+        byte[] large = random(BODY_SIZE, 5);
+        NetworkResponse response = spoolingNetwork(spoolDir, large, large.length)
+                .performRequest(new SpoolingRequest(false));
+        assertArrayEquals(large, response.data);
+        assertNull(response.body);
+        assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test
+    public void network_failedRead_deletesPartialSpoolFile() throws Exception {
+        File spoolDir = mFolder.newFolder("spool");
+        byte[] data = random(BODY_SIZE, 6);
+        BasicNetwork network = new BasicNetwork(new FakeStack(data, -1, SPOOL_THRESHOLD * 2));
+        network.setResponseSpooling(spoolDir, SPOOL_THRESHOLD);
+        SpoolingRequest request = new SpoolingRequest(true);
+        //不重试,一次失败就结束
+        request.setRetryPolicy(new RetryPolicy() {
+            @Override
+            public int getCurrentTimeout() {
+                return 1000;
+            }
+
+            @Override
+            public int getCurrentRetryCount() {
+                return 0;
+            }
+
+            @Override
+            public void retry(VolleyError error) throws VolleyError {
+                throw error;
+            }
+        });
+        try {
+            network.performRequest(request);
+            fail("read failure should surface as an error");
+        } catch (VolleyError expected) {
+        }
+        assertEquals(0, spoolDir.list().length);
+    }
+
+    @Test
+    public void network_spooledBody_isMovedIntoDiskCache() throws Exception {
+        File spoolDir = mFolder.newFolder("spool");
+        DiskBasedCache cache = new DiskBasedCache(mFolder.newFolder("cache"), MAX_SIZE);
+        cache.initialize();
+        byte[] data = random(BODY_SIZE, 7);
+        ResponseBody body = spoolingNetwork(spoolDir, data, data.length)
+                .performRequest(new SpoolingRequest(true)).body;
+
+        cache.put("key", newSpooledEntry(body));
+        body.release();
+        assertEquals(0, spoolDir.list().length);
+        assertArrayEquals(data, cache.get("key").data);
+        cache.awaitMaintenance();
+    }
+
+    @Test
+    public void moveTo_transfersOwnershipOnce() throws Exception {
+        byte[] data = random(BODY_SIZE, 8);
+        ResponseBody body = spool(data);
+        File target = new File(mFolder.newFolder("target"), "moved");
+
+        assertTrue(body.moveTo(target));
+        assertEquals(target, body.getFile());
+        assertArrayEquals(data, body.toByteArray());
+        //移走之后的文件归别人所有,释放时不删除,也不能再移动一次
+        assertFalse(body.moveTo(new File(target.getParentFile(), "again")));
+        body.release();
+        body.release();
+        assertTrue(target.exists());
+
+        //内存中的正文和已经释放的正文不能移动
+        assertFalse(ResponseBody.wrap(data).moveTo(new File(target.getParentFile(), "memory")));
+        ResponseBody released = spool(data);
+        File spooled = released.getFile();
+        released.release();
+        assertFalse(spooled.exists());
+        assertFalse(released.moveTo(new File(target.getParentFile(), "released")));
+        try {
+            released.openStream();
+            fail("released body should not be readable");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * 写入一个落地的正文,确认文件被移进了缓存目录,删除临时文件之后仍然能读出正文.
+     * 只有实现了{@link Cache.SpooledBodySupport}的缓存才会从网络线程收到落地的正文
+     */
+    private void assertMovedIntoCache(Cache cache) throws Exception {
+        assertTrue(cache instanceof Cache.SpooledBodySupport);
+        String key = "http://example.com/media/key";
+        byte[] data = random(BODY_SIZE, 2);
+        ResponseBody body = spool(data);
+        File spooled = body.getFile();
+        cache.put(key, newSpooledEntry(body));
+        assertFalse(spooled.exists());
+
+        body.release();
+        Cache.Entry read = cache.get(key);
+        assertNotNull(read);
+        assertArrayEquals(data, read.data);
+    }
+
+    /**
+     * 把正文写到临时文件,并像网络层落地时那样算好校验和与内容哈希
+     */
+    private ResponseBody spool(byte[] data) throws Exception {
+        File file = mFolder.newFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+        String hash = DiskBasedCache.toHex(MessageDigest.getInstance("SHA-1").digest(data));
+        return ResponseBody.spooled(file, data.length, DiskBasedCache.checksum(data), hash);
+    }
+
+    private static BasicNetwork spoolingNetwork(File spoolDir, byte[] data, int contentLength) {
+        BasicNetwork network = new BasicNetwork(new FakeStack(data, contentLength, -1));
+        network.setResponseSpooling(spoolDir, SPOOL_THRESHOLD);
+        return network;
+    }
+
+    private static Cache.Entry newSpooledEntry(ResponseBody body) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.body = body;
+        entry.etag = "etag";
+        entry.ttl = System.currentTimeMillis() + 3600000;
+        entry.softTtl = entry.ttl;
+        entry.allResponseHeaders = new ArrayList<>();
+        return entry;
+    }
+
+    private static byte[] random(int length, int seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 总是返回200和同一个正文的HTTP栈
+     */
+    private static class FakeStack extends BaseHttpStack {
+        private final byte[] mData;
+        private final int mContentLength;
+        private final int mFailAfter;
+
+        /**
+         * @param contentLength 响应声明的正文长度,未知时为-1
+         * @param failAfter 读到这么多字节之后抛出IOException,-1表示不出错
+         */
+        FakeStack(byte[] data, int contentLength, int failAfter) {
+            mData = data;
+            mContentLength = contentLength;
+            mFailAfter = failAfter;
+        }
+
+        @Override
+        public HttpResponse executeRequest(Request<?> request, Map<String, String> additionalHeaders) {
+            InputStream content = new ByteArrayInputStream(mData);
+            if (mFailAfter >= 0) {
+                content = new FailingInputStream(content, mFailAfter);
+            }
+            return new HttpResponse(200, Collections.<Header>emptyList(), mContentLength, content);
+        }
+    }
+
+    /**
+     * 读到指定位置之后抛出IOException,模拟连接中断
+     */
+    private static class FailingInputStream extends FilterInputStream {
+        private int mRemaining;
+
+        FailingInputStream(InputStream in, int failAfter) {
+            super(in);
+            mRemaining = failAfter;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                throw new IOException("connection reset");
+            }
+            int n = super.read(b, off, Math.min(len, mRemaining));
+            if (n > 0) {
+                mRemaining -= n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * 可以选择是否允许正文落地的请求
+     */
+    private static class SpoolingRequest extends Request<byte[]> {
+        private final boolean mSpool;
+
+        SpoolingRequest(boolean spool) {
+            super(Method.GET, "http://example.com/media/key", null);
+            mSpool = spool;
+        }
+
+        @Override
+        public boolean shouldSpoolResponse() {
+            return mSpool;
+        }
+
+        @Override
+        protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(byte[] response) {
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package volley.android.com.toolbox;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link TeeInputStream}:读出的字节同时写进缓存,解析器提前关闭输入流之后网络层仍然能读完正文并释放一次
+ */
+public class TeeInputStreamTest {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    @Test
+    public void drain_afterParserClosesEarly_teesWholeBody() throws IOException {
+        byte[] body = body(10 * BUFFER_SIZE + 7);
+        CountingCloseStream in = new CountingCloseStream(body);
+        ByteArrayPool pool = new ByteArrayPool(4 * BUFFER_SIZE);
+        PoolingByteArrayOutputStream tee = new PoolingByteArrayOutputStream(pool, body.length);
+        TeeInputStream content = new TeeInputStream(in, pool, BUFFER_SIZE, tee);
+
+        //解析器只读了一部分就关闭了输入流,关闭两次也没有影响
+        byte[] head = new byte[100];
+        assertEquals(head.length, content.read(head));
+        content.close();
+        content.close();
+        assertEquals(0, in.closeCount);
+        try {
+            content.read();
+            fail("read after close");
+        } catch (IOException expected) {
+        }
+
+        content.drain();
+        assertArrayEquals(body, tee.toByteArray());
+
+        content.release();
+        content.release();
+        assertEquals(1, in.closeCount);
+        try {
+            content.drain();
+            fail("drain after release");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void reads_mixedSizes_teeEveryByte() throws IOException {
+        byte[] body = body(5 * BUFFER_SIZE + 3);
+        ByteArrayPool pool = new ByteArrayPool(4 * BUFFER_SIZE);
+        PoolingByteArrayOutputStream tee = new PoolingByteArrayOutputStream(pool, body.length);
+        TeeInputStream content = new TeeInputStream(new ByteArrayInputStream(body), pool, BUFFER_SIZE, tee);
+
+        //单字节读取、小块读取、跳过和直接读进调用者数组的大块读取
+        assertEquals(body[0] & 0xff, content.read());
+        byte[] small = new byte[10];
+        assertEquals(small.length, content.read(small));
+        assertEquals(20, content.skip(20));
+        byte[] large = new byte[2 * BUFFER_SIZE];
+        int n;
+        while ((n = content.read(large)) != -1) {
+            assertTrue(n > 0);
+        }
+        assertArrayEquals(body, tee.toByteArray());
+        content.release();
+    }
+
+    private static byte[] body(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 记录被关闭次数的输入流
+     */
+    private static class CountingCloseStream extends ByteArrayInputStream {
+        int closeCount;
+
+        CountingCloseStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeCount++;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package volley.android.com.toolbox;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import volley.android.com.Cache;
+
+import static org.junit.Assert.*;
+
+/**
+ * 在包装了{@link DiskBasedCache}的{@link WriteBehindCache}上运行{@link CacheContractTest},
+ * 再检查异步写入自己的合并、背压、读己之写以及清空和正在落盘的写入之间的顺序
+ */
+public class WriteBehindCacheTest extends CacheContractTest {
+
+    private static final int BODY_SIZE = 4 * 1024;
+
+    private final Map<Cache, DiskBasedCache> mDiskCaches = new IdentityHashMap<>();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @Override
+    protected Cache createCache(File root, int maxSizeInBytes) {
+        DiskBasedCache diskCache = new DiskBasedCache(root, maxSizeInBytes);
+        WriteBehindCache cache = new WriteBehindCache(diskCache);
+        mDiskCaches.put(cache, diskCache);
+        return cache;
+    }
+
+    @Override
+    protected void awaitBackgroundWork(Cache cache) throws Exception {
+        ((WriteBehindCache) cache).flush();
+        mDiskCaches.get(cache).awaitMaintenance();
+    }
+
+    /**
+     * 在父类等待后台工作之前先执行:放行被挡住的写入,让所有写线程写完队列后退出
+     */
+    @After
+    public void quitWriters() {
+        for (Cache cache : mDiskCaches.keySet()) {
+            DiskBasedCache diskCache = mDiskCaches.get(cache);
+            if (diskCache instanceof GatedDiskCache) {
+                ((GatedDiskCache) diskCache).open();
+            }
+            ((WriteBehindCache) cache).quit();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void repeatedWrites_beforeFlush_areCoalesced() throws Exception {
+        GatedDiskCache diskCache = newGatedDiskCache();
+        WriteBehindCache cache = newCache(diskCache, Integer.MAX_VALUE);
+        blockWriter(cache, diskCache);
+
+        //写线程被挡住时同一个键写三次,只有最后一次落盘
+        for (int i = 1; i <= 3; i++) {
+            cache.put("key", newEntry(BODY_SIZE, i));
+        }
+        assertEquals(2, cache.getCoalescedCount());
+        assertEquals(BODY_SIZE, cache.getPendingBytes());
+
+        //写入之后再删除也只落盘一次删除
+        cache.put("removed", newEntry(BODY_SIZE, 4));
+        cache.remove("removed");
+        assertEquals(3, cache.getCoalescedCount());
+        assertEquals(BODY_SIZE, cache.getPendingBytes());
+
+        diskCache.open();
+        cache.flush();
+        assertEquals(0, cache.getPendingBytes());
+        assertEquals(Integer.valueOf(1), diskCache.putCounts.get("key"));
+        assertNull(diskCache.putCounts.get("removed"));
+        assertArrayEquals(newEntry(BODY_SIZE, 3).data, diskCache.get("key").data);
+        assertNull(diskCache.get("removed"));
+    }
+
+    @Test
+    public void pendingBytesOverLimit_blockPutUntilWriterCatchesUp() throws Exception {
+        GatedDiskCache diskCache = newGatedDiskCache();
+        final WriteBehindCache cache = newCache(diskCache, 2 * BODY_SIZE);
+        blockWriter(cache, diskCache);
+
+        //队列正好装满,再写一个必须等写线程落盘腾出空间
+        cache.put("key1", newEntry(BODY_SIZE, 1));
+        cache.put("key2", newEntry(BODY_SIZE, 2));
+        assertEquals(2 * BODY_SIZE, cache.getPendingBytes());
+        Future<?> blocked = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                cache.put("key3", newEntry(BODY_SIZE, 3));
+            }
+        });
+        try {
+            blocked.get(200, TimeUnit.MILLISECONDS);
+            fail("put should block while the queue is full");
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(cache.getPendingBytes() <= 2 * BODY_SIZE);
+
+        diskCache.open();
+        blocked.get(5, TimeUnit.SECONDS);
+        cache.flush();
+        for (int i = 1; i <= 3; i++) {
+            assertArrayEquals(newEntry(BODY_SIZE, i).data, diskCache.get("key" + i).data);
+        }
+    }
+
+    @Test
+    public void reads_seePendingAndInFlightWrites() throws Exception {
+        GatedDiskCache diskCache = newGatedDiskCache();
+        WriteBehindCache cache = newCache(diskCache, Integer.MAX_VALUE);
+        diskCache.put("stale", newEntry(BODY_SIZE, 1));
+        diskCache.put("deleted", newEntry(BODY_SIZE, 2));
+        Cache.Entry inFlight = blockWriter(cache, diskCache);
+
+        //正在落盘的写入
+        assertArrayEquals(inFlight.data, cache.get("blocker").data);
+        assertNull(diskCache.get("blocker"));
+
+        //还在队列中的写入和删除,磁盘上仍然是旧值
+        Cache.Entry fresh = newEntry(BODY_SIZE, 3);
+        cache.put("stale", fresh);
+        cache.remove("deleted");
+        assertEntryEquals(fresh, cache.get("stale"), true);
+        assertNull(cache.get("deleted"));
+        assertNull(cache.getMetadata("deleted"));
+        assertArrayEquals(newEntry(BODY_SIZE, 1).data, diskCache.get("stale").data);
+        assertNotNull(diskCache.get("deleted"));
+
+        //待写的缓存项的元数据和被包装的缓存一样不带正文,作废和更新元数据作用在待写的缓存项上
+        Cache.Entry metadata = cache.getMetadata("stale");
+        assertNull(metadata.data);
+        assertEntryEquals(fresh, metadata, false);
+        assertNotNull(cache.get("stale").data);
+        cache.invalidate("stale", false);
+        assertTrue(cache.get("stale").refreshNeeded());
+
+        diskCache.open();
+        cache.flush();
+        assertTrue(diskCache.get("stale").refreshNeeded());
+        assertArrayEquals(fresh.data, diskCache.get("stale").data);
+        assertNull(diskCache.get("deleted"));
+    }
+
+    @Test
+    public void clear_waitsForInFlightWriteAndDropsQueue() throws Exception {
+        GatedDiskCache diskCache = newGatedDiskCache();
+        final WriteBehindCache cache = newCache(diskCache, Integer.MAX_VALUE);
+        blockWriter(cache, diskCache);
+        cache.put("queued", newEntry(BODY_SIZE, 1));
+
+        //正在落盘时清空:要等这次写入完成,否则写线程会在清空之后把它写回磁盘
+        Future<?> clear = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                cache.clear();
+            }
+        });
+        try {
+            clear.get(200, TimeUnit.MILLISECONDS);
+            fail("clear should wait for the in-flight write");
+        } catch (TimeoutException expected) {
+        }
+
+        diskCache.open();
+        clear.get(5, TimeUnit.SECONDS);
+        cache.flush();
+        assertNull(cache.get("blocker"));
+        assertNull(cache.get("queued"));
+        assertNull(diskCache.get("blocker"));
+        assertNull(diskCache.get("queued"));
+        assertEquals(0, cache.getPendingBytes());
+    }
+
+    @Test
+    public void writesAfterQuit_areSynchronous() throws Exception {
+        GatedDiskCache diskCache = newGatedDiskCache();
+        diskCache.open();
+        WriteBehindCache cache = newCache(diskCache, Integer.MAX_VALUE);
+        cache.quit();
+
+        cache.put("key", newEntry(BODY_SIZE, 1));
+        assertArrayEquals(newEntry(BODY_SIZE, 1).data, diskCache.get("key").data);
+        cache.remove("key");
+        assertNull(diskCache.get("key"));
+        assertEquals(0, cache.getPendingBytes());
+    }
+
+    private GatedDiskCache newGatedDiskCache() throws Exception {
+        return new GatedDiskCache(mFolder.newFolder(), MAX_SIZE);
+    }
+
+    private WriteBehindCache newCache(GatedDiskCache diskCache, int maxPendingBytes) {
+        WriteBehindCache cache = new WriteBehindCache(diskCache, maxPendingBytes);
+        mDiskCaches.put(cache, diskCache);
+        cache.initialize();
+        return cache;
+    }
+
+    /**
+     * 写入一个缓存项,等写线程开始落盘它并停在被包装的缓存里,之后的写入都留在队列中
+     * @return 正在落盘的缓存项
+     */
+    private static Cache.Entry blockWriter(WriteBehindCache cache, GatedDiskCache diskCache)
+            throws InterruptedException {
+        Cache.Entry entry = newEntry(BODY_SIZE, 100);
+        cache.put("blocker", entry);
+        assertTrue(diskCache.awaitBlocked());
+        return entry;
+    }
+
+    /**
+     * 写线程的put在{@link #open()}之前停住的磁盘缓存,测试线程直接调用put不受影响
+     */
+    private static class GatedDiskCache extends DiskBasedCache {
+        private final CountDownLatch mBlocked = new CountDownLatch(1);
+        private final CountDownLatch mOpen = new CountDownLatch(1);
+
+        /**
+         * 写线程对每个键调用put的次数
+         */
+        final Map<String, Integer> putCounts = new ConcurrentHashMap<>();
+
+        GatedDiskCache(File root, int maxCacheSizeInBytes) {
+            super(root, maxCacheSizeInBytes);
+        }
+
+        boolean awaitBlocked() throws InterruptedException {
+            return mBlocked.await(5, TimeUnit.SECONDS);
+        }
+
+        void open() {
+            mOpen.countDown();
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+            if (Thread.currentThread().getName().equals("volley-cache-writer")) {
+                Integer count = putCounts.get(key);
+                putCounts.put(key, count == null ? 1 : count + 1);
+                mBlocked.countDown();
+                try {
+                    mOpen.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.put(key, entry);
+        }
+    }
+}